@@ -7,11 +7,18 @@
 #########################################################*/
 package net.gsantner.markor;
 
+import android.os.Build;
 import android.webkit.WebView;
 
 import androidx.multidex.MultiDexApplication;
 
 import net.gsantner.markor.model.AppSettings;
+import net.gsantner.opoc.util.GsMimeTypeCache;
+import net.gsantner.opoc.util.GsThumbnailCache;
+
+import java.io.File;
+
+import other.de.stanetz.jpencconverter.JavaPasswordbasedCryption;
 
 public class ApplicationObject extends MultiDexApplication {
     // Make resources not marked as unused
@@ -40,6 +47,7 @@ public class ApplicationObject extends MultiDexApplication {
         super.onCreate();
         _app = this;
         _appSettings = new AppSettings(getApplicationContext());
+        GsMimeTypeCache.get().setPersistFile(new File(getCacheDir(), "mimetypes.bin"));
 
         // Per https://stackoverflow.com/a/54191884/4717438
         try {
@@ -47,4 +55,19 @@ public class ApplicationObject extends MultiDexApplication {
         } catch (Exception ignored) {
         }
     }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        super.onTrimMemory(level);
+
+        // No UI visible anymore, forget derived encryption keys
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            JavaPasswordbasedCryption.onTrimMemory(level);
+        }
+
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            GsMimeTypeCache.get().save();
+            GsThumbnailCache.get(this).clearMemory();
+        }
+    }
 }
@@ -16,6 +16,7 @@ import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Bundle;
+import android.text.Editable;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.TypedValue;
@@ -39,6 +40,7 @@ import android.widget.SearchView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
 import net.gsantner.markor.ApplicationObject;
@@ -61,13 +63,20 @@ import net.gsantner.markor.web.MarkorWebViewClient;
 import net.gsantner.markor.widget.TodoWidgetProvider;
 import net.gsantner.opoc.frontend.filebrowser.GsFileBrowserOptions;
 import net.gsantner.opoc.frontend.settings.GsFontPreferenceCompat;
+import net.gsantner.opoc.format.GsTextUtils;
 import net.gsantner.opoc.frontend.textview.TextViewUndoRedo;
 import net.gsantner.opoc.util.GsContextUtils;
 import net.gsantner.opoc.util.GsCoolExperimentalStuff;
 import net.gsantner.opoc.web.GsWebViewChromeClient;
-import net.gsantner.opoc.wrapper.GsTextWatcherAdapter;
+import net.gsantner.opoc.wrapper.GsFileObserver;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings({"UnusedReturnValue"})
 @SuppressLint("NonConstantResourceId")
@@ -78,6 +87,14 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
 
     public static float VIEW_FONT_SCALE = 100f / 15.7f;
 
+    // Externally changed documents are patched line wise up to this many changed lines, else replaced as a whole
+    private static final int MAX_RELOAD_DIFF_LINES = 2000;
+
+    // Larger documents are loaded and measured in background, showing the first chunk early
+    private static final int ASYNC_LOAD_MIN_BYTES = 64 * 1024;
+    private static final int ASYNC_LOAD_FIRST_CHUNK = 8 * 1024;
+    private static final int ASYNC_LOAD_APPEND_CHUNK = 32 * 1024;
+
     public static DocumentEditAndViewFragment newInstance(final @NonNull Document document, final Integer lineNumber, final Boolean preview) {
         DocumentEditAndViewFragment f = new DocumentEditAndViewFragment();
         Bundle args = new Bundle();
@@ -106,9 +123,15 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
     private FormatRegistry _format;
     private MarkorContextUtils _cu;
     private TextViewUndoRedo _editTextUndoRedoHelper;
+    private int _pendingUndoSteps = 0; // Negative for redo, see queueUndoRedo
     private MenuItem _saveMenuItem, _undoMenuItem, _redoMenuItem;
     private boolean _isPreviewVisible;
     private boolean _nextConvertToPrintMode = false;
+    private GsFileObserver _documentObserver;
+    private Runnable _externalChangeDebounced;
+    private boolean _isLoadingAsync = false;
+    private boolean _isStartPositionPending = false;
+    private final ExecutorService _reloadExecutor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
 
     public DocumentEditAndViewFragment() {
         super();
@@ -232,7 +255,7 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
             checkTextChangeState();
             updateUndoRedoIconStates();
         });
-        _hlEditor.addTextChangedListener(GsTextWatcherAdapter.after(s -> debounced.run()));
+        _hlEditor.getEditEventBus().addBatchListener(batch -> debounced.run());
 
         // We set the keyboard to be hidden if it was hidden when we lost focus
         // This works well to preserve keyboard state.
@@ -269,6 +292,18 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
 
     @Override
     protected void onFragmentFirstTimeVisible() {
+        if (_isLoadingAsync) {
+            // Applied once the whole document is loaded
+            _isStartPositionPending = true;
+        } else {
+            showStartPosition();
+        }
+
+        // Fade in to hide initial jank
+        _hlEditor.post(() -> _hlEditor.animate().alpha(1).setDuration(250).start());
+    }
+
+    private void showStartPosition() {
         final Bundle args = getArguments();
         int startPos = _appSettings.getLastEditPosition(_document.path, _hlEditor.length());
         if (args != null && args.containsKey(Document.EXTRA_FILE_LINE_NUMBER)) {
@@ -282,28 +317,41 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
 
         _hlEditor.recomputeHighlighting(); // Run before setting scroll position
         TextViewUtils.setSelectionAndShow(_hlEditor, startPos);
-
-        // Fade in to hide initial jank
-        _hlEditor.post(() -> _hlEditor.animate().alpha(1).setDuration(250).start());
     }
 
     @Override
     public void onResume() {
         _webView.onResume();
         loadDocument();
-        if (_editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getTextView() != _hlEditor) {
-            _editTextUndoRedoHelper.setTextView(_hlEditor);
+        if (!_isLoadingAsync) {
+            attachUndoRedo();
         }
+        startDocumentObserver();
         super.onResume();
     }
 
+    // Connect undo/redo only after the document is loaded, else loading would be recorded as an edit
+    private void attachUndoRedo() {
+        if (_document != null && _editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getTextView() != _hlEditor) {
+            _editTextUndoRedoHelper.setTextView(_hlEditor);
+            _editTextUndoRedoHelper.restorePersistentStateAsync(TextViewUndoRedo.getJournalFile(getContext(), _document.file), ok -> updateUndoRedoIconStates());
+            updateUndoRedoIconStates();
+        }
+    }
+
     @Override
     public void onPause() {
+        stopDocumentObserver();
         saveDocument(false);
+        if (_editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getTextView() == _hlEditor) {
+            _editTextUndoRedoHelper.storePersistentState(TextViewUndoRedo.getJournalFile(getContext(), _document.file));
+        }
         _webView.onPause();
         _appSettings.addRecentFile(_document.file);
         _appSettings.setDocumentPreviewState(_document.path, _isPreviewVisible);
-        _appSettings.setLastEditPosition(_document.path, TextViewUtils.getSelection(_hlEditor)[0]);
+        if (!_isLoadingAsync) {
+            _appSettings.setLastEditPosition(_document.path, TextViewUtils.getSelection(_hlEditor)[0]);
+        }
 
         if (_document.path.equals(_appSettings.getTodoFile().getAbsolutePath())) {
             TodoWidgetProvider.updateTodoWidgets();
@@ -391,8 +439,7 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
         if (event.isCtrlPressed()) {
             if (event.isShiftPressed() && keyCode == KeyEvent.KEYCODE_Z) {
                 if (_editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getCanRedo()) {
-                    _hlEditor.withAutoFormatDisabled(_editTextUndoRedoHelper::redo);
-                    updateUndoRedoIconStates();
+                    queueUndoRedo(false);
                 }
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_S) {
@@ -400,14 +447,12 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_Y) {
                 if (_editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getCanRedo()) {
-                    _hlEditor.withAutoFormatDisabled(_editTextUndoRedoHelper::redo);
-                    updateUndoRedoIconStates();
+                    queueUndoRedo(false);
                 }
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_Z) {
                 if (_editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getCanUndo()) {
-                    _hlEditor.withAutoFormatDisabled(_editTextUndoRedoHelper::undo);
-                    updateUndoRedoIconStates();
+                    queueUndoRedo(true);
                 }
                 return true;
             } else if (keyCode == KeyEvent.KEYCODE_SLASH) {
@@ -419,6 +464,35 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
         return false;
     }
 
+    /**
+     * Undo and redo requests until the next frame, e.g. from key repeat or quick taps,
+     * are done in a single batch edit, so the editor lays out and highlights only once
+     */
+    private void queueUndoRedo(final boolean isUndo) {
+        if (_pendingUndoSteps != 0 && (_pendingUndoSteps > 0) != isUndo) {
+            doPendingUndoRedo(); // Direction changed
+        }
+        final boolean post = _pendingUndoSteps == 0;
+        _pendingUndoSteps += isUndo ? 1 : -1;
+        if (post) {
+            _hlEditor.post(this::doPendingUndoRedo);
+        }
+    }
+
+    private void doPendingUndoRedo() {
+        final int steps = _pendingUndoSteps;
+        _pendingUndoSteps = 0;
+        if (_editTextUndoRedoHelper == null || steps == 0) {
+            return;
+        }
+        if (steps > 0) {
+            _hlEditor.withAutoFormatDisabled(() -> _editTextUndoRedoHelper.undo(steps));
+        } else {
+            _hlEditor.withAutoFormatDisabled(() -> _editTextUndoRedoHelper.redo(-steps));
+        }
+        updateUndoRedoIconStates();
+    }
+
     private void updateUndoRedoIconStates() {
         Drawable d;
         final boolean canUndo = _editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getCanUndo();
@@ -438,9 +512,19 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
             return false;
         }
 
+        if (_isLoadingAsync) {
+            return false;
+        }
+
         // Only trigger the load process if constructing or file updated or force reload
         if (_document.hasFileChangedSinceLastLoad()) {
 
+            if (isAsyncLoadSuitable()) {
+                return loadDocumentAsync();
+            } else if (isAsyncReloadSuitable()) {
+                return reloadDocumentAsync();
+            }
+
             final String content = _document.loadContent(getContext());
             if (content == null) {
                 errorClipText();
@@ -448,7 +532,7 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
             }
 
             if (!_document.isContentSame(_hlEditor.getText())) {
-                _hlEditor.withAutoFormatDisabled(() -> _hlEditor.setTextKeepState(content));
+                applyContentChanges(content, null);
             }
 
             checkTextChangeState();
@@ -462,6 +546,265 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
         return false;
     }
 
+    // Text already in the editor is patched, the diff is computed in background
+    private boolean isAsyncReloadSuitable() {
+        return _hlEditor.length() > 0
+                && !_document.isEncrypted()
+                && !_document.isBinaryFileNoTextLoading();
+    }
+
+    private boolean isAsyncLoadSuitable() {
+        return _hlEditor.length() == 0
+                && !_document.isEncrypted() // Password warnings need the main thread
+                && !_document.isBinaryFileNoTextLoading()
+                && _document.fileBytes() > ASYNC_LOAD_MIN_BYTES;
+    }
+
+    /**
+     * Load a large document off the main thread. The first chunk is shown right away,
+     * the remaining text is appended in chunks, one per frame. The document takes over the content only
+     * once it is in the editor, which is disabled and not saved until loading is done.
+     */
+    private boolean loadDocumentAsync() {
+        final Context context = getContext();
+        if (context == null) {
+            return false;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final Document document = _document;
+
+        _isLoadingAsync = true;
+        _hlEditor.setEnabled(false);
+        try {
+            _reloadExecutor.execute(() -> {
+                final Document.LoadedContent loaded = document.readTextContent();
+                if (loaded == null) {
+                    _hlEditor.post(() -> {
+                        finishAsyncLoad(null);
+                        Toast.makeText(appContext, R.string.error_could_not_open_file, Toast.LENGTH_LONG).show();
+                    });
+                    return;
+                }
+
+                // Show the first screen(s), the rest follows chunk by chunk
+                final String content = loaded.content;
+                final int split = chunkEnd(content, 0, ASYNC_LOAD_FIRST_CHUNK);
+                final String first = content.substring(0, split);
+                _hlEditor.post(() -> {
+                    _hlEditor.withAutoFormatDisabled(() -> _hlEditor.setText(first));
+                    appendAsyncLoadChunk(loaded, split);
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            _isLoadingAsync = false;
+            _hlEditor.setEnabled(true);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read the changed file and diff it against the editor off the main thread, then patch the
+     * changed lines in. Like {@link #loadDocumentAsync()}, the editor is disabled meanwhile.
+     */
+    private boolean reloadDocumentAsync() {
+        final Context context = getContext();
+        if (context == null) {
+            return false;
+        }
+
+        final Context appContext = context.getApplicationContext();
+        final Document document = _document;
+        final String before = _hlEditor.getText().toString();
+
+        _isLoadingAsync = true;
+        _hlEditor.setEnabled(false);
+        try {
+            _reloadExecutor.execute(() -> {
+                final Document.LoadedContent loaded = document.readTextContent();
+                final List<int[]> hunks = loaded != null ? GsTextUtils.diffLines(before, loaded.content, MAX_RELOAD_DIFF_LINES) : null;
+                _hlEditor.post(() -> {
+                    if (loaded == null || !isAdded()) {
+                        finishAsyncLoad(null);
+                        if (loaded == null) {
+                            Toast.makeText(appContext, R.string.error_could_not_open_file, Toast.LENGTH_LONG).show();
+                        }
+                        return;
+                    }
+                    applyContentChanges(loaded.content, TextUtils.equals(before, _hlEditor.getText()) ? hunks : null);
+                    finishAsyncLoad(loaded);
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            _isLoadingAsync = false;
+            _hlEditor.setEnabled(true);
+            return false;
+        }
+        return true;
+    }
+
+    // End of the chunk starting at start, at the first line end after size chars
+    private static int chunkEnd(final String content, final int start, final int size) {
+        if (content.length() - start <= size) {
+            return content.length();
+        }
+        final int nl = content.indexOf('\n', start + size);
+        return nl >= 0 ? nl + 1 : content.length();
+    }
+
+    // One chunk per frame, so the layout of a large document never blocks the main thread for long
+    private void appendAsyncLoadChunk(final Document.LoadedContent loaded, final int start) {
+        final Editable text = _hlEditor.getText();
+        if (!isAdded() || text == null) {
+            finishAsyncLoad(null);
+            return;
+        }
+
+        final String content = loaded.content;
+        if (start >= content.length()) {
+            finishAsyncLoad(loaded);
+            return;
+        }
+
+        final int end = chunkEnd(content, start, ASYNC_LOAD_APPEND_CHUNK);
+        _hlEditor.withAutoFormatDisabled(() -> text.append(content, start, end));
+        _hlEditor.postOnAnimation(() -> appendAsyncLoadChunk(loaded, end));
+    }
+
+    // Loaded is null if the content did not make it into the editor
+    private void finishAsyncLoad(@Nullable final Document.LoadedContent loaded) {
+        _isLoadingAsync = false;
+        _hlEditor.setEnabled(true);
+        if (!isAdded()) {
+            return;
+        }
+
+        if (loaded != null) {
+            _document.commitLoadedContent(loaded);
+        }
+
+        checkTextChangeState();
+        if (isResumed()) {
+            attachUndoRedo();
+        }
+        if (_isStartPositionPending) {
+            _isStartPositionPending = false;
+            showStartPosition();
+        }
+        if (_isPreviewVisible) {
+            updateViewModeText();
+        }
+    }
+
+    /**
+     * Bring the editor to the given content. If possible only the changed lines are replaced,
+     * which keeps spans, layout and undo history of everything else. The change is a single
+     * undo step of its own.
+     *
+     * @param hunks Result of {@link GsTextUtils#diffLines} for the current editor text, null to replace all text
+     */
+    private void applyContentChanges(final String content, @Nullable final List<int[]> hunks) {
+        final Editable text = _hlEditor.getText();
+        final Runnable change;
+        if (text == null || text.length() == 0 || hunks == null) {
+            change = () -> _hlEditor.withAutoFormatDisabled(() -> _hlEditor.setTextKeepState(content));
+        } else if (!hunks.isEmpty()) {
+            change = () -> _hlEditor.withAutoFormatDisabled(() -> {
+                _hlEditor.beginBatchEdit();
+                try {
+                    for (int i = hunks.size() - 1; i >= 0; i--) {
+                        final int[] h = hunks.get(i);
+                        text.replace(h[0], h[1], content, h[2], h[3]);
+                    }
+                } finally {
+                    _hlEditor.endBatchEdit();
+                }
+            });
+        } else {
+            return;
+        }
+
+        if (_editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getTextView() == _hlEditor) {
+            _editTextUndoRedoHelper.runAsSeparateStep(change);
+            updateUndoRedoIconStates();
+        } else {
+            change.run();
+        }
+    }
+
+    // Watch the folder of the document, as sync tools usually replace the file by renaming
+    private void startDocumentObserver() {
+        final File parent = _document != null ? _document.file.getParentFile() : null;
+        if (parent == null || _document.isEncrypted() || _document.isBinaryFileNoTextLoading()) {
+            return;
+        }
+
+        if (_externalChangeDebounced == null) {
+            _externalChangeDebounced = TextViewUtils.makeDebounced(300, this::reloadExternallyChangedDocument);
+        }
+
+        if (_documentObserver == null) {
+            final String name = _document.file.getName();
+            _documentObserver = new GsFileObserver(parent, GsFileObserver.CLOSE_WRITE | GsFileObserver.MOVED_TO, (event, path) -> {
+                if (name.equals(path)) {
+                    _externalChangeDebounced.run();
+                }
+            });
+        }
+        _documentObserver.startWatching();
+    }
+
+    private void stopDocumentObserver() {
+        if (_documentObserver != null) {
+            _documentObserver.stopWatching();
+        }
+    }
+
+    /**
+     * Reload the document off the main thread and patch only the changed lines into the editor.
+     * Skipped if the editor has unsaved changes, these are kept and saved as before.
+     */
+    private void reloadExternallyChangedDocument() {
+        final Context context = getContext();
+        final Editable text = _hlEditor != null ? _hlEditor.getText() : null;
+        if (context == null || text == null || !isResumed() || _isLoadingAsync || !_document.isContentSame(text)) {
+            return;
+        }
+
+        if (!_document.hasFileChangedSinceLastLoad()) {
+            return; // I.e. our own save
+        }
+
+        // Only the file is read in background, the document takes the content once it is in the editor
+        final String before = text.toString();
+        final Document document = _document;
+        try {
+            _reloadExecutor.execute(() -> {
+                final Document.LoadedContent loaded = document.readTextContent();
+                if (loaded == null) {
+                    return;
+                }
+
+                final String content = loaded.content;
+                final List<int[]> hunks = GsTextUtils.diffLines(before, content, MAX_RELOAD_DIFF_LINES);
+                _hlEditor.post(() -> {
+                    final Editable current = _hlEditor.getText();
+                    // If the user typed in between, the change is picked up like any other external change
+                    if (current != null && isAdded() && _document == document && TextUtils.equals(before, current)) {
+                        applyContentChanges(content, hunks);
+                        document.commitLoadedContent(loaded);
+                        checkTextChangeState();
+                        if (_isPreviewVisible) {
+                            updateViewModeText();
+                        }
+                    }
+                });
+            });
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
     @Override
     public boolean onOptionsItemSelected(@NonNull final MenuItem item) {
         final Activity activity = getActivity();
@@ -473,15 +816,13 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
         switch (itemId) {
             case R.id.action_undo: {
                 if (_editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getCanUndo()) {
-                    _hlEditor.withAutoFormatDisabled(_editTextUndoRedoHelper::undo);
-                    updateUndoRedoIconStates();
+                    queueUndoRedo(true);
                 }
                 return true;
             }
             case R.id.action_redo: {
                 if (_editTextUndoRedoHelper != null && _editTextUndoRedoHelper.getCanRedo()) {
-                    _hlEditor.withAutoFormatDisabled(_editTextUndoRedoHelper::redo);
-                    updateUndoRedoIconStates();
+                    queueUndoRedo(false);
                 }
                 return true;
             }
@@ -669,7 +1010,7 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
     }
 
     public void checkTextChangeState() {
-        final boolean isTextChanged = !_document.isContentSame(_hlEditor.getText());
+        final boolean isTextChanged = !_isLoadingAsync && !_document.isContentSame(_hlEditor.getText());
         Drawable d;
 
         if (_saveMenuItem != null && _saveMenuItem.isEnabled() != isTextChanged && (d = _saveMenuItem.setEnabled(isTextChanged).getIcon()) != null) {
@@ -839,6 +1180,10 @@ public class DocumentEditAndViewFragment extends MarkorBaseFragment implements F
             return false;
         }
 
+        if (_isLoadingAsync) {
+            return true; // Editor holds partial content only
+        }
+
         // Document is written iff writeable && content has changed
         final CharSequence text = _hlEditor.getText();
         if (!_document.isContentSame(text)) {
@@ -9,6 +9,7 @@ package net.gsantner.markor.frontend;
 
 import android.annotation.SuppressLint;
 import android.app.Dialog;
+import android.content.Context;
 import android.os.Bundle;
 import android.text.format.DateUtils;
 import android.view.LayoutInflater;
@@ -29,6 +30,7 @@ import net.gsantner.markor.R;
 import net.gsantner.markor.model.AppSettings;
 import net.gsantner.opoc.util.GsContextUtils;
 import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.util.GsFolderStats;
 
 import java.io.File;
 import java.util.Locale;
@@ -83,8 +85,17 @@ public class FileInfoDialog extends DialogFragment {
         tv(root, R.id.ui__fileinfodialog__location).setText(file.getParentFile().getAbsolutePath());
         tv(root, R.id.ui__fileinfodialog__last_modified).setText(DateUtils.formatDateTime(root.getContext(), file.lastModified(), (DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_NUMERIC_DATE)));
         tv(root, R.id.ui__fileinfodialog__last_modified_caption).setText(getString(R.string.last_modified_witharg, "").replace(":", "").trim());
-        tv(root, R.id.ui__fileinfodialog__size_description).setText(GsFileUtils.getReadableFileSize(file.length(), false));
-        tv(root, R.id.ui__fileinfodialog__mimetype_description).setText(GsFileUtils.getMimeType(file));
+        if (file.isDirectory()) {
+            // Walking the folder may take a while, show the last known totals until it is done
+            final TextView sizeView = tv(root, R.id.ui__fileinfodialog__size_description);
+            final GsFolderStats.Totals cached = GsFolderStats.get().getCached(file);
+            sizeView.setText(cached != null ? formatFolderTotals(sizeView.getContext(), cached) : "…");
+            GsFolderStats.get().update(file, 0, totals -> sizeView.setText(formatFolderTotals(sizeView.getContext(), totals)));
+            tv(root, R.id.ui__fileinfodialog__mimetype_description).setText("inode/directory");
+        } else {
+            tv(root, R.id.ui__fileinfodialog__size_description).setText(GsFileUtils.getReadableFileSize(file.length(), false));
+            tv(root, R.id.ui__fileinfodialog__mimetype_description).setText(GsFileUtils.getMimeType(file));
+        }
         tv(root, R.id.ui__fileinfodialog__sha_256).setText(GsFileUtils.sha256(file));
         tv(root, R.id.ui__fileinfodialog__location).setOnLongClickListener(v -> {
             GsContextUtils.instance.setClipboard(v.getContext(), file.getAbsolutePath());
@@ -100,7 +111,7 @@ public class FileInfoDialog extends DialogFragment {
 
         // Number of lines and character count only apply for files.
         root.findViewById(R.id.ui__fileinfodialog__textinfo).setVisibility(View.GONE);
-        root.findViewById(R.id.ui__fileinfodialog__fileinfo).setVisibility(file.isFile() ? View.VISIBLE : View.GONE);
+        root.findViewById(R.id.ui__fileinfodialog__fileinfo).setVisibility(file.isFile() || file.isDirectory() ? View.VISIBLE : View.GONE);
         root.findViewById(R.id.ui__fileinfodialog__filesettings).setVisibility(file.isFile() ? View.VISIBLE : View.GONE);
         if (GsFileUtils.isTextFile(file)) {
             root.findViewById(R.id.ui__fileinfodialog__textinfo).setVisibility(View.VISIBLE);
@@ -126,6 +137,12 @@ public class FileInfoDialog extends DialogFragment {
         return dialogBuilder;
     }
 
+    // Context of a view, the callback may come after the dialog was dismissed
+    private static String formatFolderTotals(final Context context, final GsFolderStats.Totals totals) {
+        return String.format(Locale.getDefault(), "%s (%s: %d, %s: %d)", GsFileUtils.getReadableFileSize(totals.size, false),
+                context.getString(R.string.files), totals.files, context.getString(R.string.folders), totals.folders);
+    }
+
     private TextView tv(View root, @IdRes int resId) {
         return root.findViewById(resId);
     }
@@ -43,6 +43,7 @@ import net.gsantner.markor.format.ActionButtonBase;
 import net.gsantner.markor.format.todotxt.TodoTxtBasicSyntaxHighlighter;
 import net.gsantner.markor.format.todotxt.TodoTxtFilter;
 import net.gsantner.markor.format.todotxt.TodoTxtTask;
+import net.gsantner.markor.frontend.filesearch.FilePathIndex;
 import net.gsantner.markor.frontend.filesearch.FileSearchDialog;
 import net.gsantner.markor.frontend.filesearch.FileSearchEngine;
 import net.gsantner.markor.frontend.filesearch.FileSearchResultSelectorDialog;
@@ -73,6 +74,7 @@ import java.util.regex.Pattern;
 
 
 public class MarkorDialogFactory {
+    private static final int QUICK_OPEN_MAX_RESULTS = 500;
 
     public static void showSpecialKeyDialog(Activity activity, GsSearchOrCustomTextDialog.DialogState state, GsCallback.a1<String> callback) {
         final DialogOptions dopt = baseConf(activity);
@@ -145,8 +147,14 @@ public class MarkorDialogFactory {
         if (!FileSearchEngine.isSearchExecuting.get()) {
             FileSearchDialog.showDialog(activity, searchOptions -> {
                 searchOptions.rootSearchDir = searchDir;
-                FileSearchEngine.queueFileSearch(activity, searchOptions, searchResults ->
-                        FileSearchResultSelectorDialog.showDialog(activity, searchResults, callback));
+
+                // Results are shown while the search is still running
+                final FileSearchResultSelectorDialog.ResultStream stream = new FileSearchResultSelectorDialog.ResultStream(activity, callback);
+                final FileSearchEngine.QueueSearchFilesTask task = FileSearchEngine.queueFileSearch(activity, searchOptions, stream::addResults, stream::finish);
+                if (!task.isCancelled()) {
+                    stream.setOnDismissListener(dialog -> task.cancel(true));
+                    stream.show();
+                }
             });
         }
     }
@@ -961,7 +969,7 @@ public class MarkorDialogFactory {
         final DialogOptions dopt = baseConf(activity);
         dopt.positionCallback = (result) -> callback.callback(result.get(0));
         final List<String> data = new ArrayList<>();
-        // Order of options here should be synchronized with WrMarkorSingleton._moveOrCopySelected
+        // Order of options here should be synchronized with WrMarkorSingleton.resolveConflicts
         data.add(activity.getString(R.string.keep_both));
         data.add(activity.getString(R.string.overwrite));
         data.add(activity.getString(R.string.skip));
@@ -1025,34 +1033,25 @@ public class MarkorDialogFactory {
     ) {
         final AppSettings as = AppSettings.get(activity);
 
-        final FileSearchEngine.SearchOptions opt = new FileSearchEngine.SearchOptions();
-        opt.rootSearchDir = as.getNotebookDirectory();
-        opt.query = "";
-        opt.isRegexQuery = false;
-        opt.isCaseSensitiveQuery = false;
-        opt.isSearchInContent = false;
-        opt.isOnlyFirstContentMatch = false;
-        opt.ignoredDirectories = as.getFileSearchIgnorelist();
-        opt.maxSearchDepth = Integer.MAX_VALUE;  // Search entire notebook
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-            opt.password = as.getDefaultPassword();
-        }
+        // Index is kept between dialogs, refreshing only stats the folders unless something changed
+        final FilePathIndex index = FilePathIndex.get(as.getNotebookDirectory());
+        index.setIgnoredDirectories(as.getFileSearchIgnorelist());
+        index.refresh(snapshot -> {
+            if (activity.isFinishing()) {
+                return;
+            }
+
+            final FilePathIndex.Snapshot paths = filter == null ? snapshot : snapshot.filter(i -> filter.callback(snapshot.getFile(i)));
+            final FilePathIndex.Finder finder = paths.newFinder();
 
-        FileSearchEngine.queueFileSearch(activity, opt, searchResults -> {
             final DialogOptions dopt = baseConf(activity);
             dopt.titleText = R.string.notebook;
             dopt.messageText = as.getNotebookDirectory().getPath();
-            if (filter != null) {
-                GsCollectionUtils.keepIf(searchResults, f -> filter.callback(f.file));
-            }
-            dopt.data = GsCollectionUtils.map(searchResults, f -> f.relPath);
+            dopt.data = paths.getPaths();
             dopt.isSearchEnabled = true;
-            dopt.positionCallback = (posns) -> callback.callback(searchResults.get(posns.get(0)).file, false);
-            dopt.longPressCallback = (pos) -> callback.callback(searchResults.get(pos).file, true);
-            dopt.searchFunction = (contraint, str, index) -> {
-                final String name = searchResults.get(index).file.getName();
-                return name.toLowerCase().contains(contraint.toString().toLowerCase());
-            };
+            dopt.positionCallback = (posns) -> callback.callback(paths.getFile(posns.get(0)), false);
+            dopt.longPressCallback = (pos) -> callback.callback(paths.getFile(pos), true);
+            dopt.rankFunction = (constraint) -> finder.find(constraint, QUICK_OPEN_MAX_RESULTS);
 
             if (state != null) {
                 dopt.state.copyFrom(state);
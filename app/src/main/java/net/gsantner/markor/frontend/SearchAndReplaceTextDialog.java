@@ -11,6 +11,8 @@ import android.app.Dialog;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.view.View;
@@ -21,14 +23,17 @@ import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ListPopupWindow;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 
 import net.gsantner.markor.R;
+import net.gsantner.opoc.format.GsRegexBudget;
 import net.gsantner.opoc.format.GsTextUtils;
 import net.gsantner.opoc.model.GsSharedPreferencesPropertyBackend;
+import net.gsantner.opoc.wrapper.GsCallback;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -38,6 +43,13 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -46,6 +58,17 @@ public class SearchAndReplaceTextDialog {
     private static final String RECENT_SEARCH_REPLACE_STRING = "search_replace_dialog__recent_search_replace_history";
     private static final int MAX_RECENT_SEARCH_REPLACE = 10;
 
+    // Matching runs in background. Android's regex engine can't be interrupted during a match,
+    // so a match running longer than this is abandoned and left to finish on its own thread
+    private static final long PREVIEW_BUDGET_MS = 1000;
+    private static final long REPLACE_BUDGET_MS = 3000;
+
+    // Bounded, superseded matches can't pile up. When all threads are busy, the regex is reported as too slow
+    private static final ExecutorService _executor = new ThreadPoolExecutor(0, 3, 10, TimeUnit.SECONDS, new SynchronousQueue<>());
+    // Matches which ran over their budget and are still running. No new match is started until they finished
+    private static final AtomicInteger _abandonedMatches = new AtomicInteger(0);
+    private static final Handler _mainHandler = new Handler(Looper.getMainLooper());
+
     private final EditText searchText;
     private final EditText replaceText;
     private final CheckBox regexCheckBox;
@@ -59,7 +82,8 @@ public class SearchAndReplaceTextDialog {
 
     private final int[] _sel;
     private final int cursorPosition;
-    private final CharSequence region;
+    private final String region; // Snapshot, matched in background
+    private volatile int _generation = 0; // Results of older matches are dropped, changed on the main thread only
 
     private static final ReplaceGroup[] DEFAULT_GROUPS = {
             // Delete trailing spaces
@@ -99,11 +123,7 @@ public class SearchAndReplaceTextDialog {
             cursorPosition = -1;
         }
 
-        if (_sel[0] != 0 || _sel[1] != _edit.length()) {
-            region = _edit.subSequence(_sel[0], _sel[1]);
-        } else {
-            region = _edit;
-        }
+        region = _edit.subSequence(_sel[0], _sel[1]).toString();
 
         final Resources res = activity.getResources();
         final AlertDialog.Builder builder = new AlertDialog.Builder(activity, R.style.Theme_AppCompat_DayNight_Dialog_Rounded);
@@ -185,52 +205,119 @@ public class SearchAndReplaceTextDialog {
                 v -> updateUI()
         );
 
-        replaceFirst.setOnClickListener(button -> {
-            performReplace(false);
-            saveRecentReplace();
-            dialog.get().dismiss();
-        });
+        replaceFirst.setOnClickListener(button -> performReplace(false, dialog.get()));
 
-        replaceAll.setOnClickListener(button -> {
-            performReplace(true);
-            saveRecentReplace();
-            dialog.get().dismiss();
-        });
+        replaceAll.setOnClickListener(button -> performReplace(true, dialog.get()));
 
         updateUI();
 
         builder.setView(viewRoot).setNegativeButton(R.string.cancel, null);
+        builder.setOnDismissListener(d -> _generation++);
         dialog.set(builder.show());
 
         //noinspection DataFlowIssue
         dialog.get().getWindow().setLayout(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT);
     }
 
-    private void performReplace(final boolean replaceAll) {
+    private void performReplace(final boolean replaceAll, final Dialog dialog) {
+        final Pattern sp;
+        try {
+            sp = makePattern();
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+
+        final String replacePattern = getReplacePattern();
+        replaceFirst.setEnabled(false);
+        this.replaceAll.setEnabled(false);
+        runMatch(REPLACE_BUDGET_MS, budget -> {
+            try {
+                return getReplacement(sp, replacePattern, replaceAll, budget);
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return region; // Do not perform replacement
+            }
+        }, replacement -> {
+            if (replacement != null) {
+                if (!region.equals(replacement)) {
+                    _edit.replace(_sel[0], _sel[1], replacement);
+                }
+                saveRecentReplace();
+                dialog.dismiss();
+            } else {
+                Toast.makeText(_activity, R.string.regex_took_too_long, Toast.LENGTH_SHORT).show();
+                updateUI();
+            }
+        });
+    }
+
+    /**
+     * Run a match in background. The callback is called on the main thread, with null if the
+     * match did not finish within the budget. Results of superseded matches are dropped.
+     * While an abandoned match is still running, no new one is started and null is delivered right away.
+     */
+    private <T> void runMatch(final long budgetMs, final GsCallback.r1<T, GsRegexBudget> match, final GsCallback.a1<T> callback) {
+        final int generation = ++_generation;
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final GsCallback.a1<T> deliver = result -> {
+            if (generation == _generation && done.compareAndSet(false, true)) {
+                callback.callback(result);
+            }
+        };
+
+        if (_abandonedMatches.get() > 0) {
+            _mainHandler.post(() -> deliver.callback(null));
+            return;
+        }
+
+        // Set by whichever comes first, the end of the match or its timeout
+        final AtomicBoolean finishedOrAbandoned = new AtomicBoolean(false);
         try {
-            final String replacement = getReplacement(replaceAll);
-            _edit.replace(_sel[0], _sel[1], replacement);
-        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
-            // Do not perform replacement
+            _executor.execute(() -> {
+                T result;
+                try {
+                    // Stops early on engines which read through charAt, or once superseded
+                    result = match.callback(new GsRegexBudget(budgetMs, () -> done.get() || generation != _generation));
+                } catch (GsRegexBudget.TimeoutException e) {
+                    result = null;
+                } finally {
+                    if (!finishedOrAbandoned.compareAndSet(false, true)) {
+                        _abandonedMatches.decrementAndGet();
+                    }
+                }
+                final T r = result;
+                _mainHandler.post(() -> deliver.callback(r));
+            });
+        } catch (RejectedExecutionException e) {
+            _mainHandler.post(() -> deliver.callback(null));
+            return;
         }
+        _mainHandler.postDelayed(() -> {
+            if (finishedOrAbandoned.compareAndSet(false, true)) {
+                _abandonedMatches.incrementAndGet();
+            }
+            deliver.callback(null);
+        }, budgetMs);
     }
 
-    private String getReplacement(final boolean replaceAll) {
-        final Pattern sp = makePattern();
+    // Called in background, only touches the snapshot of the region
+    private String getReplacement(final Pattern sp, final String replacePattern, final boolean replaceAll, final GsRegexBudget budget) {
+        final CharSequence input = budget.guard(region);
 
         if (replaceAll) {
-            return sp.matcher(region).replaceAll(getReplacePattern());
+            return budget.replaceAll(sp.matcher(input), replacePattern);
         } else {
-            final Matcher match = sp.matcher(region);
+            final Matcher match = sp.matcher(input);
             // Handle case
             if (cursorPosition > 0 && cursorPosition < region.length()) {
                 if (match.find(cursorPosition)) {
+                    budget.check();
                     final CharSequence before = region.subSequence(0, cursorPosition);
-                    final CharSequence after = region.subSequence(cursorPosition, region.length());
-                    return before + sp.matcher(after).replaceFirst(getReplacePattern());
+                    final CharSequence after = input.subSequence(cursorPosition, region.length());
+                    return before + sp.matcher(after).replaceFirst(replacePattern);
                 }
             }
-            return match.replaceFirst(getReplacePattern());
+            budget.check();
+            return match.replaceFirst(replacePattern);
         }
     }
 
@@ -251,38 +338,57 @@ public class SearchAndReplaceTextDialog {
     }
 
     private void updateUI() {
-        boolean error = false;
-        int count = 0;
+        multilineCheckBox.setEnabled(regexCheckBox.isChecked());
 
-        if (searchText.length() > 0) {
-            try {
+        if (searchText.length() == 0) {
+            _generation++;
+            showMatchState(0, false, false);
+            return;
+        }
 
-                final Pattern sp = makePattern();
+        final Pattern sp;
+        try {
+            sp = makePattern();
+        } catch (IllegalArgumentException e) {
+            _generation++;
+            showMatchState(0, true, false);
+            return;
+        }
 
+        final String replacePattern = getReplacePattern();
+        runMatch(PREVIEW_BUDGET_MS, budget -> {
+            try {
                 // Determine count
-                final Matcher match = sp.matcher(region);
-                while (match.find()) count++;
+                final int count = budget.count(sp.matcher(budget.guard(region)));
 
                 // Run a replace to check if it works
                 if (count > 0) {
-                    getReplacement(false);
+                    budget.restart();
+                    getReplacement(sp, replacePattern, false, budget);
                 }
-
+                return count;
             } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
-                error = true;
+                return -1;
             }
-        }
+        }, count -> {
+            // A timeout only means the preview gave up, replacing gets a larger budget
+            showMatchState(count != null ? Math.max(count, 0) : 0, count != null && count < 0, count == null);
+        });
+    }
 
-        final boolean enabled = (count > 0) && !error;
+    private void showMatchState(final int count, final boolean error, final boolean timeout) {
+        final boolean enabled = (count > 0 || timeout) && !error;
         replaceFirst.setEnabled(enabled);
         replaceAll.setEnabled(enabled);
 
-        multilineCheckBox.setEnabled(regexCheckBox.isChecked());
-
         final Resources res = _activity.getResources();
 
         if (error) {
             matchState.setText(res.getString(R.string.search_replace_pattern_error_message));
+        } else if (timeout) {
+            matchState.setText(res.getString(R.string.regex_took_too_long));
+        } else if (regexCheckBox.isChecked() && GsRegexBudget.isCostly(searchText.getText().toString())) {
+            matchState.setText(String.format(res.getConfiguration().locale, "%s: %d\n%s", res.getString(R.string.matches), count, res.getString(R.string.regex_may_be_very_slow)));
         } else {
             matchState.setText(String.format(res.getConfiguration().locale, "%s: %d", res.getString(R.string.matches), count));
         }
@@ -0,0 +1,380 @@
+package net.gsantner.markor.frontend.filesearch;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of all relative paths below a folder, for finding files by name while typing.
+ * <p>
+ * The index is built on a background thread and kept as an immutable {@link Snapshot}, together
+ * with the mtime of every listed directory. {@link #refresh(GsCallback.a1)} only stats these
+ * directories and walks the tree again if one of them changed, meanwhile the previous snapshot
+ * keeps being served.
+ */
+public class FilePathIndex {
+    private static final Map<String, FilePathIndex> _indexes = new HashMap<>();
+    private static final ExecutorService _executor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private static final Handler _mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Immutable list of paths, sorted like {@link FileSearchEngine#RESULT_ORDER}, with precomputed keys.
+     */
+    public static class Snapshot {
+        public final File root;
+        private final String[] _paths;
+        private final boolean[] _isDirectory;
+        private final char[][] _keys;
+        private final int[] _nameStarts;
+
+        private Snapshot(final File root, final String[] paths, final boolean[] isDirectory) {
+            this.root = root;
+            _paths = paths;
+            _isDirectory = isDirectory;
+            _keys = new char[paths.length][];
+            _nameStarts = new int[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                _keys[i] = FuzzyMatcher.makeKey(paths[i]);
+                _nameStarts[i] = FuzzyMatcher.nameStart(_keys[i]);
+            }
+        }
+
+        // Subset, keys are not computed again
+        private Snapshot(final Snapshot source, final List<Integer> indices) {
+            root = source.root;
+            final int n = indices.size();
+            _paths = new String[n];
+            _isDirectory = new boolean[n];
+            _keys = new char[n][];
+            _nameStarts = new int[n];
+            for (int i = 0; i < n; i++) {
+                final int j = indices.get(i);
+                _paths[i] = source._paths[j];
+                _isDirectory[i] = source._isDirectory[j];
+                _keys[i] = source._keys[j];
+                _nameStarts[i] = source._nameStarts[j];
+            }
+        }
+
+        public int size() {
+            return _paths.length;
+        }
+
+        public String getPath(final int index) {
+            return _paths[index];
+        }
+
+        public File getFile(final int index) {
+            return new File(root, _paths[index]);
+        }
+
+        public boolean isDirectory(final int index) {
+            return _isDirectory[index];
+        }
+
+        /**
+         * Read only view of all paths, without copying
+         */
+        public List<String> getPaths() {
+            return Collections.unmodifiableList(Arrays.asList(_paths));
+        }
+
+        /**
+         * Subset of this snapshot
+         */
+        public Snapshot filter(final GsCallback.b1<Integer> keep) {
+            final List<Integer> kept = new ArrayList<>();
+            for (int i = 0; i < _paths.length; i++) {
+                if (keep.callback(i)) {
+                    kept.add(i);
+                }
+            }
+            return new Snapshot(this, kept);
+        }
+
+        public Finder newFinder() {
+            return new Finder(this);
+        }
+    }
+
+    /**
+     * Ranks the paths of a snapshot for a query. A query which extends the previous one only
+     * re-scores the previous matches. Not thread safe, use one per dialog.
+     */
+    public static class Finder {
+        private final Snapshot _snapshot;
+        private String _lastQuery = null;
+        private int[] _lastMatches = null;
+        private int _lastMatchCount = 0;
+
+        private Finder(final Snapshot snapshot) {
+            _snapshot = snapshot;
+        }
+
+        /**
+         * @param limit Maximum number of matches
+         * @return Indices into the snapshot, best match first. All paths in order for an empty query
+         */
+        public List<Integer> find(final String query, final int limit) {
+            final int total = _snapshot.size();
+            if (query.isEmpty()) {
+                _lastQuery = null;
+                return indexList(null, total);
+            }
+
+            final char[] q = FuzzyMatcher.makeKey(query);
+            final boolean narrows = _lastQuery != null && query.startsWith(_lastQuery);
+            final int candidates = narrows ? _lastMatchCount : total;
+
+            // Only the best matches are kept, in a min-heap of packed longs: score in the high bits,
+            // then shorter path, then original order. No sorting of all matches and no boxing
+            final int[] matches = new int[candidates];
+            final long[] heap = new long[Math.max(0, Math.min(limit, candidates))];
+            int count = 0, heapSize = 0;
+            for (int c = 0; c < candidates; c++) {
+                final int i = narrows ? _lastMatches[c] : c;
+                final int score = FuzzyMatcher.score(q, _snapshot._keys[i], _snapshot._nameStarts[i]);
+                if (score == FuzzyMatcher.NO_MATCH) {
+                    continue;
+                }
+                matches[count++] = i;
+
+                final long len = Math.min(_snapshot._keys[i].length, 0xFFFF);
+                final long packed = ((long) score << 40) | ((0xFFFF - len) << 24) | (0xFFFFFF - i);
+                if (heapSize < heap.length) {
+                    heapSize = heapPush(heap, heapSize, packed);
+                } else if (heapSize > 0 && packed > heap[0]) {
+                    heapReplaceMin(heap, heapSize, packed);
+                }
+            }
+
+            _lastQuery = query;
+            _lastMatches = matches;
+            _lastMatchCount = count;
+
+            Arrays.sort(heap, 0, heapSize);
+            final int[] best = new int[heapSize];
+            for (int k = 0; k < heapSize; k++) {
+                best[k] = 0xFFFFFF - (int) (heap[heapSize - 1 - k] & 0xFFFFFF);
+            }
+            return indexList(best, heapSize);
+        }
+
+        private static int heapPush(final long[] heap, final int size, final long value) {
+            int i = size;
+            while (i > 0 && heap[(i - 1) / 2] > value) {
+                heap[i] = heap[(i - 1) / 2];
+                i = (i - 1) / 2;
+            }
+            heap[i] = value;
+            return size + 1;
+        }
+
+        private static void heapReplaceMin(final long[] heap, final int size, final long value) {
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= value) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = value;
+        }
+
+        private static List<Integer> indexList(@Nullable final int[] indices, final int size) {
+            return new AbstractList<Integer>() {
+                @Override
+                public Integer get(final int index) {
+                    return indices != null ? indices[index] : index;
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+
+    private final File _root;
+    private volatile Snapshot _snapshot = null;
+    private volatile List<String> _ignoredDirectories = Collections.emptyList();
+
+    // Only accessed on the executor
+    private Map<String, Long> _dirStamps = new HashMap<>();
+
+    private FilePathIndex(final File root) {
+        _root = root;
+    }
+
+    public static FilePathIndex get(final File root) {
+        synchronized (_indexes) {
+            final String key = root.getAbsolutePath();
+            FilePathIndex index = _indexes.get(key);
+            if (index == null) {
+                index = new FilePathIndex(root);
+                _indexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Folder names (or patterns) which are not indexed, same format as for {@link FileSearchEngine.SearchOptions#ignoredDirectories}.
+     * A different list causes the next refresh to walk the tree again.
+     */
+    public void setIgnoredDirectories(@Nullable final List<String> ignored) {
+        final List<String> list = ignored != null ? new ArrayList<>(ignored) : Collections.emptyList();
+        if (!list.equals(_ignoredDirectories)) {
+            _ignoredDirectories = list;
+            _executor.execute(() -> _dirStamps = new HashMap<>());
+        }
+    }
+
+    /**
+     * Latest snapshot, possibly outdated. Null if the index was never built
+     */
+    @Nullable
+    public Snapshot getSnapshot() {
+        return _snapshot;
+    }
+
+    /**
+     * Bring the index up to date in the background
+     *
+     * @param callback Receives the up to date snapshot on the main thread, may be null
+     */
+    public void refresh(@Nullable final GsCallback.a1<Snapshot> callback) {
+        _executor.execute(() -> {
+            if (_snapshot == null || isChanged()) {
+                build();
+            }
+            if (callback != null) {
+                final Snapshot snapshot = _snapshot;
+                _mainHandler.post(() -> callback.callback(snapshot));
+            }
+        });
+    }
+
+    // Stats the known directories only, no listing
+    private boolean isChanged() {
+        if (_dirStamps.isEmpty()) {
+            return true;
+        }
+        for (final Map.Entry<String, Long> stamp : _dirStamps.entrySet()) {
+            if (new File(stamp.getKey()).lastModified() != stamp.getValue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void build() {
+        final long start = System.currentTimeMillis();
+        final Set<String> exact = new HashSet<>();
+        final List<Pattern> patterns = new ArrayList<>();
+        splitIgnored(_ignoredDirectories, exact, patterns);
+        splitIgnored(FileSearchEngine.defaultIgnoredDirs, exact, patterns);
+
+        final Map<String, Long> stamps = new HashMap<>();
+        final List<FileSearchEngine.FitFile> found = new ArrayList<>();
+        final int trim = _root.getAbsolutePath().length() + 1;
+
+        final ArrayDeque<GsFileUtils.DirEntry> stack = new ArrayDeque<>();
+        stack.push(GsFileUtils.DirEntry.of(_root));
+        while (!stack.isEmpty()) {
+            final GsFileUtils.DirEntry dir = stack.pop();
+            final List<GsFileUtils.DirEntry> entries = GsFileUtils.listDirEntries(dir.file);
+            if (entries == null) {
+                continue;
+            }
+            stamps.put(dir.file.getAbsolutePath(), dir.lastModified());
+
+            for (final GsFileUtils.DirEntry entry : entries) {
+                if (isIgnored(entry.getName().toLowerCase(), exact, patterns)) {
+                    continue;
+                }
+                found.add(new FileSearchEngine.FitFile(entry.file, entry.file.getAbsolutePath().substring(trim), entry.isDirectory(), null));
+                if (entry.isDirectory() && !entry.isSymbolicLink()) {
+                    stack.push(entry);
+                }
+            }
+        }
+
+        Collections.sort(found, FileSearchEngine.RESULT_ORDER);
+        final String[] paths = new String[found.size()];
+        final boolean[] isDirectory = new boolean[found.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = found.get(i).relPath;
+            isDirectory[i] = found.get(i).isDirectory;
+        }
+
+        _snapshot = new Snapshot(_root, paths, isDirectory);
+        _dirStamps = stamps;
+        Log.d(FilePathIndex.class.getName(), "Indexed " + paths.length + " paths in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static void splitIgnored(final List<String> list, final Set<String> exact, final List<Pattern> patterns) {
+        for (String pattern : list) {
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            pattern = pattern.toLowerCase();
+            if (pattern.startsWith("\"")) {
+                pattern = pattern.replace("\"", "");
+                if (!pattern.isEmpty()) {
+                    exact.add(pattern);
+                }
+            } else {
+                try {
+                    patterns.add(Pattern.compile(pattern.replaceAll("(?<![.])[*]", ".*")));
+                } catch (Exception ignored) {
+                    // Already reported by the file search
+                }
+            }
+        }
+    }
+
+    private static boolean isIgnored(@NonNull final String name, final Set<String> exact, final List<Pattern> patterns) {
+        if (exact.contains(name)) {
+            return true;
+        }
+        for (final Pattern pattern : patterns) {
+            if (pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,162 @@
+package net.gsantner.markor.frontend.filesearch;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Small in-memory cache of recent, complete search results.
+ * <p>
+ * An entry is valid as long as none of the walked directories changed. Editing a file does not touch
+ * the directory, so files saved by the app are reported with {@link #invalidate(File)}, and entries
+ * expire after {@link #MAX_AGE_MS} for files changed by other apps.
+ * A literal query which contains a cached literal query can only match a subset of its results,
+ * so these results are used as candidates instead of walking the tree again.
+ * All methods are thread safe.
+ */
+public class FileSearchCache {
+    private static final int MAX_ENTRIES = 8;
+    private static final long MAX_AGE_MS = 2 * 60 * 1000;
+
+    public static class Entry {
+        public final String optionsKey;
+        public final String query;
+        public final boolean isLiteral;
+        public final List<FileSearchEngine.FitFile> results;
+        private final Map<String, Long> _dirStamps;
+        private final long _created;
+
+        private Entry(final String optionsKey, final String query, final boolean isLiteral, final List<FileSearchEngine.FitFile> results, final Map<String, Long> dirStamps, final long created) {
+            this.optionsKey = optionsKey;
+            this.query = query;
+            this.isLiteral = isLiteral;
+            this.results = Collections.unmodifiableList(new ArrayList<>(results));
+            _dirStamps = dirStamps;
+            _created = created;
+        }
+
+        public Map<String, Long> getDirStamps() {
+            return _dirStamps;
+        }
+
+        /**
+         * Time of the tree walk these results are based on
+         */
+        public long getCreated() {
+            return _created;
+        }
+
+        // Stats every walked directory, but reads no content
+        private boolean isValid() {
+            if (System.currentTimeMillis() - _created > MAX_AGE_MS) {
+                return false;
+            }
+            for (final Map.Entry<String, Long> stamp : _dirStamps.entrySet()) {
+                if (new File(stamp.getKey()).lastModified() != stamp.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final FileSearchCache _instance = new FileSearchCache();
+
+    public static FileSearchCache get() {
+        return _instance;
+    }
+
+    // Access ordered, eldest is dropped first
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Everything except the query which influences the results
+     */
+    public static String makeOptionsKey(final FileSearchEngine.SearchOptions config) {
+        return config.rootSearchDir.getAbsolutePath()
+                + "\u0000" + config.isRegexQuery + config.isCaseSensitiveQuery + config.isSearchInContent
+                + config.isOnlyFirstContentMatch + config.isShowMatchPreview + config.maxSearchDepth + "/" + config.maxResultCount
+                + "\u0000" + config.ignoredDirectories;
+    }
+
+    /**
+     * @param created Time of the tree walk the results are based on. Narrowed results keep the time of the original walk
+     */
+    public synchronized void put(final String optionsKey, final String query, final boolean isLiteral, final List<FileSearchEngine.FitFile> results, final Map<String, Long> dirStamps, final long created) {
+        _entries.put(optionsKey + "\u0000" + query, new Entry(optionsKey, query, isLiteral, results, dirStamps, created));
+    }
+
+    /**
+     * Find the results of exactly this query
+     */
+    @Nullable
+    public Entry getExact(final String optionsKey, final String query) {
+        final Entry entry;
+        synchronized (this) {
+            entry = _entries.get(optionsKey + "\u0000" + query);
+        }
+        return validOrRemove(entry);
+    }
+
+    /**
+     * Find the most specific cached literal query which the given literal query narrows down
+     */
+    @Nullable
+    public Entry getNarrowable(final String optionsKey, final String query) {
+        Entry best = null;
+        synchronized (this) {
+            for (final Entry entry : _entries.values()) {
+                if (entry.isLiteral && entry.optionsKey.equals(optionsKey) && query.contains(entry.query)
+                        && (best == null || entry.query.length() > best.query.length())) {
+                    best = entry;
+                }
+            }
+        }
+        return validOrRemove(best);
+    }
+
+    /**
+     * Drop all entries whose walk included the folder of this file, e.g. after it was written in place
+     */
+    public synchronized void invalidate(final File file) {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent == null) {
+            return;
+        }
+        final String path = parent.getAbsolutePath();
+        for (final Iterator<Entry> it = _entries.values().iterator(); it.hasNext(); ) {
+            if (it.next()._dirStamps.containsKey(path)) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+    }
+
+    private Entry validOrRemove(final Entry entry) {
+        if (entry == null || entry.isValid()) {
+            return entry;
+        }
+        synchronized (this) {
+            for (final Iterator<Entry> it = _entries.values().iterator(); it.hasNext(); ) {
+                if (it.next() == entry) {
+                    it.remove();
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -1,40 +1,50 @@
 package net.gsantner.markor.frontend.filesearch;
 
 import android.app.Activity;
+import android.content.Context;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
 import android.util.Pair;
 import android.view.View;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 
 import com.google.android.material.snackbar.Snackbar;
 
 import net.gsantner.markor.R;
-import net.gsantner.opoc.util.GsCollectionUtils;
+import net.gsantner.opoc.format.GsRegexBudget;
 import net.gsantner.opoc.util.GsFileUtils;
 import net.gsantner.opoc.wrapper.GsCallback;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -47,9 +57,13 @@ public class FileSearchEngine {
     public static final AtomicBoolean isSearchExecuting = new AtomicBoolean(false);
     public static final AtomicReference<WeakReference<Activity>> activity = new AtomicReference<>();
 
-    private static final List<String> defaultIgnoredDirs = Arrays.asList("^\\.git$", "^\\.tmp$", ".*[Tt]humb.*");
+    static final List<String> defaultIgnoredDirs = Arrays.asList("^\\.git$", "^\\.tmp$", ".*[Tt]humb.*");
     private static final int maxPreviewLength = 100;
     public static final int maxQueryHistoryCount = 20;
+    public static final int DEFAULT_MAX_RESULT_COUNT = 100000;
+    public static final long BATCH_INTERVAL_MS = 100;
+    public static final long REGEX_LINE_BUDGET_MS = 1000;
+    private static final int FILE_BATCH_SIZE = 64;
     public static final LinkedList<String> queryHistory = new LinkedList<>();
 
     public static void addToHistory(String query) {
@@ -75,6 +89,7 @@ public class FileSearchEngine {
         public boolean isShowMatchPreview = true;
         public char[] password = new char[0];
         public int message = 0;
+        public int maxResultCount = DEFAULT_MAX_RESULT_COUNT;
     }
 
     public static class FitFile {
@@ -102,15 +117,35 @@ public class FileSearchEngine {
         }
     }
 
+    // Order of the final results. Streamed results can be inserted with this to end up in the same order
+    public static final Comparator<FitFile> RESULT_ORDER = (a, b) -> {
+        final int cmp = a.relPath.compareToIgnoreCase(b.relPath);
+        return cmp != 0 ? cmp : a.relPath.compareTo(b.relPath);
+    };
+
     public static FileSearchEngine.QueueSearchFilesTask queueFileSearch(
             @NonNull final Activity activity,
             final SearchOptions config,
             final GsCallback.a1<List<FitFile>> callback
+    ) {
+        return queueFileSearch(activity, config, null, callback);
+    }
+
+    /**
+     * @param batchCallback Receives results as they are found (unsorted) and the number of files scanned so far.
+     *                      Called on the main thread, at most every {@link #BATCH_INTERVAL_MS}
+     * @param callback      Receives all results, sorted by {@link #RESULT_ORDER}, once the search is done
+     */
+    public static FileSearchEngine.QueueSearchFilesTask queueFileSearch(
+            @NonNull final Activity activity,
+            final SearchOptions config,
+            @Nullable final GsCallback.a2<List<FitFile>, Integer> batchCallback,
+            final GsCallback.a1<List<FitFile>> callback
     ) {
         FileSearchEngine.activity.set(new WeakReference<>(activity));
         FileSearchEngine.isSearchExecuting.set(true);
         FileSearchEngine.addToHistory(config.query);
-        FileSearchEngine.QueueSearchFilesTask task = new FileSearchEngine.QueueSearchFilesTask(config, callback);
+        FileSearchEngine.QueueSearchFilesTask task = new FileSearchEngine.QueueSearchFilesTask(config, batchCallback, callback);
         task.execute();
 
         return task;
@@ -119,19 +154,47 @@ public class FileSearchEngine {
     public static class QueueSearchFilesTask extends AsyncTask<Void, Integer, List<FitFile>> {
         private final SearchOptions _config;
         private final GsCallback.a1<List<FitFile>> _callback;
+        private final GsCallback.a2<List<FitFile>, Integer> _batchCallback;
+
+        // Patterns are thread safe, matchers are not. Each worker thread gets its own matchers.
+        private final Pattern _pattern;
+        private final Set<Pattern> _ignoredRegexDirs = new HashSet<>();
+        private final Set<String> _ignoredExactDirs = new HashSet<>();
+        private final ThreadLocal<Worker> _worker = new ThreadLocal<Worker>() {
+            @Override
+            protected Worker initialValue() {
+                return new Worker();
+            }
+        };
 
-        // _matcher.reset() is _not_ thread safe. Will need alternate approach when we make search parallel
-        private final Matcher _matcher;
+        private final Context _appContext;
+        private FileSearchIndex _index;
+        private int[] _queryTrigrams;
 
         private Snackbar _snackBar;
-        private Integer _countCheckedFiles = 0;
-        private final List<FitFile> _result = new ArrayList<>();
-        private final Set<Matcher> _ignoredRegexDirs = new HashSet<>();
-        private final Set<String> _ignoredExactDirs = new HashSet<>();
+        private final AtomicInteger _countCheckedFiles = new AtomicInteger(0);
+        private final AtomicInteger _countPendingDirs = new AtomicInteger(0);
+        private final List<String> _timedOutFiles = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicBoolean _isResultLimitReached = new AtomicBoolean(false);
+        private final Map<String, Long> _dirStamps = new ConcurrentHashMap<>();
+        private final List<FitFile> _result = Collections.synchronizedList(new ArrayList<>());
+
+        // Main thread only, results are only ever appended to _result so an index is enough
+        private int _countDelivered = 0;
+        private long _lastBatchTime = 0;
 
         public QueueSearchFilesTask(final SearchOptions config, final GsCallback.a1<List<FitFile>> callback) {
+            this(config, null, callback);
+        }
+
+        public QueueSearchFilesTask(
+                final SearchOptions config,
+                @Nullable final GsCallback.a2<List<FitFile>, Integer> batchCallback,
+                final GsCallback.a1<List<FitFile>> callback
+        ) {
             _config = config;
             _callback = callback;
+            _batchCallback = batchCallback;
 
             _config.query = _config.isCaseSensitiveQuery ? _config.query : _config.query.toLowerCase();
             splitRegexExactFiles(config.ignoredDirectories, _ignoredExactDirs, _ignoredRegexDirs);
@@ -142,6 +205,10 @@ public class FileSearchEngine {
                 try {
                     _config.query = _config.query.replaceAll("(?<![.])[*]", ".*");
                     pattern = Pattern.compile(_config.query);
+                    final Activity a = activity.get().get();
+                    if (a != null && GsRegexBudget.isCostly(_config.query)) {
+                        Toast.makeText(a, R.string.regex_may_be_very_slow, Toast.LENGTH_LONG).show();
+                    }
                 } catch (Exception ex) {
                     final Activity a = activity.get().get();
                     if (a != null) {
@@ -150,13 +217,33 @@ public class FileSearchEngine {
                     }
                 }
             }
-            _matcher = pattern != null ? pattern.matcher("") : null;
+            _pattern = pattern;
+
+            final Activity a = activity.get().get();
+            _appContext = a != null ? a.getApplicationContext() : null;
+        }
+
+        // Per thread search state
+        private final class Worker {
+            private final Matcher matcher = _pattern != null ? _pattern.matcher("") : null;
+            private final LiteralMatcher literal = !_config.isRegexQuery && LiteralMatcher.isSupported(_config.query) ? new LiteralMatcher(_config.query, _config.isCaseSensitiveQuery) : null;
+            private final List<Matcher> ignoredMatchers = new ArrayList<>();
+            // User regexes get a time budget per name and line, a slow but sane regex is never cut off in large files
+            private final GsRegexBudget budget = new GsRegexBudget(REGEX_LINE_BUDGET_MS, QueueSearchFilesTask.this::isCancelled);
+            // The current file overran the budget once, the rest of it is skipped
+            private boolean isFileTimedOut = false;
+
+            private Worker() {
+                for (final Pattern pattern : _ignoredRegexDirs) {
+                    ignoredMatchers.add(pattern.matcher(""));
+                }
+            }
         }
 
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
-            if (_config.isRegexQuery && _matcher == null) {
+            if (_config.isRegexQuery && _pattern == null) {
                 cancel(true);
                 return;
             }
@@ -189,73 +276,277 @@ public class FileSearchEngine {
             }
         }
 
+        private boolean isStopped() {
+            return isCancelled() || _isResultLimitReached.get();
+        }
+
         @Override
         protected List<FitFile> doInBackground(final Void... ignored) {
-            final ArrayDeque<Pair<File, Integer>> stack = new ArrayDeque<>();
-            stack.add(Pair.create(_config.rootSearchDir, 0));
             final int trimLength = _config.rootSearchDir.getAbsolutePath().length() + 1;
+            final long startTime = System.currentTimeMillis();
+
+            // The index can only shortlist for literal queries
+            _queryTrigrams = _config.isSearchInContent && !_config.isRegexQuery ? FileSearchIndex.queryTrigrams(_config.query) : null;
+            if (_queryTrigrams != null && _appContext != null) {
+                _index = FileSearchIndex.get(_appContext, _config.rootSearchDir);
+            }
+
+            final FileSearchCache cache = FileSearchCache.get();
+            final String optionsKey = FileSearchCache.makeOptionsKey(_config);
+            final FileSearchCache.Entry exact = cache.getExact(optionsKey, _config.query);
+            final FileSearchCache.Entry narrowable = exact != null || _config.isRegexQuery ? null : cache.getNarrowable(optionsKey, _config.query);
+
+            if (exact != null) {
+                _result.addAll(exact.results);
+                _dirStamps.putAll(exact.getDirStamps());
+            } else if (narrowable != null) {
+                searchCandidates(narrowable.results);
+                _dirStamps.putAll(narrowable.getDirStamps());
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                searchParallel(trimLength);
+            } else {
+                searchSequential(trimLength);
+            }
+
+            if (_index != null) {
+                _index.save(_config.rootSearchDir);
+            }
+
+            // Results arrive in any order from the workers, sort to make the output deterministic
+            final List<FitFile> result;
+            synchronized (_result) {
+                result = new ArrayList<>(_result);
+            }
+            Collections.sort(result, RESULT_ORDER);
+
+            // Only complete results can be reused
+            if (exact == null && !isStopped() && _timedOutFiles.isEmpty()) {
+                final long created = narrowable != null ? narrowable.getCreated() : startTime;
+                cache.put(optionsKey, _config.query, !_config.isRegexQuery, result, new HashMap<>(_dirStamps), created);
+            }
 
-            Pair<File, Integer> pair;
-            while ((pair = stack.pollLast()) != null && !isCancelled()) {
+            return result;
+        }
+
+        private void searchSequential(final int trimLength) {
+            final ArrayDeque<Pair<GsFileUtils.DirEntry, Integer>> stack = new ArrayDeque<>();
+            stack.add(Pair.create(GsFileUtils.DirEntry.of(_config.rootSearchDir), 0));
+
+            Pair<GsFileUtils.DirEntry, Integer> pair;
+            while ((pair = stack.pollLast()) != null && !isStopped()) {
                 final int depth = pair.second;
-                final File dir = pair.first;
+                final GsFileUtils.DirEntry dir = pair.first;
 
-                if (depth < _config.maxSearchDepth && dir.canRead()) {
+                if (depth < _config.maxSearchDepth) {
                     handleDirectory(dir, trimLength, depth, stack::addLast);
-                    publishProgress(stack.size(), depth, _result.size(), _countCheckedFiles);
+                    publishProgress(stack.size(), depth, _result.size(), _countCheckedFiles.get());
                 }
             }
+        }
+
+        @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+        private void searchParallel(final int trimLength) {
+            final ForkJoinPool pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+            try {
+                pool.invoke(new DirectoryTask(GsFileUtils.DirEntry.of(_config.rootSearchDir), 0, trimLength));
+            } catch (Exception e) {
+                Log.e(FileSearchEngine.class.getName(), "Parallel search failed", e);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        // Each directory is a task, its entries are split into batches. Batches and subdirectories are forked and stolen by idle workers
+        @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+        private final class DirectoryTask extends RecursiveAction {
+            private final GsFileUtils.DirEntry _dir;
+            private final int _depth;
+            private final int _trimLength;
+
+            private DirectoryTask(final GsFileUtils.DirEntry dir, final int depth, final int trimLength) {
+                _dir = dir;
+                _depth = depth;
+                _trimLength = trimLength;
+            }
 
-            GsCollectionUtils.keySort(_result, f -> f.relPath.toLowerCase());
+            @Override
+            protected void compute() {
+                if (isStopped() || _depth >= _config.maxSearchDepth) {
+                    return;
+                }
 
-            return _result;
+                final List<GsFileUtils.DirEntry> entries = listDirectory(_dir);
+                if (entries != null) {
+                    new EntriesTask(entries, 0, entries.size(), _depth, _trimLength).compute();
+                }
+            }
         }
 
+        // Entries [from, to) of a directory. Halved until at most FILE_BATCH_SIZE entries are left, so flat folders are scanned in parallel too
+        @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+        private final class EntriesTask extends RecursiveAction {
+            private final List<GsFileUtils.DirEntry> _entries;
+            private final int _from, _to;
+            private final int _depth;
+            private final int _trimLength;
+
+            private EntriesTask(final List<GsFileUtils.DirEntry> entries, final int from, final int to, final int depth, final int trimLength) {
+                _entries = entries;
+                _from = from;
+                _to = to;
+                _depth = depth;
+                _trimLength = trimLength;
+            }
+
+            @Override
+            protected void compute() {
+                if (isStopped()) {
+                    return;
+                }
+
+                if (_to - _from > FILE_BATCH_SIZE) {
+                    final int mid = (_from + _to) >>> 1;
+                    invokeAll(new EntriesTask(_entries, _from, mid, _depth, _trimLength), new EntriesTask(_entries, mid, _to, _depth, _trimLength));
+                    return;
+                }
+
+                final List<DirectoryTask> subTasks = new ArrayList<>();
+                handleEntries(_entries, _from, _to, _trimLength, _depth, sub -> {
+                    _countPendingDirs.incrementAndGet();
+                    subTasks.add(new DirectoryTask(sub.first, sub.second, _trimLength));
+                });
+                publishProgress(_countPendingDirs.get(), _depth, _result.size(), _countCheckedFiles.get());
+
+                if (!subTasks.isEmpty()) {
+                    invokeAll(subTasks);
+                    _countPendingDirs.addAndGet(-subTasks.size());
+                }
+            }
+        }
+
+        private void addResult(final FitFile fitFile) {
+            if (_isResultLimitReached.get()) {
+                return;
+            }
+            synchronized (_result) {
+                if (_result.size() < _config.maxResultCount) {
+                    _result.add(fitFile);
+                } else {
+                    _isResultLimitReached.set(true);
+                }
+            }
+        }
+
+        // Thread safe, can be called from any worker
         private void handleDirectory(
-                final File dir,
+                final GsFileUtils.DirEntry dir,
                 final int trimSize,
                 final int depth,
-                final GsCallback.a1<Pair<File, Integer>> pushToStack
+                final GsCallback.a1<Pair<GsFileUtils.DirEntry, Integer>> pushToStack
         ) {
 
-            final File[] files = dir.listFiles();
+            final List<GsFileUtils.DirEntry> entries = listDirectory(dir);
+            if (entries != null) {
+                handleEntries(entries, 0, entries.size(), trimSize, depth, pushToStack);
+            }
+        }
+
+        // Null if the directory can't be listed
+        @Nullable
+        private List<GsFileUtils.DirEntry> listDirectory(final GsFileUtils.DirEntry dir) {
+            // Attributes come with the listing, no extra stat calls per entry
+            final List<GsFileUtils.DirEntry> entries = GsFileUtils.listDirEntries(dir.file);
 
-            if (files == null) {
-                return;
+            if (entries != null) {
+                _dirStamps.put(dir.file.getAbsolutePath(), dir.lastModified());
+                _countCheckedFiles.addAndGet(entries.size());
             }
+            return entries;
+        }
 
-            _countCheckedFiles += files.length;
+        // Thread safe, can be called from any worker
+        private void handleEntries(
+                final List<GsFileUtils.DirEntry> entries,
+                final int from,
+                final int to,
+                final int trimSize,
+                final int depth,
+                final GsCallback.a1<Pair<GsFileUtils.DirEntry, Integer>> pushToStack
+        ) {
+            final Worker worker = _worker.get();
 
-            for (final File file : files) {
+            for (final GsFileUtils.DirEntry entry : entries.subList(from, to)) {
 
-                if (isCancelled()) {
+                if (isStopped()) {
                     return;
                 }
 
-                final String name = _config.isCaseSensitiveQuery ? file.getName() : file.getName().toLowerCase();
+                final String name = _config.isCaseSensitiveQuery ? entry.getName() : entry.getName().toLowerCase();
 
-                if (!isIgnored(name)) {
+                if (!isIgnored(worker, name)) {
 
-                    final boolean isDir = file.isDirectory();
-                    final String relPath = file.getAbsolutePath().substring(trimSize);
+                    handleFile(worker, entry, name, entry.file.getAbsolutePath().substring(trimSize));
 
-                    final int beforeContentCount = _result.size();
-                    if (_config.isSearchInContent && !isDir && file.canRead() && GsFileUtils.isTextFile(file)) {
-                        getContentMatches(file, relPath, _config.isOnlyFirstContentMatch);
+                    // Only check for symbolic link directories
+                    if (entry.isDirectory() && depth < _config.maxSearchDepth && !entry.isSymbolicLink()) {
+                        pushToStack.callback(Pair.create(entry, depth + 1));
                     }
+                }
+            }
+        }
 
-                    // Search name if directory or not already included due to content
-                    if (isDir || _result.size() == beforeContentCount) {
-                        if (_config.isRegexQuery ? _matcher.reset(name).matches() : name.contains(_config.query)) {
-                            _result.add(new FitFile(file, relPath, isDir, null));
-                        }
-                    }
+        private void handleFile(final Worker worker, final GsFileUtils.DirEntry entry, final String name, final String relPath) {
+            final File file = entry.file;
+            final boolean isDir = entry.isDirectory();
+            worker.isFileTimedOut = false;
 
-                    // Only check for symbolic link directories
-                    if (isDir && depth < _config.maxSearchDepth && !GsFileUtils.isSymbolicLink(file)) {
-                        pushToStack.callback(Pair.create(file, depth + 1));
-                    }
+            // Unreadable files simply fail to open, no need to check beforehand
+            boolean isContentMatch = false;
+            if (_config.isSearchInContent && !isDir && GsFileUtils.isTextFile(file) && mayContainQuery(entry, relPath)) {
+                isContentMatch = getContentMatches(worker, file, relPath, _config.isOnlyFirstContentMatch);
+            }
+
+            // Search name if directory or not already included due to content
+            if ((isDir || !isContentMatch) && !worker.isFileTimedOut) {
+                if (_config.isRegexQuery ? isRegexNameMatch(worker, name, relPath) : name.contains(_config.query)) {
+                    addResult(new FitFile(file, relPath, isDir, null));
+                }
+            }
+        }
+
+        private boolean isRegexNameMatch(final Worker worker, final String name, final String relPath) {
+            try {
+                worker.budget.restart();
+                final boolean matches = worker.matcher.reset(worker.budget.guard(name)).matches();
+                worker.budget.check();
+                return matches;
+            } catch (GsRegexBudget.TimeoutException e) {
+                onRegexTimeout(worker, relPath);
+                return false;
+            }
+        }
+
+        private void onRegexTimeout(final Worker worker, final String relPath) {
+            worker.isFileTimedOut = true;
+            if (!isCancelled()) {
+                _timedOutFiles.add(relPath);
+            }
+        }
+
+        // Re-check the results of a broader query instead of walking the tree
+        private void searchCandidates(final List<FitFile> candidates) {
+            final Worker worker = _worker.get();
+            for (final FitFile candidate : candidates) {
+                if (isStopped()) {
+                    return;
+                }
+                final File file = candidate.file;
+                if (file.exists()) {
+                    final String name = _config.isCaseSensitiveQuery ? file.getName() : file.getName().toLowerCase();
+                    handleFile(worker, GsFileUtils.DirEntry.of(file), name, candidate.relPath);
                 }
+                _countCheckedFiles.incrementAndGet();
+                publishProgress(0, 0, _result.size(), _countCheckedFiles.get());
             }
         }
 
@@ -266,6 +557,31 @@ public class FileSearchEngine {
                 // _currentQueueLength, _currentSearchDepth, _result.size(), _countCheckedFiles
                 _snackBar.setText("⭕" + values[2] + " || \uD83D\uDD0D" + values[0] + " || ⬇️ " + values[1] + " || \uD83D\uDC41️" + values[3] + "\n" + _config.query);
             }
+            deliverBatch(false);
+        }
+
+        // Hand new results to the batch callback. The first hit is delivered right away, everything else throttled
+        private void deliverBatch(final boolean force) {
+            if (_batchCallback == null) {
+                return;
+            }
+
+            final long now = System.currentTimeMillis();
+            final List<FitFile> batch;
+            synchronized (_result) {
+                final boolean isFirstHit = _countDelivered == 0 && !_result.isEmpty();
+                if (!force && !isFirstHit && now - _lastBatchTime < BATCH_INTERVAL_MS) {
+                    return;
+                }
+                batch = new ArrayList<>(_result.subList(_countDelivered, _result.size()));
+            }
+
+            _countDelivered += batch.size();
+            _lastBatchTime = now;
+            try {
+                _batchCallback.callback(batch, _countCheckedFiles.get());
+            } catch (Exception ignored) {
+            }
         }
 
         @Override
@@ -275,6 +591,14 @@ public class FileSearchEngine {
             if (_snackBar != null) {
                 _snackBar.dismiss();
             }
+            deliverBatch(true);
+            final Activity a = activity.get().get();
+            if (a != null && !_timedOutFiles.isEmpty()) {
+                // Name a few of the files, so the user knows where results may be missing
+                final List<String> files = new ArrayList<>(_timedOutFiles);
+                final String names = TextUtils.join(", ", files.subList(0, Math.min(files.size(), 3))) + (files.size() > 3 ? ", …" : "");
+                Toast.makeText(a, a.getString(R.string.regex_took_too_long_in_files_witharg, files.size()) + ":\n" + names, Toast.LENGTH_LONG).show();
+            }
             if (!isCancelled() && _callback != null) {
                 try {
                     _callback.callback(ret);
@@ -287,9 +611,12 @@ public class FileSearchEngine {
         protected void onCancelled() {
             super.onCancelled();
             FileSearchEngine.isSearchExecuting.set(false);
+            if (_snackBar != null) {
+                _snackBar.dismiss();
+            }
         }
 
-        private void splitRegexExactFiles(final List<String> list, final Set<String> exactList, final Set<Matcher> regexList) {
+        private void splitRegexExactFiles(final List<String> list, final Set<String> exactList, final Set<Pattern> regexList) {
             for (String pattern : (list != null ? list : new ArrayList<String>())) {
                 if (pattern.isEmpty()) {
                     continue;
@@ -307,7 +634,7 @@ public class FileSearchEngine {
                 } else {
                     pattern = pattern.replaceAll("(?<![.])[*]", ".*");
                     try {
-                        regexList.add(Pattern.compile(pattern).matcher(""));
+                        regexList.add(Pattern.compile(pattern));
                     } catch (Exception ex) {
                         final Activity a = activity.get().get();
                         if (a != null) {
@@ -320,15 +647,18 @@ public class FileSearchEngine {
         }
 
         // Match line and return preview string. Preview will be null if no match found
-        private String matchLine(final String line) {
+        private String matchLine(final Worker worker, final String line) {
             final String preparedLine = _config.isCaseSensitiveQuery ? line : line.toLowerCase();
 
             int start = -1, end = -1;
             if (_config.isRegexQuery) {
-                if (_matcher.reset(preparedLine).find()) {
-                    start = _matcher.start();
-                    end = _matcher.end();
+                worker.budget.restart();
+                if (worker.matcher.reset(worker.budget.guard(preparedLine)).find()) {
+                    start = worker.matcher.start();
+                    end = worker.matcher.end();
                 }
+                // Android's engine can't be interrupted during a find, at least the rest of the file is skipped
+                worker.budget.check();
             } else {
                 start = preparedLine.indexOf(_config.query);
                 if (start >= 0) {
@@ -338,41 +668,79 @@ public class FileSearchEngine {
 
             // Preview is based on original line
             if (start >= 0 && end <= line.length()) {
-                if (!_config.isShowMatchPreview) {
-                    return "";
-                }
-                if (line.length() < maxPreviewLength) {
-                    return line;
-                } else {
-                    int offset = (maxPreviewLength - (end - start)) / 2;
-                    int subStart = Math.max(start - offset, 0);
-                    int subEnd = Math.min(end + offset, line.length());
-                    return String.format("… %s …", line.substring(subStart, subEnd));
-                }
+                return makePreview(line, start, end);
             }
             return null;
         }
 
-        private void getContentMatches(final File file, final String relPath, final boolean isFirstMatchOnly) {
+        private String makePreview(final String line, final int start, final int end) {
+            if (!_config.isShowMatchPreview) {
+                return "";
+            }
+            if (line.length() < maxPreviewLength) {
+                return line;
+            } else {
+                int offset = (maxPreviewLength - (end - start)) / 2;
+                int subStart = Math.max(start - offset, 0);
+                int subEnd = Math.min(end + offset, line.length());
+                return String.format("… %s …", line.substring(subStart, subEnd));
+            }
+        }
+
+        // Literal queries are searched on the raw char buffer, strings are only created for matching lines
+        private List<Pair<String, Integer>> getLiteralContentMatches(final LiteralMatcher literal, final File file, final boolean isFirstMatchOnly) {
+            final List<Pair<String, Integer>> contentMatches = new ArrayList<>();
+
+            try (final InputStreamReader reader = new InputStreamReader(getInputStream(file))) {
+                literal.findLines(reader, (buf, lineStart, lineEnd, matchStart, lineNumber) -> {
+                    final String preview;
+                    if (_config.isShowMatchPreview) {
+                        final int start = matchStart - lineStart;
+                        preview = makePreview(new String(buf, lineStart, lineEnd - lineStart), start, start + literal.length());
+                    } else {
+                        preview = "";
+                    }
+                    contentMatches.add(new Pair<>(preview, lineNumber));
+                    return !isFirstMatchOnly && !isStopped();
+                });
+            } catch (Exception ignored) {
+            }
+
+            return contentMatches.isEmpty() ? null : contentMatches;
+        }
+
+        // Returns true if the file was added to the results due to content matches
+        private boolean getContentMatches(final Worker worker, final File file, final String relPath, final boolean isFirstMatchOnly) {
+            final List<Pair<String, Integer>> contentMatches = worker.literal != null
+                    ? getLiteralContentMatches(worker.literal, file, isFirstMatchOnly)
+                    : getLineContentMatches(worker, file, relPath, isFirstMatchOnly);
+
+            // Only published once complete, other threads must not see a growing list
+            if (contentMatches != null) {
+                addResult(new FitFile(file, relPath, false, contentMatches));
+                return true;
+            }
+            return false;
+        }
+
+        private List<Pair<String, Integer>> getLineContentMatches(final Worker worker, final File file, final String relPath, final boolean isFirstMatchOnly) {
             List<Pair<String, Integer>> contentMatches = null;
 
             try (final BufferedReader br = new BufferedReader(new InputStreamReader(getInputStream(file)))) {
                 int lineNumber = 0;
                 for (String line; (line = br.readLine()) != null; ) {
-                    if (isCancelled()) {
+                    if (isStopped()) {
                         break;
                     }
-                    line = matchLine(line);
+                    line = matchLine(worker, line);
                     if (line != null) {
 
                         // We lazily create the match list
                         // And therefore avoid creating it for _every_ file
                         if (contentMatches == null) {
                             contentMatches = new ArrayList<>();
-                            _result.add(new FitFile(file, relPath, false, contentMatches));
                         }
 
-                        // Note that content matches is only created on the first find
                         contentMatches.add(new Pair<>(line, lineNumber));
 
                         if (isFirstMatchOnly) {
@@ -381,18 +749,31 @@ public class FileSearchEngine {
                     }
                     lineNumber++;
                 }
+            } catch (GsRegexBudget.TimeoutException e) {
+                // Keep what was found so far, the name is not matched anymore
+                onRegexTimeout(worker, relPath);
             } catch (Exception ignored) {
             }
+
+            return contentMatches;
+        }
+
+        // Encrypted files are never indexed, their content must not end up on disk in any form
+        private boolean mayContainQuery(final GsFileUtils.DirEntry entry, final String relPath) {
+            if (_index == null || isEncryptedFile(entry.file)) {
+                return true;
+            }
+            return _index.mayContain(entry.file, relPath, entry.lastModified(), entry.length(), _queryTrigrams);
         }
 
-        private boolean isIgnored(final String dirName) {
+        private boolean isIgnored(final Worker worker, final String dirName) {
             for (final String pattern : _ignoredExactDirs) {
                 if (dirName.equals(pattern)) {
                     return true;
                 }
             }
 
-            for (final Matcher matcher : _ignoredRegexDirs) {
+            for (final Matcher matcher : worker.ignoredMatchers) {
                 if (matcher.reset(dirName).matches()) {
                     return true;
                 }
@@ -400,10 +781,17 @@ public class FileSearchEngine {
             return false;
         }
 
-        private InputStream getInputStream(File file) throws FileNotFoundException {
+        // Encrypted files are decrypted while reading. On Android the cipher buffers the whole file
+        // until the authentication tag is verified, see JavaPasswordbasedCryption.getDecryptingStream
+        private InputStream getInputStream(File file) throws IOException {
             if (isEncryptedFile(file)) {
-                final byte[] encryptedContext = GsFileUtils.readCloseStreamWithSize(new FileInputStream(file), (int) file.length());
-                return new ByteArrayInputStream(JavaPasswordbasedCryption.getDecryptedText(encryptedContext, _config.password.clone()).getBytes(StandardCharsets.UTF_8));
+                final InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    return JavaPasswordbasedCryption.getDecryptingStream(in, _config.password.clone());
+                } catch (IOException | RuntimeException e) {
+                    in.close();
+                    throw e;
+                }
             } else {
                 return new FileInputStream(file);
             }
@@ -0,0 +1,319 @@
+package net.gsantner.markor.frontend.filesearch;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.gsantner.opoc.util.GsFileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent trigram index of the text files below a folder.
+ * <p>
+ * For every file a bloom filter of the case folded character trigrams is stored, together with
+ * mtime and size of the indexed version. A file can only contain a query if all trigrams of the
+ * query are in its filter, so the index is used to skip reading files which can not match.
+ * Entries are refreshed lazily whenever mtime or size changed. Matches still have to be verified.
+ * <p>
+ * All methods are thread safe.
+ */
+@SuppressWarnings("WeakerAccess")
+public class FileSearchIndex {
+    private static final String INDEX_FOLDER = ".search-index";
+    private static final int MAGIC = 0x4D4B5349; // MKSI
+    private static final int VERSION = 1;
+
+    // Bloom filter size bounds in bits, ~8 bits per trigram gives a few percent false positives
+    private static final int MIN_BITS = 256;
+    private static final int MAX_BITS = 1 << 16;
+    private static final int BITS_PER_TRIGRAM = 8;
+
+    // Indexes are kept in memory between searches
+    private static final Map<String, FileSearchIndex> _loaded = new HashMap<>();
+
+    private static class Entry {
+        final long modified;
+        final long size;
+        final long[] bloom;
+
+        Entry(final long modified, final long size, final long[] bloom) {
+            this.modified = modified;
+            this.size = size;
+            this.bloom = bloom;
+        }
+    }
+
+    private final File _indexFile;
+    private final ConcurrentHashMap<String, Entry> _entries = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> _seen = new ConcurrentHashMap<>();
+    private volatile boolean _dirty = false;
+
+    private FileSearchIndex(final File indexFile) {
+        _indexFile = indexFile;
+    }
+
+    /**
+     * Get the (possibly already loaded) index for a root folder. Loading happens from disk and
+     * should therefore not be done on the main thread.
+     */
+    public static FileSearchIndex get(final Context context, final File root) {
+        final File indexFile = getIndexFile(context, root);
+        synchronized (_loaded) {
+            FileSearchIndex index = _loaded.get(indexFile.getAbsolutePath());
+            if (index == null) {
+                index = new FileSearchIndex(indexFile);
+                index.load();
+                _loaded.put(indexFile.getAbsolutePath(), index);
+            }
+            return index;
+        }
+    }
+
+    public static File getIndexFile(final Context context, final File root) {
+        final String path = root.getAbsolutePath();
+        final String name = Long.toHexString(GsFileUtils.crc32(path)) + "-" + Integer.toHexString(path.hashCode()) + ".idx";
+        return new File(new File(context.getFilesDir(), INDEX_FOLDER), name);
+    }
+
+    /**
+     * Trigrams of a query for {@link #mayContain(File, String, int[])}.
+     *
+     * @return null if the query can not be used with the index (too short, or characters for which case folding is not per char)
+     */
+    @Nullable
+    public static int[] queryTrigrams(final String query) {
+        if (query == null || query.length() < 3) {
+            return null;
+        }
+        for (int i = 0; i < query.length(); i++) {
+            final char c = query.charAt(i);
+            if (Character.isSurrogate(c) || Character.getType(c) == Character.NON_SPACING_MARK) {
+                return null;
+            }
+        }
+
+        final int[] hashes = new int[query.length() - 2];
+        int a = fold(query.charAt(0)), b = fold(query.charAt(1));
+        for (int i = 2; i < query.length(); i++) {
+            final int c = fold(query.charAt(i));
+            hashes[i - 2] = trigram(a, b, c);
+            a = b;
+            b = c;
+        }
+        return hashes;
+    }
+
+    /**
+     * Check if a file may contain all given trigrams. Outdated or missing entries are (re)indexed first.
+     *
+     * @return false only if the file definitely does not contain the query
+     */
+    public boolean mayContain(final File file, final String relPath, final int[] trigrams) {
+        return mayContain(file, relPath, file.lastModified(), file.length(), trigrams);
+    }
+
+    /**
+     * Same as {@link #mayContain(File, String, int[])}, with mtime and size already known from the listing
+     */
+    public boolean mayContain(final File file, final String relPath, final long modified, final long size, final int[] trigrams) {
+        _seen.put(relPath, Boolean.TRUE);
+
+        Entry entry = _entries.get(relPath);
+        if (entry == null || entry.modified != modified || entry.size != size) {
+            entry = indexFile(file, modified, size);
+            if (entry == null) {
+                _entries.remove(relPath);
+                return true;
+            }
+            _entries.put(relPath, entry);
+            _dirty = true;
+        }
+
+        for (final int t : trigrams) {
+            if (!bloomContains(entry.bloom, t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop entries of files which were not seen in this pass and don't exist anymore, then write the
+     * index to disk if anything changed.
+     */
+    public synchronized void save(final File root) {
+        for (final Iterator<String> it = _entries.keySet().iterator(); it.hasNext(); ) {
+            final String relPath = it.next();
+            if (!_seen.containsKey(relPath) && !new File(root, relPath).exists()) {
+                it.remove();
+                _dirty = true;
+            }
+        }
+        _seen.clear();
+
+        if (!_dirty) {
+            return;
+        }
+
+        final File parent = _indexFile.getParentFile();
+        final File temp = new File(_indexFile.getAbsolutePath() + ".tmp");
+        if (parent == null || (!parent.exists() && !parent.mkdirs())) {
+            return;
+        }
+
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            final Map<String, Entry> snapshot = new HashMap<>(_entries);
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(snapshot.size());
+            for (final Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                final Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.modified);
+                out.writeLong(entry.size);
+                out.writeShort(entry.bloom.length);
+                for (final long word : entry.bloom) {
+                    out.writeLong(word);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(FileSearchIndex.class.getName(), "Could not write search index " + _indexFile, e);
+            temp.delete();
+            return;
+        }
+
+        if (temp.renameTo(_indexFile)) {
+            _dirty = false;
+        } else {
+            temp.delete();
+        }
+    }
+
+    private void load() {
+        if (!_indexFile.exists()) {
+            return;
+        }
+
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_indexFile)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String relPath = in.readUTF();
+                final long modified = in.readLong();
+                final long size = in.readLong();
+                final long[] bloom = new long[in.readUnsignedShort()];
+                for (int j = 0; j < bloom.length; j++) {
+                    bloom[j] = in.readLong();
+                }
+                _entries.put(relPath, new Entry(modified, size, bloom));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or truncated, start over
+            Log.w(FileSearchIndex.class.getName(), "Discarding search index " + _indexFile, e);
+            _entries.clear();
+            _dirty = true;
+        }
+    }
+
+    // Streams the file once, collecting the distinct trigram hashes
+    @Nullable
+    private static Entry indexFile(final File file, final long modified, final long size) {
+        int[] hashes = new int[1024];
+        int count = 0;
+
+        try (final Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            final char[] buf = new char[8192];
+            int a = -1, b = -1;
+            for (int n; (n = reader.read(buf)) > 0; ) {
+                for (int i = 0; i < n; i++) {
+                    final int c = fold(buf[i]);
+                    if (a >= 0) {
+                        if (count == hashes.length) {
+                            // Dedupe before growing, text repeats trigrams a lot
+                            count = sortUnique(hashes, count);
+                            if (count > hashes.length / 2) {
+                                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+                            }
+                        }
+                        hashes[count++] = trigram(a, b, c);
+                    }
+                    a = b;
+                    b = c;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        count = sortUnique(hashes, count);
+        final int bits = Math.max(MIN_BITS, Math.min(MAX_BITS, Integer.highestOneBit(Math.max(1, count * BITS_PER_TRIGRAM) - 1) << 1));
+        final long[] bloom = new long[bits / 64];
+        for (int i = 0; i < count; i++) {
+            bloomAdd(bloom, hashes[i]);
+        }
+        return new Entry(modified, size, bloom);
+    }
+
+    private static int sortUnique(final int[] values, final int count) {
+        Arrays.sort(values, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || values[unique - 1] != values[i]) {
+                values[unique++] = values[i];
+            }
+        }
+        return unique;
+    }
+
+    // Same folding as the literal search, so every literal match is also an index match
+    private static int fold(final char c) {
+        return LiteralMatcher.fold(c);
+    }
+
+    private static int trigram(final int a, final int b, final int c) {
+        int h = (a * 0x9E3779B1) ^ (b * 0x85EBCA77) ^ (c * 0xC2B2AE3D);
+        h ^= h >>> 15;
+        h *= 0x2C1B3C6D;
+        return h ^ (h >>> 12);
+    }
+
+    // Three probes derived from one hash (Kirsch-Mitzenmacher)
+    private static void bloomAdd(@NonNull final long[] bloom, final int hash) {
+        final int mask = bloom.length * 64 - 1, h2 = (hash >>> 16) | 1;
+        for (int i = 0; i < 3; i++) {
+            final int bit = (hash + i * h2) & mask;
+            bloom[bit >>> 6] |= 1L << (bit & 63);
+        }
+    }
+
+    private static boolean bloomContains(@NonNull final long[] bloom, final int hash) {
+        final int mask = bloom.length * 64 - 1, h2 = (hash >>> 16) | 1;
+        for (int i = 0; i < 3; i++) {
+            final int bit = (hash + i * h2) & mask;
+            if ((bloom[bit >>> 6] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
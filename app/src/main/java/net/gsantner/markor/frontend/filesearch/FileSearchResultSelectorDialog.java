@@ -3,15 +3,17 @@ package net.gsantner.markor.frontend.filesearch;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.Context;
-import android.database.DataSetObserver;
+import android.content.DialogInterface;
 import android.text.Editable;
 import android.util.Pair;
+import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.EditText;
+import android.widget.BaseExpandableListAdapter;
 import android.widget.ExpandableListAdapter;
 import android.widget.ExpandableListView;
 import android.widget.LinearLayout;
@@ -23,6 +25,7 @@ import net.gsantner.markor.R;
 import net.gsantner.markor.frontend.MarkorDialogFactory;
 import net.gsantner.markor.frontend.filesearch.FileSearchEngine.FitFile;
 import net.gsantner.opoc.frontend.GsSearchOrCustomTextDialog;
+import net.gsantner.opoc.util.GsContextUtils;
 import net.gsantner.opoc.wrapper.GsCallback;
 import net.gsantner.opoc.wrapper.GsTextWatcherAdapter;
 
@@ -47,95 +50,173 @@ public class FileSearchResultSelectorDialog {
             final List<FileSearchEngine.FitFile> searchResults,
             final GsCallback.a3<File, Integer, Boolean> callback
     ) {
-        final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(activity, R.style.Theme_AppCompat_DayNight_Dialog_Rounded);
+        final ResultStream stream = new ResultStream(activity, callback);
+        stream.finish(searchResults);
+        stream.show();
+    }
+
+    /**
+     * Results dialog which is filled while the search is still running.
+     * Results are inserted in {@link FileSearchEngine#RESULT_ORDER}, so entries don't jump around.
+     * All methods must be called on the main thread.
+     */
+    public static class ResultStream {
+        private final Activity _activity;
+        private final AlertDialog _dialog;
+        private final View _searchLayout;
+        private final TextView _statusView;
+        private final ExpandableSearchResultsListAdapter _adapter;
+        private final List<FitFile> _results = new ArrayList<>();
+        private String _filterText = "";
+        private boolean _isFinished = false;
+
+        /**
+         * @param activity Activity to use
+         * @param callback Same as in {@link #showDialog(Activity, List, GsCallback.a3)}
+         */
+        public ResultStream(final Activity activity, final GsCallback.a3<File, Integer, Boolean> callback) {
+            _activity = activity;
+            final AlertDialog.Builder dialogBuilder = new AlertDialog.Builder(activity, R.style.Theme_AppCompat_DayNight_Dialog_Rounded);
+
+            final LinearLayout dialogLayout = new LinearLayout(activity);
+            dialogLayout.setOrientation(LinearLayout.VERTICAL);
+
+            final ExpandableListView expandableListView = new ExpandableListView(activity);
+
+            final GsSearchOrCustomTextDialog.DialogOptions opts = MarkorDialogFactory.baseConf(activity);
+            opts.searchHintText = R.string.search;
+            _searchLayout = GsSearchOrCustomTextDialog.makeSearchView(activity, opts);
+            final EditText searchEditText = _searchLayout.findViewWithTag("EDIT");
+            dialogLayout.addView(_searchLayout, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+
+            final int dp16px = GsContextUtils.instance.convertDpToPx(activity, 16);
+            _statusView = new TextView(activity);
+            _statusView.setPadding(dp16px, dp16px / 4, dp16px, dp16px / 4);
+            dialogLayout.addView(_statusView, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+
+            // List filling
+            _adapter = new ExpandableSearchResultsListAdapter(activity);
+            searchEditText.addTextChangedListener(new GsTextWatcherAdapter() {
+                @Override
+                public void afterTextChanged(final Editable arg0) {
+                    _filterText = searchEditText.getText() == null ? "" : searchEditText.getText().toString();
+                    _adapter.setData(filter(_results, _filterText));
+                }
+            });
+
+            expandableListView.setGroupIndicator(null);
+            expandableListView.setAdapter(_adapter);
+            dialogLayout.addView(expandableListView);
+
+            // Configure dialog
+            _dialog = dialogBuilder
+                    .setView(dialogLayout)
+                    .setTitle(R.string.select)
+                    .setOnCancelListener(null)
+                    .setNegativeButton(android.R.string.cancel, (dialogInterface, i) -> dialogInterface.dismiss())
+                    .create();
+
+            expandableListView.setOnGroupClickListener((parent, view, groupPosition, id) -> {
+                final FitFile groupItem = (FitFile) parent.getExpandableListAdapter().getGroup(groupPosition);
+                if (groupItem.children.isEmpty()) {
+                    _dialog.dismiss();
+                    callback.callback(groupItem.file, null, false);
+                }
+                return false;
+            });
+
+            final GsCallback.b5<ExpandableListView, View, Integer, Integer, Long> onChildClick = (parent, view, groupPos, childPos, id) -> {
+                final ExpandableListAdapter _adapter = parent.getExpandableListAdapter();
+                final FitFile groupItem = (FitFile) _adapter.getGroup(groupPos);
+                final Pair<String, Integer> childItem = (Pair<String, Integer>) _adapter.getChild(groupPos, childPos);
+                if (childItem != null && childItem.second != null && childItem.second >= 0) {
+                    _dialog.dismiss();
+                    callback.callback(groupItem.file, childItem.second, false);
+                }
+                return false;
+            };
+
+            expandableListView.setOnChildClickListener(onChildClick::callback);
+
+            // Long click on file name takes us to the file's location
+            expandableListView.setOnItemLongClickListener((parent, view, position, id) -> {
+                try {
+                    final long packed = expandableListView.getExpandableListPosition(position);
+                    if (ExpandableListView.getPackedPositionType(packed) == ExpandableListView.PACKED_POSITION_TYPE_GROUP) {
+                        final int group = ExpandableListView.getPackedPositionGroup(packed);
+                        final File file = ((FitFile) expandableListView.getExpandableListAdapter().getGroup(group)).file;
+                        _dialog.dismiss();
+                        callback.callback(file, null, true);
+                    } else {
+                        final int groupPos = ExpandableListView.getPackedPositionGroup(packed);
+                        final int childPos = ExpandableListView.getPackedPositionChild(packed);
+                        onChildClick.callback(expandableListView, view, groupPos, childPos, id);
+                    }
+                } catch (ClassCastException | NullPointerException ignored) {
+                }
+                return true;
+            });
+        }
 
-        final LinearLayout dialogLayout = new LinearLayout(activity);
-        dialogLayout.setOrientation(LinearLayout.VERTICAL);
+        public void show() {
+            _dialog.show();
 
-        final ExpandableListView expandableListView = new ExpandableListView(activity);
+            final Window window = _dialog.getWindow();
+            if (window != null) {
+                window.setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_ADJUST_RESIZE | WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN);
+                window.setLayout(WindowManager.LayoutParams.MATCH_PARENT, WindowManager.LayoutParams.WRAP_CONTENT);
+            }
+        }
 
-        final GsSearchOrCustomTextDialog.DialogOptions opts = MarkorDialogFactory.baseConf(activity);
-        opts.searchHintText = R.string.search;
-        final View searchLayout = GsSearchOrCustomTextDialog.makeSearchView(activity, opts);
-        final EditText searchEditText = searchLayout.findViewWithTag("EDIT");
+        public void setOnDismissListener(final DialogInterface.OnDismissListener listener) {
+            _dialog.setOnDismissListener(listener);
+        }
 
-        if (!searchResults.isEmpty()) {
-            dialogLayout.addView(searchLayout, new LinearLayout.LayoutParams(LinearLayout.LayoutParams.MATCH_PARENT, LinearLayout.LayoutParams.WRAP_CONTENT));
+        public boolean isShowing() {
+            return _dialog.isShowing();
         }
 
-        // List filling
-        final List<FitFile> groupItemsData = filter(searchResults, "");
-        final ExpandableSearchResultsListAdapter adapter = new ExpandableSearchResultsListAdapter(activity, groupItemsData);
-        searchEditText.addTextChangedListener(new GsTextWatcherAdapter() {
-            @Override
-            public void afterTextChanged(final Editable arg0) {
-                final String filterText = searchEditText.getText() == null ? "" : searchEditText.getText().toString();
-                final List<FitFile> filteredGroups = filter(searchResults, filterText);
-                final ExpandableSearchResultsListAdapter adapter = new ExpandableSearchResultsListAdapter(activity, filteredGroups);
-                expandableListView.setAdapter(adapter);
+        /**
+         * Add a batch of (unsorted) results while the search is running
+         */
+        public void addResults(final List<FitFile> batch, final int countScanned) {
+            if (_isFinished) {
+                return;
             }
-        });
-
-        expandableListView.setGroupIndicator(null);
-        expandableListView.setAdapter(adapter);
-        dialogLayout.addView(expandableListView);
-
-        // Configure dialog
-        final AlertDialog dialog = dialogBuilder
-                .setView(dialogLayout)
-                .setTitle(R.string.select)
-                .setOnCancelListener(null)
-                .setMessage(searchResults.isEmpty() ? "     ¯\\_(ツ)_/¯     " : null)
-                .setNegativeButton(android.R.string.cancel, (dialogInterface, i) -> dialogInterface.dismiss())
-                .create();
-
-        expandableListView.setOnGroupClickListener((parent, view, groupPosition, id) -> {
-            final FitFile groupItem = (FitFile) parent.getExpandableListAdapter().getGroup(groupPosition);
-            if (groupItem.children.isEmpty()) {
-                dialog.dismiss();
-                callback.callback(groupItem.file, null, false);
+
+            for (final FitFile fitFile : batch) {
+                insertSorted(_results, fitFile);
             }
-            return false;
-        });
-
-        final GsCallback.b5<ExpandableListView, View, Integer, Integer, Long> onChildClick = (parent, view, groupPos, childPos, id) -> {
-            final ExpandableListAdapter _adapter = parent.getExpandableListAdapter();
-            final FitFile groupItem = (FitFile) _adapter.getGroup(groupPos);
-            final Pair<String, Integer> childItem = (Pair<String, Integer>) _adapter.getChild(groupPos, childPos);
-            if (childItem != null && childItem.second != null && childItem.second >= 0) {
-                dialog.dismiss();
-                callback.callback(groupItem.file, childItem.second, false);
+            for (final FitFile fitFile : filter(batch, _filterText)) {
+                insertSorted(_adapter.data, fitFile);
             }
-            return false;
-        };
-
-        expandableListView.setOnChildClickListener(onChildClick::callback);
-
-        // Long click on file name takes us to the file's location
-        expandableListView.setOnItemLongClickListener((parent, view, position, id) -> {
-            try {
-                final long packed = expandableListView.getExpandableListPosition(position);
-                if (ExpandableListView.getPackedPositionType(packed) == ExpandableListView.PACKED_POSITION_TYPE_GROUP) {
-                    final int group = ExpandableListView.getPackedPositionGroup(packed);
-                    final File file = ((FitFile) expandableListView.getExpandableListAdapter().getGroup(group)).file;
-                    dialog.dismiss();
-                    callback.callback(file, null, true);
-                } else {
-                    final int groupPos = ExpandableListView.getPackedPositionGroup(packed);
-                    final int childPos = ExpandableListView.getPackedPositionChild(packed);
-                    onChildClick.callback(expandableListView, view, groupPos, childPos, id);
-                }
-            } catch (ClassCastException | NullPointerException ignored) {
+            if (!batch.isEmpty()) {
+                _adapter.notifyDataSetChanged();
             }
-            return true;
-        });
+            _statusView.setText(_activity.getString(R.string.files_scanned_witharg, countScanned));
+        }
 
-        dialog.show();
+        /**
+         * Replace the results with the final, sorted ones
+         */
+        public void finish(final List<FitFile> results) {
+            _isFinished = true;
+            _results.clear();
+            _results.addAll(results);
+            _adapter.setData(filter(_results, _filterText));
+
+            if (_results.isEmpty()) {
+                _searchLayout.setVisibility(View.GONE);
+                _statusView.setGravity(Gravity.CENTER);
+                _statusView.setText("     ¯\\_(ツ)_/¯     ");
+            } else {
+                _statusView.setVisibility(View.GONE);
+            }
+        }
 
-        final Window window = dialog.getWindow();
-        if (window != null) {
-            window.setSoftInputMode(WindowManager.LayoutParams.SOFT_INPUT_ADJUST_RESIZE | WindowManager.LayoutParams.SOFT_INPUT_STATE_HIDDEN);
-            window.setLayout(WindowManager.LayoutParams.MATCH_PARENT, WindowManager.LayoutParams.WRAP_CONTENT);
+        private static void insertSorted(final List<FitFile> list, final FitFile fitFile) {
+            final int index = Collections.binarySearch(list, fitFile, FileSearchEngine.RESULT_ORDER);
+            list.add(index < 0 ? -index - 1 : index, fitFile);
         }
     }
 
@@ -164,13 +245,18 @@ public class FileSearchResultSelectorDialog {
         return groupItemsData;
     }
 
-    private static class ExpandableSearchResultsListAdapter implements ExpandableListAdapter {
-        public final List<FitFile> data;
+    private static class ExpandableSearchResultsListAdapter extends BaseExpandableListAdapter {
+        public final List<FitFile> data = new ArrayList<>();
         private final Context _context;
 
-        public ExpandableSearchResultsListAdapter(Context context, List<FitFile> groupItems) {
+        public ExpandableSearchResultsListAdapter(Context context) {
             _context = context;
-            data = Collections.unmodifiableList(groupItems);
+        }
+
+        public void setData(final List<FitFile> groupItems) {
+            data.clear();
+            data.addAll(groupItems);
+            notifyDataSetChanged();
         }
 
         @Override
@@ -193,9 +279,10 @@ public class FileSearchResultSelectorDialog {
             return data.get(groupPosition).children.get(childPosition);
         }
 
+        // Stable ids keep groups expanded while results are inserted
         @Override
         public long getGroupId(int groupPosition) {
-            return groupPosition;
+            return data.get(groupPosition).relPath.hashCode();
         }
 
         @Override
@@ -247,45 +334,9 @@ public class FileSearchResultSelectorDialog {
             return true;
         }
 
-        @Override
-        public boolean areAllItemsEnabled() {
-            return true;
-        }
-
-        @Override
-        public boolean isEmpty() {
-            return false;
-        }
-
-        @Override
-        public void onGroupExpanded(int groupPosition) {
-        }
-
-        @Override
-        public void onGroupCollapsed(int groupPosition) {
-        }
-
-        @Override
-        public long getCombinedChildId(long groupPosition, long childPosition) {
-            return 0;
-        }
-
-        @Override
-        public long getCombinedGroupId(long groupPosition) {
-            return 0;
-        }
-
         @Override
         public boolean hasStableIds() {
-            return false;
-        }
-
-        @Override
-        public void registerDataSetObserver(DataSetObserver dataSetObserver) {
-        }
-
-        @Override
-        public void unregisterDataSetObserver(DataSetObserver dataSetObserver) {
+            return true;
         }
     }
 }
@@ -0,0 +1,104 @@
+package net.gsantner.markor.frontend.filesearch;
+
+/**
+ * Subsequence matcher for file paths, in the spirit of common "quick open" finders.
+ * <p>
+ * All chars of the query have to appear in the path in order. Among the matches, the rightmost
+ * shortest window is scored, so the file name wins over parent folders. Matches at word
+ * boundaries, at the start of the file name and runs of consecutive chars score higher, gaps
+ * cost a little. Paths and queries are compared as case folded keys from {@link #makeKey(CharSequence)},
+ * which are computed once per path, not per query.
+ */
+public class FuzzyMatcher {
+    public static final int NO_MATCH = Integer.MIN_VALUE;
+
+    private static final int SCORE_MATCH = 16;
+    private static final int BONUS_BOUNDARY = 8;
+    private static final int BONUS_NAME_START = 8;
+    private static final int BONUS_CONSECUTIVE = 6;
+    private static final int BONUS_IN_NAME = 2;
+    private static final int PENALTY_GAP_START = 3;
+    private static final int PENALTY_GAP_MAX = 12;
+
+    public static char[] makeKey(final CharSequence text) {
+        final char[] key = new char[text.length()];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = LiteralMatcher.fold(text.charAt(i));
+        }
+        return key;
+    }
+
+    /**
+     * Start of the file name in a key, i.e. the position after the last path separator
+     */
+    public static int nameStart(final char[] key) {
+        for (int i = key.length - 1; i >= 0; i--) {
+            if (key[i] == '/') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param query     Key of the query, see {@link #makeKey(CharSequence)}
+     * @param key       Key of the path
+     * @param nameStart See {@link #nameStart(char[])}
+     * @return Score, higher is better, or {@link #NO_MATCH}
+     */
+    public static int score(final char[] query, final char[] key, final int nameStart) {
+        if (query.length == 0) {
+            return 0;
+        }
+        if (query.length > key.length) {
+            return NO_MATCH;
+        }
+
+        // Backwards to find the start of the rightmost match, this also rejects non-matches
+        int qi = query.length - 1, start = -1;
+        for (int i = key.length - 1; i >= 0; i--) {
+            if (key[i] == query[qi] && --qi < 0) {
+                start = i;
+                break;
+            }
+        }
+        if (start < 0) {
+            return NO_MATCH;
+        }
+
+        // Forwards from there, which yields the shortest window
+        int score = 0, prev = -1;
+        qi = 0;
+        for (int i = start; qi < query.length; i++) {
+            if (key[i] != query[qi]) {
+                continue;
+            }
+
+            score += SCORE_MATCH;
+            if (i == nameStart) {
+                score += BONUS_NAME_START + BONUS_BOUNDARY;
+            } else if (i == 0 || isBoundary(key[i - 1])) {
+                score += BONUS_BOUNDARY;
+            }
+            if (i >= nameStart) {
+                score += BONUS_IN_NAME;
+            }
+
+            if (prev >= 0) {
+                final int gap = i - prev - 1;
+                if (gap == 0) {
+                    score += BONUS_CONSECUTIVE;
+                } else {
+                    score -= PENALTY_GAP_START + Math.min(gap, PENALTY_GAP_MAX);
+                }
+            }
+            prev = i;
+            qi++;
+        }
+        return score;
+    }
+
+    private static boolean isBoundary(final char c) {
+        return c == '/' || c == '_' || c == '-' || c == '.' || c == ' ';
+    }
+}
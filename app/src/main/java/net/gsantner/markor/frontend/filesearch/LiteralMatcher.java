@@ -0,0 +1,187 @@
+package net.gsantner.markor.frontend.filesearch;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Boyer-Moore-Horspool search for a literal, optionally case folded, running directly on char buffers.
+ * <p>
+ * {@link #findLines(Reader, LineMatch)} streams a reader through a reused buffer and only looks for
+ * line boundaries around hits, so no String is created per line.
+ * Not thread safe, use one instance per thread.
+ */
+public class LiteralMatcher {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    public interface LineMatch {
+        /**
+         * @param buf        Buffer containing the line. Only valid during the call
+         * @param lineStart  Start of the line in buf
+         * @param lineEnd    End of the line in buf, excluding line separators
+         * @param matchStart Start of the match in buf
+         * @param lineNumber Zero based line number
+         * @return true to continue searching, false to stop
+         */
+        boolean onMatch(char[] buf, int lineStart, int lineEnd, int matchStart, int lineNumber);
+    }
+
+    private final char[] _pattern;
+    private final boolean _caseSensitive;
+    private final int[] _shift = new int[256];
+    private char[] _buffer;
+
+    /**
+     * @param query         Literal to search, must not be empty or contain line breaks
+     * @param caseSensitive Compare chars as they are, otherwise case folded
+     */
+    public LiteralMatcher(final String query, final boolean caseSensitive) {
+        if (!isSupported(query)) {
+            throw new IllegalArgumentException("Query must be a single non-empty line");
+        }
+
+        _caseSensitive = caseSensitive;
+        _pattern = new char[query.length()];
+        for (int i = 0; i < _pattern.length; i++) {
+            _pattern[i] = caseSensitive ? query.charAt(i) : fold(query.charAt(i));
+        }
+
+        // Shift table is keyed by the low byte. Colliding chars share the smallest shift, which keeps it correct
+        final int last = _pattern.length - 1;
+        Arrays.fill(_shift, _pattern.length);
+        for (int i = 0; i < last; i++) {
+            _shift[_pattern[i] & 0xFF] = last - i;
+        }
+    }
+
+    public static boolean isSupported(final String query) {
+        return query != null && !query.isEmpty() && query.indexOf('\n') < 0 && query.indexOf('\r') < 0;
+    }
+
+    public int length() {
+        return _pattern.length;
+    }
+
+    // Lower(upper(c)) also maps variants like the dotless i or the final sigma onto one char
+    public static char fold(final char c) {
+        if (c < 128) {
+            return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Find the first match in text[from, to)
+     *
+     * @return Index of the match or -1
+     */
+    public int indexOf(final char[] text, final int from, final int to) {
+        final char[] pattern = _pattern;
+        final int last = pattern.length - 1;
+
+        for (int i = from; i <= to - pattern.length; ) {
+            final char c = _caseSensitive ? text[i + last] : fold(text[i + last]);
+            if (c == pattern[last]) {
+                int j = last - 1;
+                while (j >= 0 && (_caseSensitive ? text[i + j] : fold(text[i + j])) == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += _shift[c & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * Report the first match of every matching line. Line numbers are counted like
+     * {@link java.io.BufferedReader#readLine()} does for \n and \r\n separated text.
+     */
+    public void findLines(final Reader reader, final LineMatch callback) throws IOException {
+        if (_buffer == null) {
+            _buffer = new char[BUFFER_SIZE];
+        }
+
+        int len = 0, lineNumber = 0;
+        boolean eof = false;
+        while (!eof) {
+            if (len == _buffer.length) {
+                // A single line does not fit, grow
+                _buffer = Arrays.copyOf(_buffer, _buffer.length * 2);
+            }
+
+            final int read = reader.read(_buffer, len, _buffer.length - len);
+            if (read < 0) {
+                eof = true;
+            } else {
+                len += read;
+            }
+
+            // Only complete lines are searched, the rest is carried over to the next read
+            final int end = eof ? len : lastIndexOf(_buffer, '\n', len) + 1;
+            if (end == 0) {
+                continue;
+            }
+
+            final char[] buf = _buffer;
+            int pos = 0;
+            while (pos < end) {
+                final int hit = indexOf(buf, pos, end);
+                if (hit < 0) {
+                    break;
+                }
+
+                final int lineStart = lastIndexOf(buf, '\n', hit) + 1;
+                lineNumber += count(buf, '\n', pos, lineStart);
+
+                int lineEnd = indexOf(buf, '\n', hit + _pattern.length, end);
+                final int next = lineEnd < 0 ? end : lineEnd + 1;
+                lineEnd = lineEnd < 0 ? end : lineEnd;
+                if (lineEnd > lineStart && buf[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+
+                if (!callback.onMatch(buf, lineStart, lineEnd, hit, lineNumber)) {
+                    return;
+                }
+
+                lineNumber += count(buf, '\n', lineStart, next);
+                pos = next;
+            }
+            lineNumber += count(buf, '\n', pos, end);
+
+            System.arraycopy(buf, end, buf, 0, len - end);
+            len -= end;
+        }
+    }
+
+    private static int lastIndexOf(final char[] buf, final char c, final int before) {
+        for (int i = before - 1; i >= 0; i--) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(final char[] buf, final char c, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int count(final char[] buf, final char c, final int from, final int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == c) {
+                n++;
+            }
+        }
+        return n;
+    }
+}
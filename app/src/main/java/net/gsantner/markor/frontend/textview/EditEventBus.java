@@ -0,0 +1,167 @@
+/*#######################################################
+ *
+ *   Maintained 2018-2025 by Gregor Santner <gsantner AT mailbox DOT org>
+ *   License of this file: Apache 2.0
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+#########################################################*/
+package net.gsantner.markor.frontend.textview;
+
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.view.View;
+
+import net.gsantner.opoc.format.GsTextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Single TextWatcher of an editor which captures every change once as an immutable {@link Delta}.
+ * <p>
+ * Immediate listeners are called for each change (at onTextChanged time), for work which has to
+ * stay in sync with the text, like moving spans. Batch listeners receive all changes of a frame
+ * at once, for work which only needs to know that (and roughly where) the text changed.
+ */
+public class EditEventBus implements TextWatcher {
+
+    /**
+     * A single change: [start, start + removed) was replaced by [start, start + inserted)
+     */
+    public static final class Delta {
+        public final int start;
+        public final int removed;
+        public final int inserted;
+        public final int removedNewlines;
+        public final int insertedNewlines;
+
+        private Delta(int start, int removed, int inserted, int removedNewlines, int insertedNewlines) {
+            this.start = start;
+            this.removed = removed;
+            this.inserted = inserted;
+            this.removedNewlines = removedNewlines;
+            this.insertedNewlines = insertedNewlines;
+        }
+
+        public int lineCountChange() {
+            return insertedNewlines - removedNewlines;
+        }
+    }
+
+    /**
+     * All changes since the last batch. start/end cover every changed region in current text coordinates.
+     */
+    public static final class Batch {
+        public final List<Delta> deltas;
+        public final int start;
+        public final int end;
+        public final int lineCountChange;
+
+        private Batch(final List<Delta> deltas, final int start, final int end, final int lineCountChange) {
+            this.deltas = Collections.unmodifiableList(deltas);
+            this.start = start;
+            this.end = end;
+            this.lineCountChange = lineCountChange;
+        }
+    }
+
+    public interface ImmediateListener {
+        void onEdit(Delta delta);
+    }
+
+    public interface BatchListener {
+        void onEdits(Batch batch);
+    }
+
+    private final View _view;
+    private final List<ImmediateListener> _immediate = new ArrayList<>();
+    private final List<BatchListener> _batched = new ArrayList<>();
+
+    private int _removedNewlines = 0;
+    private List<Delta> _pending = new ArrayList<>();
+    private int _pendingStart = -1, _pendingEnd = -1, _pendingLineCountChange = 0;
+    private boolean _isDispatchScheduled = false;
+
+    private final Runnable _dispatch = this::dispatchBatch;
+
+    public EditEventBus(final View view) {
+        _view = view;
+    }
+
+    public void addImmediateListener(final ImmediateListener listener) {
+        if (listener != null && !_immediate.contains(listener)) {
+            _immediate.add(listener);
+        }
+    }
+
+    public void removeImmediateListener(final ImmediateListener listener) {
+        _immediate.remove(listener);
+    }
+
+    public void addBatchListener(final BatchListener listener) {
+        if (listener != null && !_batched.contains(listener)) {
+            _batched.add(listener);
+        }
+    }
+
+    public void removeBatchListener(final BatchListener listener) {
+        _batched.remove(listener);
+    }
+
+    @Override
+    public void beforeTextChanged(final CharSequence s, final int start, final int count, final int after) {
+        _removedNewlines = GsTextUtils.countChar(s, start, start + count, '\n');
+    }
+
+    @Override
+    public void onTextChanged(final CharSequence s, final int start, final int before, final int count) {
+        final Delta delta = new Delta(start, before, count, _removedNewlines, GsTextUtils.countChar(s, start, start + count, '\n'));
+        _removedNewlines = 0;
+
+        for (int i = 0; i < _immediate.size(); i++) {
+            _immediate.get(i).onEdit(delta);
+        }
+
+        if (!_batched.isEmpty()) {
+            addPending(delta);
+        }
+    }
+
+    @Override
+    public void afterTextChanged(final Editable s) {
+        if (!_isDispatchScheduled && !_pending.isEmpty()) {
+            _isDispatchScheduled = true;
+            _view.postOnAnimation(_dispatch);
+        }
+    }
+
+    private void addPending(final Delta d) {
+        final int removedEnd = d.start + d.removed;
+        if (_pending.isEmpty()) {
+            _pendingStart = d.start;
+            _pendingEnd = d.start + d.inserted;
+        } else {
+            _pendingEnd = _pendingEnd >= removedEnd ? _pendingEnd + d.inserted - d.removed : d.start + d.inserted;
+            _pendingStart = Math.min(_pendingStart, d.start);
+        }
+        _pendingLineCountChange += d.lineCountChange();
+        _pending.add(d);
+    }
+
+    private void dispatchBatch() {
+        _isDispatchScheduled = false;
+        if (_pending.isEmpty()) {
+            return;
+        }
+
+        final Batch batch = new Batch(_pending, _pendingStart, _pendingEnd, _pendingLineCountChange);
+        _pending = new ArrayList<>();
+        _pendingStart = _pendingEnd = -1;
+        _pendingLineCountChange = 0;
+
+        for (final BatchListener listener : new ArrayList<>(_batched)) {
+            listener.onEdits(batch);
+        }
+    }
+}
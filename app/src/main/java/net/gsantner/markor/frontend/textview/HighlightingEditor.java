@@ -38,7 +38,6 @@ import net.gsantner.markor.activity.MainActivity;
 import net.gsantner.markor.model.AppSettings;
 import net.gsantner.opoc.format.GsTextUtils;
 import net.gsantner.opoc.wrapper.GsCallback;
-import net.gsantner.opoc.wrapper.GsTextWatcherAdapter;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -72,6 +71,7 @@ public class HighlightingEditor extends AppCompatEditText {
     private boolean _saveInstanceState = true;
     private final ExecutorService executor = new ThreadPoolExecutor(0, 3, 60, TimeUnit.SECONDS, new SynchronousQueue<>());
     private final AtomicBoolean _textUnchangedWhileHighlighting = new AtomicBoolean(true);
+    private final EditEventBus _editBus;
 
     public HighlightingEditor(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -89,21 +89,20 @@ public class HighlightingEditor extends AppCompatEditText {
         _oldHlRect = new Rect();
         _hlRect = new Rect();
 
-        addTextChangedListener(new GsTextWatcherAdapter() {
+        // All edit events pass through one watcher, consumers share the derived change info
+        _editBus = new EditEventBus(this);
+        addTextChangedListener(_editBus);
 
-            @Override
-            public void onTextChanged(CharSequence s, int start, int before, int count) {
-                if (_hlEnabled && _hl != null) {
-                    _textUnchangedWhileHighlighting.set(false);
-                    _hl.fixup(start, before, count);
-                }
+        // Spans have to be moved with every change, recomputing is fine once per frame
+        _editBus.addImmediateListener(delta -> {
+            if (_hlEnabled && _hl != null) {
+                _textUnchangedWhileHighlighting.set(false);
+                _hl.fixup(delta.start, delta.removed, delta.inserted);
             }
-
-            @Override
-            public void afterTextChanged(final Editable s) {
-                if (_hlEnabled && _hl != null && _hlDebounced != null) {
-                    _hlDebounced.run();
-                }
+        });
+        _editBus.addBatchListener(batch -> {
+            if (_hlEnabled && _hl != null && _hlDebounced != null) {
+                _hlDebounced.run();
             }
         });
 
@@ -409,14 +408,23 @@ public class HighlightingEditor extends AppCompatEditText {
         }
     }
 
+    // Log selection only once per frame, not for each intermediate change
+    private final Runnable _logSelection = () -> AppSettings.appendDebugLog("Selection changed: " + getSelectionStart() + "->" + getSelectionEnd());
+
     @Override
     protected void onSelectionChanged(int selStart, int selEnd) {
         super.onSelectionChanged(selStart, selEnd);
-        if (MainActivity.IS_DEBUG_ENABLED) {
-            AppSettings.appendDebugLog("Selection changed: " + selStart + "->" + selEnd);
+        // Null while the super constructor runs
+        if (MainActivity.IS_DEBUG_ENABLED && _logSelection != null) {
+            removeCallbacks(_logSelection);
+            postOnAnimation(_logSelection);
         }
     }
 
+    public EditEventBus getEditEventBus() {
+        return _editBus;
+    }
+
     @Override
     protected void onMeasure(final int widthMeasureSpec, final int heightMeasureSpec) {
         super.onMeasure(widthMeasureSpec, heightMeasureSpec);
@@ -109,6 +109,21 @@ public class LineNumbersTextView extends AppCompatTextView {
 
         private final int[] startLine = {0, 1}; // {line index, actual line number}
 
+        // Used with a HighlightingEditor, shares the newline counts of its edit bus and runs once per frame.
+        // Edits below the drawn line numbers don't change them, only the width might change
+        private final EditEventBus.BatchListener lineTrackingListener = new EditEventBus.BatchListener() {
+            @Override
+            public void onEdits(EditEventBus.Batch batch) {
+                maxNumber += batch.lineCountChange;
+                // Both checks update their last state, so both have to run
+                final boolean isLayoutLineCountChanged = isLayoutLineCountChanged();
+                final boolean isMaxNumberChanged = isMaxNumberChanged();
+                if ((isLayoutLineCountChanged || isMaxNumberChanged) && (isAboveLineNumbersAreaBottom(batch.start) || getDigits(maxNumber) != maxNumberDigits)) {
+                    textView.refresh();
+                }
+            }
+        };
+
         private final TextWatcher lineTrackingWatcher = new TextWatcher() {
             @Override
             public void beforeTextChanged(CharSequence s, int start, int count, int after) {
@@ -188,20 +203,22 @@ public class LineNumbersTextView extends AppCompatTextView {
             }
         }
 
-        private boolean isMaxNumberDigitsChanged() {
-            int digits;
-            if (maxNumber < 10) {
-                digits = 1;
-            } else if (maxNumber < 100) {
-                digits = 2;
-            } else if (maxNumber < 1000) {
-                digits = 3;
-            } else if (maxNumber < 10000) {
-                digits = 4;
+        private static int getDigits(final int number) {
+            if (number < 10) {
+                return 1;
+            } else if (number < 100) {
+                return 2;
+            } else if (number < 1000) {
+                return 3;
+            } else if (number < 10000) {
+                return 4;
             } else {
-                digits = 5;
+                return 5;
             }
+        }
 
+        private boolean isMaxNumberDigitsChanged() {
+            final int digits = getDigits(maxNumber);
             if (digits == maxNumberDigits) {
                 return false;
             }
@@ -225,6 +242,16 @@ public class LineNumbersTextView extends AppCompatTextView {
             }
         }
 
+        // Whether the line of offset starts above the bottom of the drawn line numbers, or nothing was drawn yet
+        private boolean isAboveLineNumbersAreaBottom(final int offset) {
+            final Layout layout = editText.getLayout();
+            if (layout == null || lineNumbersArea.bottom <= 0) {
+                return true;
+            }
+            final int line = layout.getLineForOffset(Math.max(0, offset));
+            return layout.getLineTop(line) <= lineNumbersArea.bottom;
+        }
+
         private int countLines(final CharSequence s, int start, int end) {
             int count = 0;
             for (; start < end; start++) {
@@ -236,7 +263,12 @@ public class LineNumbersTextView extends AppCompatTextView {
         }
 
         private void setLineTracking(boolean enabled) {
-            editText.removeTextChangedListener(lineTrackingWatcher);
+            final EditEventBus bus = editText instanceof HighlightingEditor ? ((HighlightingEditor) editText).getEditEventBus() : null;
+            if (bus != null) {
+                bus.removeBatchListener(lineTrackingListener);
+            } else {
+                editText.removeTextChangedListener(lineTrackingWatcher);
+            }
 
             if (enabled) {
                 maxNumber = 1;
@@ -244,7 +276,11 @@ public class LineNumbersTextView extends AppCompatTextView {
                 if (text != null) {
                     maxNumber += countLines(text, 0, text.length());
                 }
-                editText.addTextChangedListener(lineTrackingWatcher);
+                if (bus != null) {
+                    bus.addBatchListener(lineTrackingListener);
+                } else {
+                    editText.addTextChangedListener(lineTrackingWatcher);
+                }
             }
         }
 
@@ -26,15 +26,23 @@ import net.gsantner.markor.R;
 import net.gsantner.markor.activity.MainActivity;
 import net.gsantner.markor.format.FormatRegistry;
 import net.gsantner.markor.format.markdown.MarkdownTextConverter;
+import net.gsantner.markor.frontend.filesearch.FileSearchCache;
 import net.gsantner.markor.util.MarkorContextUtils;
 import net.gsantner.opoc.util.GsContextUtils;
 import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.util.GsFolderStats;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
@@ -46,6 +54,7 @@ import other.de.stanetz.jpencconverter.JavaPasswordbasedCryption;
 @SuppressWarnings({"WeakerAccess", "UnusedReturnValue", "unused", "UnnecessaryLocalVariable"})
 public class Document implements Serializable {
     private static final int MAX_TITLE_EXTRACTION_LENGTH = 25;
+    private static final int ENCRYPT_STREAM_MIN_LENGTH = 256 * 1024;
 
     private static final String MOD_PREF_NAME = "DOCUMENT_MOD_TIMES";
     public static final String EXTRA_DOCUMENT = "EXTRA_DOCUMENT"; // Document
@@ -243,6 +252,50 @@ public class Document implements Serializable {
         }
     }
 
+    /**
+     * Content of a plain text file, read without changing the document
+     */
+    public static class LoadedContent {
+        public final String content;
+        private final GsFileUtils.FileInfo fileInfo;
+        private final long modTime;
+
+        private LoadedContent(final String content, final GsFileUtils.FileInfo fileInfo, final long modTime) {
+            this.content = content;
+            this.fileInfo = fileInfo;
+            this.modTime = modTime;
+        }
+    }
+
+    /**
+     * Read the file like {@link #loadContent(Context)}, but leave change tracking alone.
+     * Safe to call off the main thread, hand the result to {@link #commitLoadedContent} once it is shown.
+     * Not for encrypted or binary files.
+     *
+     * @return Content, or null if the file could not be read
+     */
+    public @Nullable
+    LoadedContent readTextContent() {
+        // Taken before reading, so a write in between is noticed as a change later
+        final long modTime = fileModTime();
+        Pair<String, GsFileUtils.FileInfo> result = GsFileUtils.readTextFileFast(file);
+        if (result.second.ioError) {
+            Log.i(Document.class.getName(), "readTextContent:  File " + file + " read error, trying again.");
+            result = GsFileUtils.readTextFileFast(file);
+        }
+        return result.second.ioError ? null : new LoadedContent(result.first, result.second, modTime);
+    }
+
+    /**
+     * Take over the content from {@link #readTextContent()} as the last loaded state. Call on the main thread
+     */
+    public synchronized void commitLoadedContent(final LoadedContent loaded) {
+        _fileInfo = loaded.fileInfo;
+        setContentHash(loaded.content);
+        _modTime = loaded.modTime;
+        setGlobalTouchTime();
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.M)
     private static char[] getPasswordWithWarning(final Context context) {
         final char[] pw = AppSettings.get(context).getDefaultPassword();
@@ -293,50 +346,56 @@ public class Document implements Serializable {
 
         boolean success;
         try {
-            final char[] pw;
-            final byte[] contentAsBytes;
-            if (isEncrypted() && (pw = getPasswordWithWarning(context)) != null) {
-                contentAsBytes = new JavaPasswordbasedCryption(Build.VERSION.SDK_INT, new SecureRandom()).encrypt(content.toString(), pw);
-            } else {
-                contentAsBytes = content.toString().getBytes();
-            }
-
+            final char[] pw = isEncrypted() ? getPasswordWithWarning(context) : null;
             cu = cu != null ? cu : new MarkorContextUtils(context);
             final boolean isContentResolverProxyFile = cu.isContentResolverProxyFile(file);
-            if (cu.isUnderStorageAccessFolder(context, file, false) || isContentResolverProxyFile) {
-                cu.writeFile(context, file, false, (fileOpened, fos) -> {
-                    try {
-                        if (_fileInfo != null && _fileInfo.hasBom) {
-                            fos.write(0xEF);
-                            fos.write(0xBB);
-                            fos.write(0xBF);
-                        }
-                        fos.write(contentAsBytes);
+            final boolean isStorageAccessFile = cu.isUnderStorageAccessFolder(context, file, false) || isContentResolverProxyFile;
 
-                        // Also overwrite content resolver proxy file in addition to writing back to the origin
-                        if (isContentResolverProxyFile) {
-                            GsFileUtils.writeFile(file, contentAsBytes, _fileInfo);
-                        }
-
-                    } catch (Exception e) {
-                        Log.i(Document.class.toString(), e.getMessage());
-                    }
-                });
-                success = true;
+            // Large encrypted documents are encrypted straight into a temp file, with fewer byte array copies
+            if (pw != null && !isStorageAccessFile && content.length() >= ENCRYPT_STREAM_MIN_LENGTH) {
+                success = writeEncryptedStream(content, pw);
             } else {
-                // Try write 2x
-                success = GsFileUtils.writeFile(file, contentAsBytes, _fileInfo);
-                if (!success || fileBytes() < contentAsBytes.length) {
+                final byte[] contentAsBytes;
+                if (pw != null) {
+                    contentAsBytes = new JavaPasswordbasedCryption(Build.VERSION.SDK_INT, new SecureRandom()).encrypt(content.toString(), pw);
+                } else {
+                    contentAsBytes = content.toString().getBytes();
+                }
+
+                if (isStorageAccessFile) {
+                    cu.writeFile(context, file, false, (fileOpened, fos) -> {
+                        try {
+                            if (_fileInfo != null && _fileInfo.hasBom) {
+                                fos.write(0xEF);
+                                fos.write(0xBB);
+                                fos.write(0xBF);
+                            }
+                            fos.write(contentAsBytes);
+
+                            // Also overwrite content resolver proxy file in addition to writing back to the origin
+                            if (isContentResolverProxyFile) {
+                                GsFileUtils.writeFile(file, contentAsBytes, _fileInfo);
+                            }
+
+                        } catch (Exception e) {
+                            Log.i(Document.class.toString(), e.getMessage());
+                        }
+                    });
+                    success = true;
+                } else {
+                    // Try write 2x
                     success = GsFileUtils.writeFile(file, contentAsBytes, _fileInfo);
+                    if (!success || fileBytes() < contentAsBytes.length) {
+                        success = GsFileUtils.writeFile(file, contentAsBytes, _fileInfo);
+                    }
                 }
-            }
 
-            final long size = fileBytes();
-            if (fileBytes() < contentAsBytes.length) {
-                success = false;
-                Log.i(Document.class.getName(), "File write failed; size = " + size + "; length = " + contentAsBytes.length + "; file=" + file);
+                final long size = fileBytes();
+                if (fileBytes() < contentAsBytes.length) {
+                    success = false;
+                    Log.i(Document.class.getName(), "File write failed; size = " + size + "; length = " + contentAsBytes.length + "; file=" + file);
+                }
             }
-
         } catch (JavaPasswordbasedCryption.EncryptionFailedException e) {
             Log.e(Document.class.getName(), "writeContent:  encrypt failed for File " + path + ". " + e.getMessage(), e);
             Toast.makeText(context, R.string.could_not_encrypt_file_content_the_file_was_not_saved, Toast.LENGTH_LONG).show();
@@ -347,6 +406,8 @@ public class Document implements Serializable {
             setContentHash(content);
             _modTime = fileModTime();
             setGlobalTouchTime();
+            GsFolderStats.get().invalidate(file); // Written in place, the folder mtime may be unchanged
+            FileSearchCache.get().invalidate(file);
         } else {
             Log.i(Document.class.getName(), "File write failed, size = " + fileBytes() + "; file=" + file);
         }
@@ -354,6 +415,55 @@ public class Document implements Serializable {
         return success;
     }
 
+    // Encrypted into a temp file next to the document, which replaces it only once it was written completely
+    private boolean writeEncryptedStream(final CharSequence content, final char[] pw) {
+        final File temp = new File(file.getParentFile(), "." + file.getName() + ".tmp");
+        final long[] written = {0};
+        try {
+            final JavaPasswordbasedCryption cryption = new JavaPasswordbasedCryption(Build.VERSION.SDK_INT, new SecureRandom());
+            final OutputStream counting = new FilterOutputStream(new BufferedOutputStream(new FileOutputStream(temp, false))) {
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    out.write(b, off, len);
+                    written[0] += len;
+                }
+
+                @Override
+                public void write(final int b) throws IOException {
+                    out.write(b);
+                    written[0]++;
+                }
+            };
+            try (final Writer writer = new OutputStreamWriter(cryption.encryptingStream(counting, pw), StandardCharsets.UTF_8)) {
+                final char[] buffer = new char[8192];
+                for (int start = 0; start < content.length(); start += buffer.length) {
+                    final int end = Math.min(start + buffer.length, content.length());
+                    TextUtils.getChars(content, start, end, buffer, 0);
+                    writer.write(buffer, 0, end - start);
+                }
+            }
+
+            // Everything handed to the file has to be on disk
+            final long size = temp.length();
+            if (size != written[0] || size == 0) {
+                Log.i(Document.class.getName(), "File write failed; size = " + size + "; written = " + written[0] + "; file=" + file);
+                return false;
+            }
+            if (!temp.renameTo(file)) {
+                Log.i(Document.class.getName(), "File write failed, could not replace file=" + file);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(Document.class.getName(), "writeEncryptedStream: write failed for File " + path + ". " + e.getMessage(), e);
+            return false;
+        } finally {
+            if (temp.exists()) {
+                temp.delete();
+            }
+        }
+    }
+
     public static String getMaskedContent(final String text) {
         final String httpToken = "§$§$§$§$";
         return text
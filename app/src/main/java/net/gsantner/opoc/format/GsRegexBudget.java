@@ -0,0 +1,219 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2025 Gregor Santner <gsantner AT mailbox DOT org>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2025 by Gregor Santner <gsantner AT mailbox DOT org>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.format;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.util.regex.Matcher;
+
+/**
+ * Time budget for running user supplied regular expressions.
+ * <p>
+ * Patterns like (a+)+b backtrack exponentially on near misses. The budget is checked between
+ * matches, and during a match by engines which read the input through {@link CharSequence#charAt(int)}
+ * when it is wrapped with {@link #guard(CharSequence)}. Android's regex engine copies the input to
+ * native memory first, so there a single find can not be interrupted. {@link #isCostly(String)}
+ * detects the usual culprits up front, so the user can be warned.
+ * <p>
+ * Not thread safe, use one instance per thread.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public class GsRegexBudget {
+    // Checking the clock on every char read would cost more than the matching itself
+    private static final int CHECK_INTERVAL = 1024;
+
+    public static class TimeoutException extends RuntimeException {
+        public TimeoutException() {
+            super("Regex time budget exceeded");
+        }
+    }
+
+    private final long _budgetNanos;
+    private final GsCallback.b0 _isCancelled;
+    private long _deadline;
+    private int _reads = 0;
+
+    /**
+     * @param budgetMs    Time allowed from now (and from each {@link #restart()})
+     * @param isCancelled Checked together with the deadline, may be null
+     */
+    public GsRegexBudget(final long budgetMs, @Nullable final GsCallback.b0 isCancelled) {
+        _budgetNanos = budgetMs * 1000000L;
+        _isCancelled = isCancelled;
+        restart();
+    }
+
+    public GsRegexBudget restart() {
+        _deadline = System.nanoTime() + _budgetNanos;
+        return this;
+    }
+
+    public boolean isExceeded() {
+        return System.nanoTime() - _deadline > 0 || (_isCancelled != null && _isCancelled.callback());
+    }
+
+    public void check() throws TimeoutException {
+        if (isExceeded()) {
+            throw new TimeoutException();
+        }
+    }
+
+    /**
+     * Wrap the input of a matcher so the budget is also checked while the engine reads it
+     */
+    public CharSequence guard(final CharSequence text) {
+        return text instanceof GuardedSequence ? text : new GuardedSequence(text);
+    }
+
+    /**
+     * Count all matches, checking the budget after every match
+     */
+    public int count(final Matcher matcher) throws TimeoutException {
+        int count = 0;
+        while (matcher.find()) {
+            count++;
+            check();
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link Matcher#replaceAll(String)}, checking the budget after every match
+     */
+    public String replaceAll(final Matcher matcher, final String replacement) throws TimeoutException {
+        matcher.reset();
+        final StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            check();
+            matcher.appendReplacement(sb, replacement);
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    private final class GuardedSequence implements CharSequence {
+        private final CharSequence _text;
+
+        private GuardedSequence(final CharSequence text) {
+            _text = text;
+        }
+
+        @Override
+        public int length() {
+            return _text.length();
+        }
+
+        @Override
+        public char charAt(final int index) {
+            if (++_reads >= CHECK_INTERVAL) {
+                _reads = 0;
+                check();
+            }
+            return _text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return new GuardedSequence(_text.subSequence(start, end));
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return _text.toString();
+        }
+    }
+
+    /**
+     * Rough check for catastrophic backtracking: a group with an unbounded quantifier which
+     * itself contains an unbounded quantifier, like (a+)+, (a*b*)* or (\w+\s?){2,}
+     */
+    public static boolean isCostly(final String regex) {
+        final int n = regex.length();
+        // Per open group: whether it contains an unbounded quantifier
+        final boolean[] inner = new boolean[n + 1];
+        int depth = 0;
+
+        for (int i = 0; i < n; i++) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                if (i + 1 < n && regex.charAt(i + 1) == 'Q') {
+                    final int end = regex.indexOf("\\E", i + 2);
+                    i = end < 0 ? n : end + 1;
+                } else {
+                    i++;
+                }
+            } else if (c == '[') {
+                i = skipCharClass(regex, i);
+            } else if (c == '(') {
+                inner[++depth] = false;
+            } else if (c == ')' && depth > 0) {
+                final boolean hasInner = inner[depth--];
+                final int quantifier = unboundedQuantifierLength(regex, i + 1);
+                if (quantifier > 0 && hasInner) {
+                    return true;
+                }
+                inner[depth] |= hasInner || quantifier > 0;
+                i += Math.max(0, quantifier);
+            } else {
+                final int quantifier = unboundedQuantifierLength(regex, i);
+                if (quantifier > 0) {
+                    inner[depth] = true;
+                    i += quantifier - 1;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Length of a *, + or {n,} quantifier at pos, 0 if there is none
+    private static int unboundedQuantifierLength(final String regex, final int pos) {
+        if (pos >= regex.length()) {
+            return 0;
+        }
+        final char c = regex.charAt(pos);
+        if (c == '*' || c == '+') {
+            return 1;
+        }
+        if (c == '{') {
+            final int close = regex.indexOf('}', pos);
+            if (close > pos && regex.substring(pos + 1, close).matches("\\d+,")) {
+                return close - pos + 1;
+            }
+        }
+        return 0;
+    }
+
+    // Index of the closing bracket of the character class starting at pos
+    private static int skipCharClass(final String regex, final int pos) {
+        int depth = 0;
+        for (int i = pos; i < regex.length(); i++) {
+            final char c = regex.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                depth++;
+                // A ] right after the opening bracket (or ^) is a literal
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == '^') {
+                    i++;
+                }
+                if (i + 1 < regex.length() && regex.charAt(i + 1) == ']') {
+                    i++;
+                }
+            } else if (c == ']' && --depth == 0) {
+                return i;
+            }
+        }
+        return regex.length();
+    }
+}
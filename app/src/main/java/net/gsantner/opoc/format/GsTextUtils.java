@@ -521,4 +521,148 @@ public class GsTextUtils {
 
         return true;
     }
+
+    /**
+     * Compute a line based diff between two texts (Myers' algorithm after trimming common lines).
+     * Each returned hunk { aStart, aEnd, bStart, bEnd } holds char offsets s.t. replacing
+     * a[aStart:aEnd] by b[bStart:bEnd] for every hunk, applied from last to first, turns a into b.
+     *
+     * @param maxEdits Maximum number of inserted + removed lines to look for
+     * @return Hunks in ascending order or null if the texts differ in more than maxEdits lines
+     */
+    public static List<int[]> diffLines(final CharSequence a, final CharSequence b, final int maxEdits) {
+        final int[] as = lineStarts(a), bs = lineStarts(b);
+        final int[] ah = lineHashes(a, as), bh = lineHashes(b, bs);
+        final int na = as.length - 1, nb = bs.length - 1;
+
+        // Trim common leading and trailing lines, this is usually almost everything
+        int pre = 0;
+        while (pre < na && pre < nb && linesEqual(a, as, ah, pre, b, bs, bh, pre)) pre++;
+        int suf = 0;
+        while (suf < na - pre && suf < nb - pre && linesEqual(a, as, ah, na - 1 - suf, b, bs, bh, nb - 1 - suf)) suf++;
+
+        final int n = na - pre - suf, m = nb - pre - suf;
+        final List<int[]> hunks = new ArrayList<>();
+        if (n == 0 && m == 0) {
+            return hunks;
+        } else if (n == 0 || m == 0) {
+            hunks.add(new int[]{as[pre], as[pre + n], bs[pre], bs[pre + m]});
+            return hunks;
+        }
+
+        // Greedy forward search, remembering the live part of V of each round for the backtrack.
+        // Round d only reads diagonals -(d-1), -(d-1)+2, .., d-1, so d values are kept, i.e. max^2/2 in total
+        final int max = Math.min(Math.max(maxEdits, 0), n + m);
+        final int off = max + 1;
+        final int[] v = new int[2 * max + 3];
+        final List<int[]> trace = new ArrayList<>();
+        int found = -1;
+        for (int d = 0; d <= max && found < 0; d++) {
+            final int[] live = new int[d];
+            for (int i = 0; i < d; i++) {
+                live[i] = v[2 * i - d + 1 + off];
+            }
+            trace.add(live);
+            for (int k = -d; k <= d; k += 2) {
+                int x = (k == -d || (k != d && v[k - 1 + off] < v[k + 1 + off])) ? v[k + 1 + off] : v[k - 1 + off] + 1;
+                int y = x - k;
+                while (x < n && y < m && linesEqual(a, as, ah, pre + x, b, bs, bh, pre + y)) {
+                    x++;
+                    y++;
+                }
+                v[k + off] = x;
+                if (x >= n && y >= m) {
+                    found = d;
+                    break;
+                }
+            }
+        }
+
+        if (found < 0) {
+            return null;
+        }
+
+        // Backtrack single line edits, from last to first
+        final List<int[]> edits = new ArrayList<>();
+        int x = n, y = m;
+        for (int d = found; d > 0; d--) {
+            final int[] live = trace.get(d); // Diagonal k at (k + d - 1) / 2
+            final int k = x - y;
+            final int pk = (k == -d || (k != d && live[(k + d - 2) / 2] < live[(k + d) / 2])) ? k + 1 : k - 1;
+            final int px = live[(pk + d - 1) / 2], py = px - pk;
+            while (x > px && y > py) {
+                x--;
+                y--;
+            }
+            edits.add(new int[]{px, x, py, y});
+            x = px;
+            y = py;
+        }
+
+        // Merge adjacent edits and convert to char offsets
+        int[] cur = null;
+        for (int i = edits.size() - 1; i >= 0; i--) {
+            final int[] e = edits.get(i);
+            if (cur != null && cur[1] == e[0] && cur[3] == e[2]) {
+                cur[1] = e[1];
+                cur[3] = e[3];
+            } else {
+                if (cur != null) {
+                    hunks.add(new int[]{as[pre + cur[0]], as[pre + cur[1]], bs[pre + cur[2]], bs[pre + cur[3]]});
+                }
+                cur = e.clone();
+            }
+        }
+        if (cur != null) {
+            hunks.add(new int[]{as[pre + cur[0]], as[pre + cur[1]], bs[pre + cur[2]], bs[pre + cur[3]]});
+        }
+        return hunks;
+    }
+
+    // Offsets at which lines start, terminated by the text length. Lines include their '\n'.
+    private static int[] lineStarts(final CharSequence text) {
+        final int length = text.length();
+        final List<Integer> nl = findChar(text, '\n');
+        final boolean endsWithNl = length > 0 && text.charAt(length - 1) == '\n';
+        final int[] starts = new int[nl.size() + (endsWithNl || length == 0 ? 1 : 2)];
+        int i = 0;
+        starts[i++] = 0;
+        for (final int pos : nl) {
+            if (pos + 1 < length) {
+                starts[i++] = pos + 1;
+            }
+        }
+        if (length > 0) {
+            starts[i] = length;
+        }
+        return starts;
+    }
+
+    private static int[] lineHashes(final CharSequence text, final int[] starts) {
+        final int[] hashes = new int[starts.length - 1];
+        for (int l = 0; l < hashes.length; l++) {
+            int h = 0;
+            for (int i = starts[l]; i < starts[l + 1]; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            hashes[l] = h;
+        }
+        return hashes;
+    }
+
+    private static boolean linesEqual(
+            final CharSequence a, final int[] as, final int[] ah, final int i,
+            final CharSequence b, final int[] bs, final int[] bh, final int j
+    ) {
+        final int length = as[i + 1] - as[i];
+        if (ah[i] != bh[j] || length != bs[j + 1] - bs[j]) {
+            return false;
+        }
+        for (int c = 0; c < length; c++) {
+            if (a.charAt(as[i] + c) != b.charAt(bs[j] + c)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
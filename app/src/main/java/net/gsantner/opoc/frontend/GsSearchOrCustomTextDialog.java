@@ -109,6 +109,9 @@ public class GsSearchOrCustomTextDialog {
         // Search function (constraint, text, index) -> boolean
         public GsCallback.b3<String, CharSequence, Integer> searchFunction = GsSearchOrCustomTextDialog::standardSearch;
 
+        // Replaces searchFunction if set: constraint -> indices of the items to show, in display order
+        public GsCallback.r1<List<Integer>, String> rankFunction = null;
+
         public List<? extends CharSequence> data = null;
         public List<? extends CharSequence> highlightData = null;
         public List<Integer> listItemLayouts = null;
@@ -265,12 +268,20 @@ public class GsSearchOrCustomTextDialog {
 
             if (_dopt.data != null) {
                 _filteredItems.clear();
-                final boolean emptySearch = _lastConstraint.isEmpty();
-                for (int i = 0; i < _dopt.data.size(); i++) {
-                    final CharSequence line = _dopt.data.get(i);
-                    final boolean matchExtra = (_extraPattern == null) || _extraPattern.reset(line).find();
-                    if (matchExtra && (emptySearch || _dopt.searchFunction.callback(_lastConstraint, line, i))) {
-                        _filteredItems.add(i);
+                if (_dopt.rankFunction != null) {
+                    for (final Integer i : _dopt.rankFunction.callback(_lastConstraint)) {
+                        if (_extraPattern == null || _extraPattern.reset(_dopt.data.get(i)).find()) {
+                            _filteredItems.add(i);
+                        }
+                    }
+                } else {
+                    final boolean emptySearch = _lastConstraint.isEmpty();
+                    for (int i = 0; i < _dopt.data.size(); i++) {
+                        final CharSequence line = _dopt.data.get(i);
+                        final boolean matchExtra = (_extraPattern == null) || _extraPattern.reset(line).find();
+                        if (matchExtra && (emptySearch || _dopt.searchFunction.callback(_lastConstraint, line, i))) {
+                            _filteredItems.add(i);
+                        }
                     }
                 }
                 notifyDataSetChanged();
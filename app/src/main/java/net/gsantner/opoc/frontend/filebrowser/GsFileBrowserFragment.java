@@ -346,9 +346,14 @@ public class GsFileBrowserFragment extends GsFragmentBase<GsSharedPreferencesPro
         final File folder = getCurrentFolder();
         final Activity activity = getActivity();
         if (_reloadRequiredOnResume && isVisible() && folder != null && activity != null) {
-            reloadCurrentFolder();
+            _filesystemViewerAdapter.refreshCurrentFolder();
         }
         _reloadRequiredOnResume = true;
+
+        // Copy or move of a previous app start was interrupted
+        if (activity != null) {
+            WrMarkorSingleton.getInstance().resumeInterruptedOperations(activity, _filesystemViewerAdapter::reloadCurrentFolder);
+        }
     }
 
     @Override
@@ -525,9 +530,12 @@ public class GsFileBrowserFragment extends GsFragmentBase<GsSharedPreferencesPro
             @Override
             public void onFsViewerSelected(String request, File file, Integer lineNumber) {
                 super.onFsViewerSelected(request, file, null);
-                WrMarkorSingleton.getInstance().moveOrCopySelected(files, file, getActivity(), isMove);
+                WrMarkorSingleton.getInstance().moveOrCopySelected(files, file, getActivity(), isMove, () -> {
+                    if (_filesystemViewerAdapter != null) {
+                        _filesystemViewerAdapter.reloadCurrentFolder();
+                    }
+                });
                 _filesystemViewerAdapter.unselectAll();
-                _filesystemViewerAdapter.reloadCurrentFolder();
             }
 
             @Override
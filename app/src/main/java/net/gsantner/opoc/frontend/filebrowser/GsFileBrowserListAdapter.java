@@ -10,6 +10,7 @@
 package net.gsantner.opoc.frontend.filebrowser;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
@@ -36,6 +37,8 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
@@ -43,11 +46,16 @@ import net.gsantner.markor.R;
 import net.gsantner.opoc.util.GsCollectionUtils;
 import net.gsantner.opoc.util.GsContextUtils;
 import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.util.GsFolderStats;
+import net.gsantner.opoc.util.GsThumbnailCache;
 import net.gsantner.opoc.wrapper.GsCallback;
+import net.gsantner.opoc.wrapper.GsFileObserver;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -61,6 +69,7 @@ import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowserListAdapter.FilesystemViewerViewHolder> implements Filterable, View.OnClickListener, View.OnLongClickListener {
@@ -81,13 +90,42 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
 
     private static final File GO_BACK_SIGNIFIER = new File("__GO_BACK__");
     private static final StrikethroughSpan STRIKE_THROUGH_SPAN = new StrikethroughSpan();
+    private static final int FOLDER_EVENT_DELAY_MS = 250; // Bursts of events are applied at once
+    private static final int LISTING_FIRST_CHUNK = 256; // Larger folders are shown while they are read
+    private static final int THUMBNAIL_SIZE_DP = 28; // Size of the row icon
+    private static final long FOLDER_TOTALS_MAX_AGE_MS = 30_000; // Folder sizes are not walked again while scrolling
+
+    // A row only needs to be rebound if its metadata changed
+    private static final DiffUtil.ItemCallback<Entry> ENTRY_DIFF = new DiffUtil.ItemCallback<Entry>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull final Entry a, @NonNull final Entry b) {
+            return a.file.equals(b.file);
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull final Entry a, @NonNull final Entry b) {
+            return a.isSameContent(b);
+        }
+    };
+
+    // Date formats for the description, per thread as SimpleDateFormat is not thread safe
+    private static final Pattern SIZE_TOKEN = Pattern.compile("FS(?=([^']*'[^']*')*[^']*$)");
+    private static final char SIZE_PLACEHOLDER = '\uE000';
+    private static final ThreadLocal<Map<String, SimpleDateFormat>> DATE_FORMATS = new ThreadLocal<Map<String, SimpleDateFormat>>() {
+        @Override
+        protected Map<String, SimpleDateFormat> initialValue() {
+            return new HashMap<>();
+        }
+    };
 
     //########################
     //## Members
     //########################
     private final GsFileBrowserOptions.Options _dopt;
     private final List<File> _adapterData; // List of current folder
-    private final List<File> _adapterDataFiltered; // Filtered list of current folder
+    private final AsyncListDiffer<Entry> _differ; // Displayed rows, diffed in the background
+    private final List<File> _adapterDataFiltered; // Filtered list of current folder, read only view of _differ
+    private Map<File, Entry> _entries = new HashMap<>(); // Attributes of all files in _adapterData
     private final Set<File> _currentSelection;
     private File _fileToShowAfterNextLoad;
     private File _currentFolder;
@@ -101,7 +139,15 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
     private final Map<File, Parcelable> _folderScrollMap = new HashMap<>();
     private final Stack<File> _backStack = new Stack<>();
     private final int _userId = getUserId();
-    private long _prevModSum = 0;
+    private final int _thumbnailSize; // px
+
+    // Watches the current folder, changes are applied to the listing without reading it again
+    private GsFileObserver _folderObserver;
+    private final Set<String> _pendingFolderEvents = new HashSet<>(); // Names of changed files, guarded by itself
+    private boolean _folderNeedsReload = false; // Folder itself was deleted or moved, guarded by _pendingFolderEvents
+    private final Runnable _applyFolderEvents = this::applyFolderEvents;
+    private File _listedFolder = null; // Folder of _adapterData
+    private String _loadedConfig = null; // Options the listing was made with, see getListingConfig()
 
     //########################
     //## Methods
@@ -109,9 +155,21 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
     public GsFileBrowserListAdapter(GsFileBrowserOptions.Options options, Context context) {
         _dopt = options;
         _adapterData = new ArrayList<>();
-        _adapterDataFiltered = new ArrayList<>();
+        _differ = new AsyncListDiffer<>(this, ENTRY_DIFF);
+        _adapterDataFiltered = new AbstractList<File>() {
+            @Override
+            public File get(final int index) {
+                return _differ.getCurrentList().get(index).file;
+            }
+
+            @Override
+            public int size() {
+                return _differ.getCurrentList().size();
+            }
+        };
         _currentSelection = new HashSet<>();
         _context = context;
+        _thumbnailSize = (int) (THUMBNAIL_SIZE_DP * context.getResources().getDisplayMetrics().density);
         GsContextUtils.instance.setAppLocale(_context, Locale.getDefault());
 
         // Prevents view flicker - https://stackoverflow.com/a/32488059
@@ -194,7 +252,9 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
     @Override
     @SuppressWarnings("ConstantConditions")
     public void onBindViewHolder(@NonNull FilesystemViewerViewHolder holder, int position) {
-        final File displayFile = _adapterDataFiltered.get(position);
+        // Everything needed here was read with the folder, binding does no I/O
+        final Entry entry = _differ.getCurrentList().get(position);
+        final File displayFile = entry.file;
 
         if (displayFile == null) {
             holder.title.setText("????");
@@ -206,9 +266,8 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
         final boolean isGoUp = displayFile.equals(_goUpFile);
         final boolean isVirtual = _virtualMapping.containsKey(displayFile);
         final boolean isSelected = _currentSelection.contains(displayFile);
-        final boolean isFavourite = _dopt.favouriteFiles != null && _dopt.favouriteFiles.contains(displayFile);
-        final boolean isPopular = _dopt.popularFiles != null && _dopt.popularFiles.contains(displayFile);
-        final boolean isFile = displayFile.isFile();
+        final boolean isFavourite = entry.isFavourite;
+        final boolean isFile = entry.isFile;
 
         String titleText = displayFile.getName();
         if (isCurrentFolderVirtual() && "index.html".equals(titleText)) {
@@ -220,7 +279,7 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
         holder.title.setText(isGoUp ? ".." : titleText, TextView.BufferType.SPANNABLE);
         holder.title.setTextColor(ContextCompat.getColor(_context, _dopt.primaryTextColor));
 
-        if (!isFileWriteable(displayFile, isGoUp) && !isVirtual && holder.title.length() > 0) {
+        if (!entry.isWriteable && !isGoUp && !isVirtual && holder.title.length() > 0) {
             try {
                 ((Spannable) holder.title.getText()).setSpan(STRIKE_THROUGH_SPAN, 0, holder.title.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             } catch (Exception ignored) {
@@ -231,7 +290,7 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
         if (!_dopt.descModtimeInsteadOfParent || isGoUp) {
             holder.description.setText(file.getAbsolutePath());
         } else {
-            holder.description.setText(formatFileDescription(file, _dopt.descriptionFormat));
+            holder.description.setText(formatFileDescription(entry.modified, getDescriptionSize(entry, isVirtual), _dopt.descriptionFormat));
         }
         holder.description.setTextColor(ContextCompat.getColor(_context, _dopt.secondaryTextColor));
 
@@ -254,13 +313,32 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
             holder.image.setColorFilter(FAVOURITE_COLOR);
         }
 
+        // Thumbnail of images, the icon stays until it is loaded
+        holder.image.setTag(null);
+        if (!isSelected && isFile && _dopt.showImageThumbnails && GsThumbnailCache.isImage(file)
+                && (_dopt.iconMaps == null || !_dopt.iconMaps.containsKey(displayFile))) {
+            final GsThumbnailCache thumbnails = GsThumbnailCache.get(_context);
+            final Bitmap thumbnail = thumbnails.getCached(file, entry.size, entry.modified, _thumbnailSize);
+            if (thumbnail != null) {
+                showThumbnail(holder.image, thumbnail);
+            } else {
+                holder.image.setTag(entry);
+                thumbnails.load(file, entry.size, entry.modified, _thumbnailSize, bitmap -> {
+                    // Row may have been rebound in the meantime
+                    if (bitmap != null && holder.image.getTag() == entry) {
+                        showThumbnail(holder.image, bitmap);
+                    }
+                });
+            }
+        }
+
         // Some extras
         if (_dopt.itemSidePadding > 0) {
             int dp = (int) (_dopt.itemSidePadding * _context.getResources().getDisplayMetrics().density);
             holder.itemRoot.setPadding(dp, holder.itemRoot.getPaddingTop(), dp, holder.itemRoot.getPaddingBottom());
         }
 
-        final int descriptionRes = isSelected ? _dopt.contentDescriptionSelected : (displayFile.isDirectory() ? _dopt.contentDescriptionFolder : _dopt.contentDescriptionFile);
+        final int descriptionRes = isSelected ? _dopt.contentDescriptionSelected : (entry.isDirectory ? _dopt.contentDescriptionFolder : _dopt.contentDescriptionFile);
         holder.itemRoot.setContentDescription((descriptionRes != 0 ? (_context.getString(descriptionRes) + " ") : "") + titleText + " " + holder.description.getText().toString());
         holder.image.setOnLongClickListener(view -> {
             Toast.makeText(_context, displayFile.getAbsolutePath(), Toast.LENGTH_SHORT).show();
@@ -277,6 +355,11 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
         }
     }
 
+    private static void showThumbnail(final ImageView view, final Bitmap thumbnail) {
+        view.clearColorFilter();
+        view.setImageBitmap(thumbnail);
+    }
+
     @Override
     public void onAttachedToRecyclerView(@NonNull final RecyclerView view) {
         super.onAttachedToRecyclerView(view);
@@ -285,13 +368,54 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
         reloadCurrentFolder();
     }
 
-    public String formatFileDescription(final File file, String format) {
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull final RecyclerView view) {
+        super.onDetachedFromRecyclerView(view);
+        view.removeCallbacks(_applyFolderEvents);
+        watchFolder(null);
+    }
+
+    public String formatFileDescription(final File file, final String format) {
+        return formatFileDescription(file.lastModified(), file.length(), format);
+    }
+
+    // Folders show their recursive size if the format has one, it is computed in the background
+    private long getDescriptionSize(final Entry entry, final boolean isVirtual) {
+        if (!entry.isDirectory || isVirtual || TextUtils.isEmpty(_dopt.descriptionFormat) || !SIZE_TOKEN.matcher(_dopt.descriptionFormat).find()) {
+            return entry.size;
+        }
+
+        final File folder = entry.file;
+        final GsFolderStats.Totals totals = GsFolderStats.get().getCached(folder);
+        GsFolderStats.get().update(folder, FOLDER_TOTALS_MAX_AGE_MS, updated -> {
+            final int index = _adapterDataFiltered.indexOf(folder);
+            if (index >= 0) {
+                notifyItemChanged(index);
+            }
+        });
+        return totals != null ? totals.size : entry.size;
+    }
+
+    /**
+     * Format modification time and size. FS outside of quotes in the format is replaced by the size
+     */
+    public String formatFileDescription(final long modified, final long size, final String format) {
         if (TextUtils.isEmpty(format)) {
-            return DateUtils.formatDateTime(_context, file.lastModified(), (DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_NUMERIC_DATE));
-        } else {
-            format = format.replaceAll("FS(?=([^']*'[^']*')*[^']*$)", '\'' + GsFileUtils.getHumanReadableByteCountSI(file.length()) + '\'');
-            return new SimpleDateFormat(format, Locale.getDefault()).format(file.lastModified());
+            return DateUtils.formatDateTime(_context, modified, (DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_YEAR | DateUtils.FORMAT_NUMERIC_DATE));
         }
+
+        // The size is formatted as a quoted placeholder and filled in afterwards, so the parsed format can be reused
+        final Locale locale = Locale.getDefault();
+        final String key = locale + "\u0000" + format;
+        final Map<String, SimpleDateFormat> formats = DATE_FORMATS.get();
+        SimpleDateFormat sdf = formats.get(key);
+        if (sdf == null) {
+            sdf = new SimpleDateFormat(SIZE_TOKEN.matcher(format).replaceAll("'" + SIZE_PLACEHOLDER + "'"), locale);
+            formats.put(key, sdf);
+        }
+
+        final String formatted = sdf.format(modified);
+        return formatted.indexOf(SIZE_PLACEHOLDER) >= 0 ? formatted.replace(String.valueOf(SIZE_PLACEHOLDER), GsFileUtils.getHumanReadableByteCountSI(size)) : formatted;
     }
 
     public void saveInstanceState(final @NonNull Bundle outState) {
@@ -332,6 +456,16 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
         }
     }
 
+    /**
+     * Reload the current folder, unless it is watched and all changes were already applied
+     */
+    public void refreshCurrentFolder() {
+        if (hasPendingFolderEvents() || _folderObserver == null || !_folderObserver.isWatching()
+                || !_folderObserver.getFile().equals(_currentFolder) || !getListingConfig().equals(_loadedConfig)) {
+            reloadCurrentFolder();
+        }
+    }
+
     public void reloadCurrentFolder() {
         if (_currentFolder != null) {
             loadFolder(_currentFolder, null);
@@ -346,6 +480,62 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
         loadFolder(folder, GsFileUtils.isChild(_currentFolder, folder) ? folder : null);
     }
 
+    /**
+     * Immutable metadata of a row, read once when the folder is loaded
+     */
+    static class Entry {
+        final File file;
+        final boolean isFile, isDirectory, isWriteable, isFavourite, isPopular;
+        final long modified, size;
+
+        Entry(final File file, final boolean isFile, final boolean isDirectory, final boolean isWriteable, final boolean isFavourite, final boolean isPopular, final long modified, final long size) {
+            this.file = file;
+            this.isFile = isFile;
+            this.isDirectory = isDirectory;
+            this.isWriteable = isWriteable;
+            this.isFavourite = isFavourite;
+            this.isPopular = isPopular;
+            this.modified = modified;
+            this.size = size;
+        }
+
+        boolean isSameContent(final Entry other) {
+            return isFile == other.isFile && isDirectory == other.isDirectory && isWriteable == other.isWriteable
+                    && isFavourite == other.isFavourite && isPopular == other.isPopular
+                    && modified == other.modified && size == other.size;
+        }
+    }
+
+    /**
+     * Does I/O, not to be called on the main thread
+     *
+     * @param listed Attributes from the folder listing, if available
+     */
+    private Entry makeEntry(final File displayFile, @Nullable final GsFileUtils.DirEntry listed) {
+        final File file = GsCollectionUtils.getOrDefault(_virtualMapping, displayFile, displayFile);
+        final GsFileUtils.DirEntry display = listed != null ? listed : GsFileUtils.DirEntry.of(displayFile);
+        final GsFileUtils.DirEntry attrs = file == displayFile ? display : GsFileUtils.DirEntry.of(file);
+        return new Entry(
+                displayFile,
+                display.isFile(),
+                display.isDirectory(),
+                canWrite(displayFile),
+                _dopt.favouriteFiles != null && _dopt.favouriteFiles.contains(displayFile),
+                _dopt.popularFiles != null && _dopt.popularFiles.contains(displayFile),
+                attrs.lastModified(),
+                attrs.length());
+    }
+
+    // Hand a new list of files to the differ, the adapter is notified of the changed rows only
+    private void submitFiles(final List<File> files, @Nullable final Runnable commitCallback) {
+        final List<Entry> list = new ArrayList<>(files.size());
+        for (final File file : files) {
+            final Entry entry = _entries.get(file);
+            list.add(entry != null ? entry : new Entry(file, false, false, false, false, false, 0, 0));
+        }
+        _differ.submitList(list, commitCallback);
+    }
+
     public static class TagContainer {
         public final File file;
         public final int position;
@@ -519,7 +709,11 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
             }
         }
 
-        notifyItemChanged(data.position);
+        // Rows may have moved since the tag was bound, as unchanged rows are not rebound
+        final int position = _adapterDataFiltered.indexOf(data.file);
+        if (position >= 0) {
+            notifyItemChanged(position);
+        }
         _dopt.listener.onFsViewerDoUiUpdate(this);
 
         return clickHandled;
@@ -672,6 +866,9 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
             updateVirtualFolders();
         }
 
+        // Watch before listing, so no change gets lost in between
+        watchFolder(isWatchable(_currentFolder) ? _currentFolder : null);
+
         if (_currentFolder != null) {
             final File toShow = show == null ? _fileToShowAfterNextLoad : show;
             _fileToShowAfterNextLoad = null;
@@ -686,6 +883,18 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
 
     // This function is not called on the main thread
     private synchronized void _loadFolder(final boolean folderChanged, final @Nullable File toShow) {
+        final long start = System.currentTimeMillis();
+        final File folder = _currentFolder;
+        final String config = getListingConfig();
+
+        // Show the last known listing right away, it is revalidated below
+        final boolean useCache = _dopt.fileOverallFilter == null;
+        final GsFileBrowserListingCache cache = GsFileBrowserListingCache.get(_context);
+        final GsFileBrowserListingCache.Listing cached = useCache && folderChanged ? cache.get(folder, config) : null;
+        if (cached != null) {
+            postCachedListing(folder, cached, toShow);
+            Log.d(GsFileBrowserListAdapter.class.getName(), "Cached listing of " + folder + " after " + (System.currentTimeMillis() - start) + "ms");
+        }
 
         final List<File> newData = new ArrayList<>();
 
@@ -713,51 +922,185 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
             newData.addAll(_dopt.favouriteFiles);
         }
 
+        final File goUp = getCurrentParent();
+
+        // All metadata for binding and diffing is read here, not on the main thread
+        final Map<File, Entry> entries = new HashMap<>();
+        if (goUp != null) {
+            entries.put(goUp, makeEntry(goUp, null));
+        }
+
+        // Attributes come with the listing, they are reused for the row metadata
+        final Map<File, GsFileUtils.DirEntry> listed = new HashMap<>();
+        final Map<File, Boolean> accepted = new HashMap<>(); // Checked while reading a large folder
+        final boolean[] shownPartial = {false};
         if (_currentFolder.isDirectory() && _currentFolder.canRead()) {
-            GsCollectionUtils.addAll(newData, _currentFolder.listFiles());
+            // Large folders are shown while they are read, unless the cached listing is shown already
+            final boolean progressive = cached == null && newData.isEmpty() && isCurrentFolderSortable();
+            final List<File> partial = new ArrayList<>();
+            final Set<File> partialMatches = new HashSet<>();
+            final List<GsFileUtils.DirEntry> dirEntries = GsFileUtils.listDirEntries(_currentFolder, LISTING_FIRST_CHUNK, !progressive ? null : chunk -> {
+                final List<File> added = new ArrayList<>();
+                for (final GsFileUtils.DirEntry entry : chunk) {
+                    listed.put(entry.file, entry);
+                    final boolean ok = accept(entry.file);
+                    accepted.put(entry.file, ok);
+                    if (ok) {
+                        added.add(entry.file);
+                        entries.put(entry.file, makeEntry(entry.file, entry));
+                    }
+                }
+
+                // Only the new files are filtered, then everything read so far is sorted again
+                final List<File> addedMatches = new ArrayList<>();
+                _filter._filter(added, addedMatches);
+                partialMatches.addAll(addedMatches);
+                partial.addAll(added);
+                GsFileUtils.sortFiles(partial, _dopt.sortOrder, listed::get);
+
+                final List<File> partialFiltered = new ArrayList<>();
+                for (final File file : partial) {
+                    if (partialMatches.contains(file)) {
+                        partialFiltered.add(file);
+                    }
+                }
+                postListing(folder, folderChanged && !shownPartial[0], true, goUp, new ArrayList<>(partial), partialFiltered, new HashMap<>(entries), config, null);
+                shownPartial[0] = true;
+            });
+
+            if (dirEntries != null) {
+                for (final GsFileUtils.DirEntry entry : dirEntries) {
+                    newData.add(entry.file);
+                    listed.put(entry.file, entry);
+                }
+            }
         }
 
-        GsCollectionUtils.keepIf(newData, this::accept);
+        GsCollectionUtils.keepIf(newData, f -> {
+            final Boolean ok = accepted.get(f);
+            return ok != null ? ok : accept(f);
+        });
         GsCollectionUtils.deduplicate(newData);
 
         // Don't sort recent or virtual root items - use the default order
         if (isCurrentFolderSortable()) {
-            GsFileUtils.sortFiles(newData, _dopt.sortOrder);
+            GsFileUtils.sortFiles(newData, _dopt.sortOrder, listed::get);
         }
 
-        // Testing if modtimes have changed (modtimes generally only increase)
-        final long modSum = GsCollectionUtils.accumulate(newData, (f, s) -> s + f.lastModified(), 0L);
-        final boolean modSumChanged = modSum != _prevModSum;
+        for (final File file : newData) {
+            if (!entries.containsKey(file)) {
+                entries.put(file, makeEntry(file, listed.get(file)));
+            }
+        }
 
-        final File goUp = getCurrentParent();
+        final GsFileBrowserListingCache.Listing listing = new GsFileBrowserListingCache.Listing(config, goUp, orderedEntries(newData, entries));
+        if (useCache) {
+            cache.put(folder, listing, isSnapshotFolder(folder));
+        }
 
-        if (folderChanged || modSumChanged || !newData.equals(_adapterData)) {
+        final boolean changed = shownPartial[0] || (cached != null ? !cached.isSame(listing) : (folderChanged || !newData.equals(_adapterData) || !isSameContent(entries, _entries)));
+        if (changed) {
             final ArrayList<File> filteredData = new ArrayList<>();
             _filter._filter(newData, filteredData);
+            // The cached listing was already scrolled to the file, if it contained it
+            final boolean shown = cached != null && toShow != null && containsFile(cached, toShow);
+            postListing(folder, folderChanged && cached == null && !shownPartial[0], shownPartial[0], goUp, newData, filteredData, entries, config, shown ? null : toShow);
+        } else if (cached == null) {
+            postScrollToAndFlash(toShow);
+        }
+        Log.d(GsFileBrowserListAdapter.class.getName(), "Listed " + folder + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
 
-            _recyclerView.post(() -> {
-                // Modify all these values in the UI thread
-                _goUpFile = goUp;
-                _adapterData.clear();
-                _adapterDataFiltered.clear();
-                if (_goUpFile != null) {
-                    _adapterData.add(_goUpFile);
-                    _adapterDataFiltered.add(_goUpFile);
-                }
-                _adapterData.addAll(newData);
-                _adapterDataFiltered.addAll(filteredData);
-                _currentSelection.retainAll(_adapterDataFiltered);
-                _prevModSum = modSum;
+    private void postCachedListing(final File folder, final GsFileBrowserListingCache.Listing cached, final @Nullable File toShow) {
+        final List<File> files = new ArrayList<>(cached.entries.size());
+        final Map<File, Entry> entries = new HashMap<>();
+        for (final Entry entry : cached.entries) {
+            files.add(entry.file);
+            entries.put(entry.file, entry);
+        }
+        if (cached.goUp != null) {
+            entries.put(cached.goUp, new Entry(cached.goUp, false, true, true, false, false, 0, 0));
+        }
 
-                if (folderChanged) {
-                    _fileIdMap.clear();
-                }
+        final ArrayList<File> filteredData = new ArrayList<>();
+        _filter._filter(files, filteredData);
+        postListing(folder, true, true, cached.goUp, files, filteredData, entries, cached.config, toShow);
+    }
+
+    private static boolean containsFile(final GsFileBrowserListingCache.Listing listing, final File file) {
+        for (final Entry entry : listing.entries) {
+            if (entry.file.equals(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Entry> orderedEntries(final List<File> files, final Map<File, Entry> entries) {
+        final List<Entry> ordered = new ArrayList<>(files.size());
+        for (final File file : files) {
+            final Entry entry = entries.get(file);
+            if (entry != null) {
+                ordered.add(entry);
+            }
+        }
+        return ordered;
+    }
 
-                // TODO - add logic to notify the changed bits
-                notifyDataSetChanged();
+    // Listings of these folders are kept on disk, so they can be shown right after app start
+    private boolean isSnapshotFolder(final File folder) {
+        return folder.equals(_dopt.rootFolder) || (_dopt.favouriteFiles != null && _dopt.favouriteFiles.contains(folder));
+    }
 
+    /**
+     * Show a new listing of the folder, called from the loader threads
+     *
+     * @param replace Replace the rows without diffing, i.e. for partial listings of large folders
+     */
+    private void postListing(final File folder, final boolean folderChanged, final boolean replace, final @Nullable File goUp, final List<File> newData,
+                             final List<File> filteredData, final Map<File, Entry> entries, final String config, final @Nullable File toShow) {
+        final RecyclerView recyclerView = _recyclerView;
+        if (recyclerView == null) {
+            return;
+        }
+
+        recyclerView.post(() -> {
+            if (!folder.equals(_currentFolder)) {
+                return; // Outdated
+            }
+
+            // Modify all these values in the UI thread
+            _goUpFile = goUp;
+            _adapterData.clear();
+            final List<File> shown = new ArrayList<>();
+            if (_goUpFile != null) {
+                _adapterData.add(_goUpFile);
+                shown.add(_goUpFile);
+            }
+            _adapterData.addAll(newData);
+            shown.addAll(filteredData);
+            _entries = entries;
+            _listedFolder = folder;
+            _loadedConfig = config;
+            _currentSelection.retainAll(shown);
+
+            // Events which arrived while listing
+            if (hasPendingFolderEvents()) {
+                recyclerView.postDelayed(_applyFolderEvents, FOLDER_EVENT_DELAY_MS);
+            }
+
+            final Parcelable scrollState = replace && !folderChanged && _layoutManager != null ? _layoutManager.onSaveInstanceState() : null;
+            if (folderChanged) {
+                _fileIdMap.clear();
+            }
+            if (replace) {
+                // Nothing in common with the previous folder, or too many changes to diff
+                _differ.submitList(null);
+            }
+
+            submitFiles(shown, () -> {
                 if (folderChanged) {
-                    _recyclerView.post(() -> {
+                    recyclerView.post(() -> {
                         if (_layoutManager != null) {
                             _layoutManager.onRestoreInstanceState(_folderScrollMap.remove(_currentFolder));
                         }
@@ -765,6 +1108,9 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
                         postScrollToAndFlash(toShow);
                     });
                 } else {
+                    if (scrollState != null && _layoutManager != null) {
+                        _layoutManager.onRestoreInstanceState(scrollState);
+                    }
                     postScrollToAndFlash(toShow);
                 }
 
@@ -772,11 +1118,155 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
                     _dopt.listener.onFsViewerDoUiUpdate(GsFileBrowserListAdapter.this);
                 }
             });
-        } else {
-            postScrollToAndFlash(toShow);
+        });
+    }
+
+    private static boolean isSameContent(final Map<File, Entry> a, final Map<File, Entry> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (final Map.Entry<File, Entry> entry : a.entrySet()) {
+            final Entry other = b.get(entry.getKey());
+            if (other == null || !other.isSameContent(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Options which change the listing of a folder without any change on disk. Recent and popular
+    // files change with every opened document, they only matter for their virtual folders
+    private String getListingConfig() {
+        final boolean isRecentOrPopular = VIRTUAL_STORAGE_RECENTS.equals(_currentFolder) || VIRTUAL_STORAGE_POPULAR.equals(_currentFolder);
+        return _dopt.sortOrder + "|" + Arrays.hashCode(new Object[]{
+                _dopt.favouriteFiles, isRecentOrPopular ? _dopt.popularFiles : null, isRecentOrPopular ? _dopt.recentFiles : null,
+                _dopt.fileOverallFilter, _dopt.doSelectFile});
+    }
+
+    // Virtual folders are assembled from other sources, so there is nothing to watch
+    private static boolean isWatchable(final @Nullable File folder) {
+        return folder != null && !isVirtualFolder(folder) && !VIRTUAL_STORAGE_EMULATED.equals(folder) && !folder.equals(new File("/"));
+    }
+
+    // Main thread only. Null stops watching
+    private void watchFolder(final @Nullable File folder) {
+        if (_folderObserver != null) {
+            if (_folderObserver.getFile().equals(folder)) {
+                return;
+            }
+            _folderObserver.stopWatching();
+            _folderObserver = null;
+        }
+
+        synchronized (_pendingFolderEvents) {
+            _pendingFolderEvents.clear();
+            _folderNeedsReload = false;
+        }
+
+        if (folder != null) {
+            final int mask = GsFileObserver.CREATE | GsFileObserver.DELETE | GsFileObserver.MOVED_FROM | GsFileObserver.MOVED_TO
+                    | GsFileObserver.CLOSE_WRITE | GsFileObserver.ATTRIB | GsFileObserver.DELETE_SELF | GsFileObserver.MOVE_SELF;
+            _folderObserver = new GsFileObserver(folder, mask, this::onFolderEvent);
+            _folderObserver.startWatching();
+        }
+    }
+
+    // Called on the observer thread
+    private void onFolderEvent(final int event, final @Nullable String name) {
+        final int type = event & GsFileObserver.ALL_EVENTS;
+        synchronized (_pendingFolderEvents) {
+            if ((type & (GsFileObserver.DELETE_SELF | GsFileObserver.MOVE_SELF)) != 0) {
+                _folderNeedsReload = true;
+            } else if (type != 0 && name != null) {
+                _pendingFolderEvents.add(name);
+            } else {
+                return;
+            }
+        }
+
+        final RecyclerView recyclerView = _recyclerView;
+        if (recyclerView != null) {
+            recyclerView.removeCallbacks(_applyFolderEvents);
+            recyclerView.postDelayed(_applyFolderEvents, FOLDER_EVENT_DELAY_MS);
         }
     }
 
+    private boolean hasPendingFolderEvents() {
+        synchronized (_pendingFolderEvents) {
+            return _folderNeedsReload || !_pendingFolderEvents.isEmpty();
+        }
+    }
+
+    // Main thread. Applies the collected events, a full reload only if the folder itself changed
+    private void applyFolderEvents() {
+        final File folder = _folderObserver != null ? _folderObserver.getFile() : null;
+        if (folder == null || !folder.equals(_currentFolder) || !folder.equals(_listedFolder)) {
+            return; // Not listed yet, applied after the listing is shown
+        }
+
+        final Set<String> names;
+        final boolean needsReload;
+        synchronized (_pendingFolderEvents) {
+            names = new HashSet<>(_pendingFolderEvents);
+            needsReload = _folderNeedsReload;
+            _pendingFolderEvents.clear();
+            _folderNeedsReload = false;
+        }
+
+        if (needsReload) {
+            // The watch may be gone with the folder, it is set up again by the reload
+            watchFolder(null);
+            reloadCurrentFolder();
+            return;
+        } else if (names.isEmpty()) {
+            return;
+        }
+
+        final List<File> data = new ArrayList<>(_adapterData);
+        final Map<File, Entry> entries = new HashMap<>(_entries);
+        final File goUp = _goUpFile;
+        final String config = _loadedConfig;
+        try {
+            executorService.execute(() -> _applyFolderChanges(folder, names, goUp, data, entries, config));
+        } catch (RejectedExecutionException err) { // during exit
+            Log.d(GsFileBrowserListAdapter.class.getName(), err.toString());
+        }
+    }
+
+    // This function is not called on the main thread. Only the changed files are read
+    private synchronized void _applyFolderChanges(final File folder, final Set<String> names, final @Nullable File goUp,
+                                                  final List<File> data, final Map<File, Entry> entries, final String config) {
+        if (goUp != null) {
+            data.remove(goUp);
+        }
+
+        for (final String name : names) {
+            final File file = new File(folder, name);
+            data.remove(file);
+            entries.remove(file);
+            if (file.exists() && accept(file)) {
+                data.add(file);
+                entries.put(file, makeEntry(file, GsFileUtils.DirEntry.of(file)));
+            }
+        }
+
+        if (isCurrentFolderSortable()) {
+            GsFileUtils.sortFiles(data, _dopt.sortOrder, f -> {
+                final Entry entry = entries.get(f);
+                return entry != null ? GsFileUtils.DirEntry.of(f, entry.isDirectory, entry.modified, entry.size) : null;
+            });
+        }
+
+        if (_dopt.fileOverallFilter == null) {
+            final GsFileBrowserListingCache.Listing listing = new GsFileBrowserListingCache.Listing(config, goUp, orderedEntries(data, entries));
+            GsFileBrowserListingCache.get(_context).put(folder, listing, isSnapshotFolder(folder));
+        }
+
+        final ArrayList<File> filteredData = new ArrayList<>();
+        _filter._filter(data, filteredData);
+        postListing(folder, false, false, goUp, data, filteredData, entries, config, null);
+    }
+
     private boolean canWrite(File file) {
         if (file != null) {
             return file.canWrite() || (_dopt.mountedStorageFolder != null && file.getAbsolutePath().startsWith(_dopt.mountedStorageFolder.getAbsolutePath()));
@@ -857,9 +1347,7 @@ public class GsFileBrowserListAdapter extends RecyclerView.Adapter<GsFileBrowser
         @Override
         @SuppressWarnings("unchecked")
         protected void publishResults(CharSequence constraint, FilterResults results) {
-            _adapter._adapterDataFiltered.clear();
-            _adapter._adapterDataFiltered.addAll((ArrayList<File>) results.values);
-            _adapter.notifyDataSetChanged();
+            _adapter.submitFiles(new ArrayList<>((ArrayList<File>) results.values), null);
         }
     }
 
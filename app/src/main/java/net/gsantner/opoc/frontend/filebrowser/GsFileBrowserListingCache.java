@@ -0,0 +1,205 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2025 Gregor Santner <gsantner AT mailbox DOT org>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2025 by Gregor Santner <gsantner AT mailbox DOT org>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.frontend.filebrowser;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.gsantner.opoc.util.GsFileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recent folder listings of the file browser, so a folder can be shown before it was read again.
+ * <p>
+ * Listings are kept in a small in-memory LRU. Listings of selected folders (notebook root,
+ * favourites) are also written to compact snapshots in the cache dir, so they are available right
+ * after app start. A listing is only returned for the same listing options it was made with.
+ * It may be outdated, callers are expected to revalidate.
+ * <p>
+ * All methods are thread safe. Methods which may touch the disk should not be called on the main thread.
+ */
+class GsFileBrowserListingCache {
+    private static final String SNAPSHOT_FOLDER = "folder-listings";
+    private static final int MAGIC = 0x47534C43; // GSLC
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 16;
+
+    private static final int FLAG_FILE = 1, FLAG_DIRECTORY = 2, FLAG_WRITEABLE = 4, FLAG_FAVOURITE = 8, FLAG_POPULAR = 16;
+
+    /**
+     * Rows of a folder in display order, without the go up entry
+     */
+    static class Listing {
+        final String config;
+        final File goUp;
+        final List<GsFileBrowserListAdapter.Entry> entries;
+
+        Listing(final String config, @Nullable final File goUp, final List<GsFileBrowserListAdapter.Entry> entries) {
+            this.config = config;
+            this.goUp = goUp;
+            this.entries = Collections.unmodifiableList(entries);
+        }
+
+        boolean isSame(final Listing other) {
+            if (!config.equals(other.config) || (goUp == null ? other.goUp != null : !goUp.equals(other.goUp)) || entries.size() != other.entries.size()) {
+                return false;
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                final GsFileBrowserListAdapter.Entry a = entries.get(i), b = other.entries.get(i);
+                if (!a.file.equals(b.file) || !a.isSameContent(b)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static GsFileBrowserListingCache _instance;
+
+    static synchronized GsFileBrowserListingCache get(final Context context) {
+        if (_instance == null) {
+            _instance = new GsFileBrowserListingCache(new File(context.getApplicationContext().getCacheDir(), SNAPSHOT_FOLDER));
+        }
+        return _instance;
+    }
+
+    private final File _snapshotFolder;
+
+    // Access ordered, eldest is dropped first
+    private final LinkedHashMap<String, Listing> _listings = new LinkedHashMap<String, Listing>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Listing> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private GsFileBrowserListingCache(final File snapshotFolder) {
+        _snapshotFolder = snapshotFolder;
+    }
+
+    /**
+     * Listing from memory, or from the snapshot of the folder
+     *
+     * @param config Listing options, an entry made with other options is not returned
+     */
+    @Nullable
+    Listing get(final File folder, final String config) {
+        final String key = folder.getAbsolutePath();
+        Listing listing;
+        synchronized (this) {
+            listing = _listings.get(key);
+        }
+        if (listing == null) {
+            listing = readSnapshot(folder);
+            if (listing != null) {
+                synchronized (this) {
+                    _listings.put(key, listing);
+                }
+            }
+        }
+        return listing != null && listing.config.equals(config) ? listing : null;
+    }
+
+    /**
+     * @param persist Also write a snapshot to disk, if the listing changed
+     */
+    void put(final File folder, final Listing listing, final boolean persist) {
+        final Listing previous;
+        synchronized (this) {
+            previous = _listings.put(folder.getAbsolutePath(), listing);
+        }
+
+        final File snapshot = getSnapshotFile(folder);
+        if (persist && (previous == null || !previous.isSame(listing) || !snapshot.exists())) {
+            writeSnapshot(folder, listing, snapshot);
+        }
+    }
+
+    private File getSnapshotFile(final File folder) {
+        final String path = folder.getAbsolutePath();
+        return new File(_snapshotFolder, Long.toHexString(GsFileUtils.crc32(path)) + "-" + Integer.toHexString(path.hashCode()) + ".lst");
+    }
+
+    private void writeSnapshot(final File folder, final Listing listing, final File snapshot) {
+        final File temp = new File(snapshot.getAbsolutePath() + ".tmp");
+        if (!_snapshotFolder.exists() && !_snapshotFolder.mkdirs()) {
+            return;
+        }
+
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(folder.getAbsolutePath());
+            out.writeUTF(listing.config);
+            out.writeUTF(listing.goUp != null ? listing.goUp.getAbsolutePath() : "");
+            out.writeInt(listing.entries.size());
+            for (final GsFileBrowserListAdapter.Entry entry : listing.entries) {
+                out.writeUTF(entry.file.getAbsolutePath());
+                out.writeByte((entry.isFile ? FLAG_FILE : 0) | (entry.isDirectory ? FLAG_DIRECTORY : 0) | (entry.isWriteable ? FLAG_WRITEABLE : 0)
+                        | (entry.isFavourite ? FLAG_FAVOURITE : 0) | (entry.isPopular ? FLAG_POPULAR : 0));
+                out.writeLong(entry.modified);
+                out.writeLong(entry.size);
+            }
+        } catch (IOException e) {
+            Log.e(GsFileBrowserListingCache.class.getName(), "Could not write folder listing " + snapshot, e);
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(snapshot)) {
+            temp.delete();
+        }
+    }
+
+    @Nullable
+    private Listing readSnapshot(final File folder) {
+        final File snapshot = getSnapshotFile(folder);
+        if (!snapshot.exists()) {
+            return null;
+        }
+
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION || !in.readUTF().equals(folder.getAbsolutePath())) {
+                return null;
+            }
+            final String config = in.readUTF();
+            final String goUp = in.readUTF();
+            final int count = in.readInt();
+            final List<GsFileBrowserListAdapter.Entry> entries = new ArrayList<>(Math.max(0, Math.min(count, 10000)));
+            for (int i = 0; i < count; i++) {
+                final File file = new File(in.readUTF());
+                final int flags = in.readByte();
+                entries.add(new GsFileBrowserListAdapter.Entry(file, (flags & FLAG_FILE) != 0, (flags & FLAG_DIRECTORY) != 0, (flags & FLAG_WRITEABLE) != 0,
+                        (flags & FLAG_FAVOURITE) != 0, (flags & FLAG_POPULAR) != 0, in.readLong(), in.readLong()));
+            }
+            return new Listing(config, goUp.isEmpty() ? null : new File(goUp), entries);
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or truncated, it is written again with the next listing
+            Log.w(GsFileBrowserListingCache.class.getName(), "Discarding folder listing " + snapshot, e);
+            snapshot.delete();
+            return null;
+        }
+    }
+}
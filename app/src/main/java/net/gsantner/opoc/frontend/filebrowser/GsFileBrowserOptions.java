@@ -66,6 +66,8 @@ public class GsFileBrowserOptions {
 
         public boolean descModtimeInsteadOfParent = false;
 
+        public boolean showImageThumbnails = true; // Instead of fileImage for image files
+
         public int itemSidePadding = 16; // dp
 
         // Visibility of elements
@@ -37,10 +37,12 @@ public class MainActivity extends AppCompatActivity {
 
 package net.gsantner.opoc.frontend.textview;
 
-import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
 import android.text.Selection;
+import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.text.style.UnderlineSpan;
 import android.util.Log;
@@ -48,17 +50,47 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import net.gsantner.markor.frontend.textview.TextViewUtils;
+import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.wrapper.GsCallback;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A generic undo/redo implementation for TextViews.
+ * The history is bounded by memory and can be persisted to a compact binary journal per document.
  */
 public class TextViewUndoRedo {
 
+    /**
+     * Default upper bound for the memory held by the edit history (chars are counted as 2 bytes)
+     */
+    public static final long DEFAULT_MAX_HISTORY_BYTES = 4 * 1024 * 1024;
+
+    private static final int JOURNAL_MAGIC = 0x4D4B5552; // "MKUR"
+    private static final int JOURNAL_VERSION = 1;
+    private static final String JOURNAL_FOLDER = ".undo";
+
+    // Single worker so that journal writes for the same document never overtake each other
+    private static final ExecutorService JOURNAL_EXECUTOR = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+
     /**
      * Is undo/redo being performed? This member signals if an undo/redo
      * operation is currently being performed. Changes in the text during
@@ -97,8 +129,13 @@ public class TextViewUndoRedo {
         mTextView.addTextChangedListener(mChangeListener);
     }
 
-    public String undoRedoPrefKeyForFile(File file) {
-        return "file-" + file.getAbsolutePath().replace("/", "-");
+    /**
+     * Get the location of the undo journal of a document, inside app-private storage
+     */
+    public static File getJournalFile(final Context context, final File file) {
+        final String path = file.getAbsolutePath();
+        final String name = Long.toHexString(GsFileUtils.crc32(path)) + "-" + Integer.toHexString(path.hashCode()) + ".undo";
+        return new File(new File(context.getFilesDir(), JOURNAL_FOLDER), name);
     }
 
     // =================================================================== //
@@ -128,6 +165,14 @@ public class TextViewUndoRedo {
         mEditHistory.setMaxHistorySize(maxHistorySize);
     }
 
+    /**
+     * Set the maximum memory used by the history, in bytes. Oldest items are evicted first.
+     * If size is negative, then history memory is only limited by the device memory.
+     */
+    public void setMaxHistoryBytes(long maxHistoryBytes) {
+        mEditHistory.setMaxHistoryBytes(maxHistoryBytes);
+    }
+
     /**
      * Clear history.
      */
@@ -146,9 +191,33 @@ public class TextViewUndoRedo {
      * Perform undo.
      */
     public void undo() {
+        undo(1);
+    }
+
+    /**
+     * Perform several undo steps as a single editing transaction.
+     */
+    public void undo(final int steps) {
+        if (mTextView == null) {
+            return;
+        }
+
+        mTextView.beginBatchEdit();
+        try {
+            for (int i = 0; i < steps; i++) {
+                if (!undoStep()) {
+                    break;
+                }
+            }
+        } finally {
+            mTextView.endBatchEdit();
+        }
+    }
+
+    private boolean undoStep() {
         final EditItem edit = mEditHistory.getPrevious();
         if (edit == null) {
-            return;
+            return false;
         }
 
         final Editable text = mTextView.getEditableText();
@@ -162,19 +231,17 @@ public class TextViewUndoRedo {
             // In case a undo would crash the app, don't do it instead
             Log.e(getClass().getName(), "undo() Error in text.replace" + ex);
             Toast.makeText(mTextView.getContext(), "undo() Error in text.replace" + ex, Toast.LENGTH_LONG).show();
-            return;
+            return false;
+        } finally {
+            mIsUndoOrRedo = false;
         }
-        mIsUndoOrRedo = false;
 
-        // This will get rid of underlines inserted when editor tries to come
-        // up with a suggestion.
-        for (Object o : text.getSpans(0, text.length(), UnderlineSpan.class)) {
-            text.removeSpan(o);
-        }
+        removeSuggestionSpans(text, start, start + edit.before.length());
 
         if (edit.selBefore >= 0 && edit.selBefore <= text.length()) {
             Selection.setSelection(text, edit.selBefore);
         }
+        return true;
     }
 
     /**
@@ -188,9 +255,33 @@ public class TextViewUndoRedo {
      * Perform redo.
      */
     public void redo() {
+        redo(1);
+    }
+
+    /**
+     * Perform several redo steps as a single editing transaction.
+     */
+    public void redo(final int steps) {
+        if (mTextView == null) {
+            return;
+        }
+
+        mTextView.beginBatchEdit();
+        try {
+            for (int i = 0; i < steps; i++) {
+                if (!redoStep()) {
+                    break;
+                }
+            }
+        } finally {
+            mTextView.endBatchEdit();
+        }
+    }
+
+    private boolean redoStep() {
         final EditItem edit = mEditHistory.getNext();
         if (edit == null) {
-            return;
+            return false;
         }
 
         final Editable text = mTextView.getEditableText();
@@ -198,97 +289,230 @@ public class TextViewUndoRedo {
         final int end = start + (edit.before != null ? edit.before.length() : 0);
 
         mIsUndoOrRedo = true;
-        text.replace(start, end, edit.after);
-        mIsUndoOrRedo = false;
-
-        // This will get rid of underlines inserted when editor tries to come
-        // up with a suggestion.
-        for (Object o : text.getSpans(0, text.length(), UnderlineSpan.class)) {
-            text.removeSpan(o);
+        try {
+            text.replace(start, end, edit.after);
+        } finally {
+            mIsUndoOrRedo = false;
         }
 
+        removeSuggestionSpans(text, start, start + edit.after.length());
+
         if (edit.selAfter >= 0 && edit.selAfter <= text.length()) {
             Selection.setSelection(text, edit.selAfter);
         }
+        return true;
     }
 
     /**
-     * Store preferences.
+     * Run a change which was not made by the user, e.g. patching in a modified file. It is recorded
+     * as a single undo step, which is never combined with edits before or after it.
      */
-    public void storePersistentState(Editor editor, String prefix) {
-        // Store hash code of text in the editor so that we can check if the
-        // editor contents has changed.
-        editor.putString(prefix + ".hash",
-                String.valueOf(mTextView.getText().toString().hashCode()));
-        editor.putInt(prefix + ".maxSize", mEditHistory._maxHistorySize);
-        editor.putInt(prefix + ".position", mEditHistory.position);
-        editor.putInt(prefix + ".size", mEditHistory.history.size());
+    public void runAsSeparateStep(final Runnable change) {
+        if (mTextView == null) {
+            change.run();
+            return;
+        }
 
-        int i = 0;
-        for (EditItem ei : mEditHistory.history) {
-            String pre = prefix + "." + i;
+        final CharSequence before = mTextView.getText();
+        final String textBefore = before.toString();
+        final int selBefore = Selection.getSelectionStart(before);
+        mIsUndoOrRedo = true;
+        try {
+            change.run();
+        } finally {
+            mIsUndoOrRedo = false;
+        }
+
+        final CharSequence after = mTextView.getText();
+        mEditHistory.add(new EditItem(0, textBefore, after.toString(), selBefore, Selection.getSelectionStart(after)));
+        mChangeListener.isInChain = false;
+        mChangeListener.lastTime = 0;
+    }
+
+    /**
+     * This will get rid of underlines inserted when editor tries to come
+     * up with a suggestion. Only the range touched by the edit is queried,
+     * so that the cost does not scale with the spans of the whole document.
+     */
+    @VisibleForTesting
+    static void removeSuggestionSpans(final Editable text, final int start, final int end) {
+        final int length = text.length();
+        final int s = Math.max(0, Math.min(start, length));
+        final int e = Math.max(s, Math.min(end, length));
+        for (final UnderlineSpan span : text.getSpans(s, e, UnderlineSpan.class)) {
+            text.removeSpan(span);
+        }
+    }
 
-            editor.putInt(pre + ".start", ei.start);
-            editor.putString(pre + ".before", ei.before.toString());
-            editor.putString(pre + ".after", ei.after.toString());
+    /**
+     * Fingerprint used to validate that a journal belongs to the current text.
+     * Length and CRC32 are cheap to compute and already used for change tracking of documents.
+     */
+    public static long fingerprint(final CharSequence text) {
+        return text == null ? 0 : (((long) text.length()) << 32) ^ GsFileUtils.crc32(text);
+    }
 
-            i++;
+    /**
+     * Write the history to a binary journal file asynchronously.
+     * The history is snapshotted on the calling thread, all encoding and I/O happens in background.
+     */
+    public void storePersistentState(final File journal) {
+        if (mTextView == null || journal == null) {
+            return;
         }
+
+        final String text = mTextView.getText().toString();
+        final List<EditItem> items = new ArrayList<>(mEditHistory.history);
+        final int position = mEditHistory.position;
+
+        JOURNAL_EXECUTOR.execute(() -> {
+            if (items.isEmpty()) {
+                // Nothing to restore, don't leave stale journals around
+                if (journal.exists() && !journal.delete()) {
+                    Log.w(TextViewUndoRedo.class.getName(), "Could not delete undo journal " + journal);
+                }
+                return;
+            }
+
+            final File parent = journal.getParentFile();
+            final File temp = new File(journal.getAbsolutePath() + ".tmp");
+            if (parent == null || (!parent.exists() && !parent.mkdirs())) {
+                return;
+            }
+
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                writeJournal(out, fingerprint(text), position, items);
+            } catch (IOException e) {
+                Log.e(TextViewUndoRedo.class.getName(), "Could not write undo journal " + journal, e);
+                temp.delete();
+                return;
+            }
+
+            if (!temp.renameTo(journal)) {
+                temp.delete();
+            }
+        });
     }
 
     /**
-     * Restore preferences.
+     * Restore the history from a binary journal file, on the calling thread.
      *
-     * @param prefix The preference key prefix used when state was stored.
      * @return did restore succeed? If this is false, the undo history will be
      * empty.
      */
-    public boolean restorePersistentState(SharedPreferences sp, String prefix)
-            throws IllegalStateException {
-
-        boolean ok = doRestorePersistentState(sp, prefix);
-        if (!ok) {
-            mEditHistory.clear();
+    public boolean restorePersistentState(final File journal) {
+        if (mTextView == null || journal == null || !journal.exists()) {
+            // No state to be restored.
+            return true;
         }
 
+        final EditHistory restored = mEditHistory.emptyCopy();
+        final boolean ok = readJournal(journal, fingerprint(mTextView.getText()), restored);
+        mEditHistory.takeOver(ok ? restored : mEditHistory.emptyCopy());
         return ok;
     }
 
-    private boolean doRestorePersistentState(SharedPreferences sp, String prefix) {
+    /**
+     * Restore the history from a binary journal file in background, after pending journal writes.
+     * The history is only taken over if neither the text nor the history changed meanwhile.
+     *
+     * @param callback Called on the main thread with the result, see {@link #restorePersistentState(File)}. May be null
+     */
+    public void restorePersistentStateAsync(final File journal, @Nullable final GsCallback.a1<Boolean> callback) {
+        if (mTextView == null || journal == null) {
+            if (callback != null) {
+                callback.callback(true);
+            }
+            return;
+        }
 
-        String hash = sp.getString(prefix + ".hash", null);
-        if (hash == null) {
-            // No state to be restored.
-            return true;
+        final TextView textView = mTextView;
+        final String text = textView.getText().toString();
+        final EditHistory restored = mEditHistory.emptyCopy();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        JOURNAL_EXECUTOR.execute(() -> {
+            final boolean ok = !journal.exists() || readJournal(journal, fingerprint(text), restored);
+            handler.post(() -> {
+                if (ok && mTextView == textView && mEditHistory.history.isEmpty() && TextUtils.equals(text, textView.getText())) {
+                    mEditHistory.takeOver(restored);
+                }
+                if (callback != null) {
+                    callback.callback(ok);
+                }
+            });
+        });
+    }
+
+    private static void writeJournal(final DataOutputStream out, final long fingerprint, final int position, final List<EditItem> items) throws IOException {
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeByte(JOURNAL_VERSION);
+        out.writeLong(fingerprint);
+        out.writeInt(position);
+        out.writeInt(items.size());
+        for (final EditItem item : items) {
+            out.writeInt(item.start);
+            out.writeInt(item.selBefore);
+            out.writeInt(item.selAfter);
+            writeString(out, item.before);
+            writeString(out, item.after);
         }
+    }
 
-        if (Integer.parseInt(hash) != mTextView.getText().toString().hashCode()) {
+    // Any thread, fills history which is not shared yet. False if the journal is corrupt or for another text
+    private static boolean readJournal(final File journal, final long fingerprint, final EditHistory history) {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+            return readJournal(in, fingerprint, history);
+        } catch (IOException e) {
+            Log.e(TextViewUndoRedo.class.getName(), "Could not read undo journal " + journal, e);
             return false;
         }
+    }
 
-        mEditHistory.clear();
-        mEditHistory._maxHistorySize = sp.getInt(prefix + ".maxSize", -1);
+    private static boolean readJournal(final DataInputStream in, final long fingerprint, final EditHistory history) throws IOException {
+        if (in.readInt() != JOURNAL_MAGIC || in.readByte() != JOURNAL_VERSION || in.readLong() != fingerprint) {
+            return false;
+        }
 
-        int count = sp.getInt(prefix + ".size", -1);
-        if (count == -1) {
+        final int position = in.readInt();
+        final int count = in.readInt();
+        // Each item takes at least 5 ints, the rest of the file has to hold them
+        if (count < 0 || position < 0 || position > count || count > in.available() / 20) {
             return false;
         }
 
         for (int i = 0; i < count; i++) {
-            String pre = prefix + "." + i;
-
-            int start = sp.getInt(pre + ".start", -1);
-            String before = sp.getString(pre + ".before", null);
-            String after = sp.getString(pre + ".after", null);
-
-            if (start == -1 || before == null || after == null) {
+            final int start = in.readInt();
+            final int selBefore = in.readInt();
+            final int selAfter = in.readInt();
+            final String before = readString(in);
+            final String after = readString(in);
+            if (start < 0) {
                 return false;
             }
-            mEditHistory.add(new EditItem(start, before, after, -1, -1));
+            history.history.add(new EditItem(start, before, after, selBefore, selAfter));
+            history.bytes += history.history.getLast().bytes();
         }
+        history.position = position;
+        history.trimHistory();
+        return true;
+    }
 
-        mEditHistory.position = sp.getInt(prefix + ".position", -1);
-        return mEditHistory.position != -1;
+    private static void writeString(final DataOutputStream out, final String str) throws IOException {
+        // writeUTF is limited to 64k, which large pastes easily exceed
+        final byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        // For files, available() is what is left of it. A corrupt length must not allocate gigabytes
+        final int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        final byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
     }
 
     // =================================================================== //
@@ -310,6 +534,16 @@ public class TextViewUndoRedo {
          */
         private int _maxHistorySize = -1;
 
+        /**
+         * Maximum memory used by the history items, in bytes.
+         */
+        private long _maxHistoryBytes = DEFAULT_MAX_HISTORY_BYTES;
+
+        /**
+         * Approximate memory used by the history items, in bytes.
+         */
+        private long bytes = 0;
+
         /**
          * The list of edits in chronological order.
          */
@@ -320,9 +554,31 @@ public class TextViewUndoRedo {
          */
         private void clear() {
             position = 0;
+            bytes = 0;
             history.clear();
         }
 
+        /**
+         * Empty history with the same limits.
+         */
+        private EditHistory emptyCopy() {
+            final EditHistory copy = new EditHistory();
+            copy._maxHistorySize = _maxHistorySize;
+            copy._maxHistoryBytes = _maxHistoryBytes;
+            return copy;
+        }
+
+        /**
+         * Replace the items of this history by the ones of other.
+         */
+        private void takeOver(final EditHistory other) {
+            clear();
+            history.addAll(other.history);
+            position = other.position;
+            bytes = other.bytes;
+            trimHistory();
+        }
+
         /**
          * Adds a new edit operation to the history at the current position. If
          * executed after a call to getPrevious() removes all the future history
@@ -334,14 +590,13 @@ public class TextViewUndoRedo {
             }
 
             while (history.size() > position) {
-                history.removeLast();
+                bytes -= history.removeLast().bytes();
             }
             history.add(item);
+            bytes += item.bytes();
             position++;
 
-            if (_maxHistorySize >= 0) {
-                trimHistory();
-            }
+            trimHistory();
         }
 
         /**
@@ -350,17 +605,30 @@ public class TextViewUndoRedo {
          */
         private void setMaxHistorySize(int maxHistorySize) {
             _maxHistorySize = maxHistorySize;
-            if (_maxHistorySize >= 0) {
-                trimHistory();
-            }
+            trimHistory();
+        }
+
+        /**
+         * Set the maximum memory used by the history. If negative, memory
+         * is only limited by the device memory.
+         */
+        private void setMaxHistoryBytes(long maxHistoryBytes) {
+            _maxHistoryBytes = maxHistoryBytes;
+            trimHistory();
         }
 
         /**
-         * Trim history when it exceeds max history size.
+         * Trim history when it exceeds max history size or memory, oldest first.
+         * The most recent item is always kept, even if it alone exceeds the memory limit.
          */
         private void trimHistory() {
-            while (history.size() > _maxHistorySize) {
-                history.removeFirst();
+            while (!history.isEmpty() && _maxHistorySize >= 0 && history.size() > _maxHistorySize) {
+                bytes -= history.removeFirst().bytes();
+                position--;
+            }
+
+            while (history.size() > 1 && _maxHistoryBytes >= 0 && bytes > _maxHistoryBytes) {
+                bytes -= history.removeFirst().bytes();
                 position--;
             }
 
@@ -431,6 +699,11 @@ public class TextViewUndoRedo {
             return before.equals(after);
         }
 
+        // Approximate memory footprint: 2 bytes per char plus object overhead
+        public long bytes() {
+            return 2L * (before.length() + after.length()) + 64;
+        }
+
         public boolean equals(final EditItem other) {
             return other != null && start == other.start && before.equals(other.before) && after.equals(other.after);
         }
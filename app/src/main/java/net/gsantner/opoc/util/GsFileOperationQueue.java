@@ -0,0 +1,448 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2025 Gregor Santner <gsantner AT mailbox DOT org>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2025 by Gregor Santner <gsantner AT mailbox DOT org>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copy and move files and folders in the background, one job after another.
+ * <p>
+ * Moves are done by rename where possible, i.e. on the same filesystem. Otherwise files are copied
+ * with {@link GsFileUtils#copyFile(File, File, boolean, GsCallback.b1)} to a {@link #PART_SUFFIX}
+ * file next to the destination, which is renamed when complete. Conflicts have to be resolved
+ * before submitting, an operation either has a free destination or overwrites it.
+ * <p>
+ * Pending operations are kept in a journal. If the process dies in between, {@link #resumeInterrupted}
+ * continues them: complete files are skipped, part files are continued, and an overwritten
+ * destination is not deleted twice.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class GsFileOperationQueue {
+    public static final String PART_SUFFIX = ".part";
+
+    private static final String JOURNAL_FILE = "file-operations.journal";
+    private static final int MAGIC = 0x47534651; // GSFQ
+    private static final int VERSION = 1;
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    private static final ExecutorService _executor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private static final Handler _mainHandler = new Handler(Looper.getMainLooper());
+    private static GsFileOperationQueue _instance;
+
+    public static synchronized GsFileOperationQueue get(final Context context) {
+        if (_instance == null) {
+            _instance = new GsFileOperationQueue(new File(context.getApplicationContext().getFilesDir(), JOURNAL_FILE));
+        }
+        return _instance;
+    }
+
+    /**
+     * Copy or move of a single file or folder to its final destination
+     */
+    public static class Operation {
+        public final File src;
+        public final File dest;
+        public final boolean isMove;
+        public final boolean overwrite; // Delete an existing dest first
+
+        public Operation(final File src, final File dest, final boolean isMove, final boolean overwrite) {
+            this.src = src;
+            this.dest = dest;
+            this.isMove = isMove;
+            this.overwrite = overwrite;
+        }
+    }
+
+    /**
+     * Snapshot of the progress of a job
+     */
+    public static class Progress {
+        public final long bytesDone, bytesTotal;
+        public final int filesDone, filesTotal;
+        public final int failed; // Operations which did not complete
+        public final boolean finished, cancelled;
+
+        Progress(final long bytesDone, final long bytesTotal, final int filesDone, final int filesTotal, final int failed, final boolean finished, final boolean cancelled) {
+            this.bytesDone = bytesDone;
+            this.bytesTotal = bytesTotal;
+            this.filesDone = filesDone;
+            this.filesTotal = filesTotal;
+            this.failed = failed;
+            this.finished = finished;
+            this.cancelled = cancelled;
+        }
+
+        public int percent() {
+            return bytesTotal > 0 ? (int) (100 * bytesDone / bytesTotal) : (filesTotal > 0 ? 100 * filesDone / filesTotal : 0);
+        }
+    }
+
+    /**
+     * Handle of submitted operations
+     */
+    public static class Job {
+        private final AtomicBoolean _cancelled = new AtomicBoolean(false);
+
+        /**
+         * Stop after the current chunk, the partly copied file is removed
+         */
+        public void cancel() {
+            _cancelled.set(true);
+        }
+
+        public boolean isCancelled() {
+            return _cancelled.get();
+        }
+    }
+
+    // Single file to copy, or folder to create
+    private static class Step {
+        final File src, dest;
+        final boolean isDirectory;
+        final long length;
+
+        Step(final File src, final File dest, final boolean isDirectory, final long length) {
+            this.src = src;
+            this.dest = dest;
+            this.isDirectory = isDirectory;
+            this.length = length;
+        }
+    }
+
+    private final File _journal;
+    private final List<Operation> _pending = new ArrayList<>(); // Not yet completed, in journal order. Guarded by itself
+    private List<Operation> _interrupted; // Pending operations of a previous process, guarded by _pending
+
+    private GsFileOperationQueue(final File journal) {
+        _journal = journal;
+        // Kept in the journal until they are resumed
+        _interrupted = readJournal();
+        _pending.addAll(_interrupted);
+    }
+
+    /**
+     * @param delete   Deletes a single file or empty folder, e.g. through the storage access framework
+     * @param progress Called on the main thread while running, and once with {@link Progress#finished}
+     */
+    public Job submit(final List<Operation> operations, final GsCallback.b1<File> delete, final GsCallback.a1<Progress> progress) {
+        final List<Operation> ops = new ArrayList<>(operations);
+        synchronized (_pending) {
+            _pending.addAll(ops);
+            writeJournal();
+        }
+        return start(ops, delete, progress);
+    }
+
+    /**
+     * Continue moves or copies of a previous process which did not complete
+     *
+     * @param isMove Which of both to continue, moves and copies are continued as separate jobs
+     * @return Job of the continued operations, or null if there are none
+     */
+    @Nullable
+    public Job resumeInterrupted(final boolean isMove, final GsCallback.b1<File> delete, final GsCallback.a1<Progress> progress) {
+        final List<Operation> ops = new ArrayList<>();
+        synchronized (_pending) {
+            for (final Iterator<Operation> it = _interrupted.iterator(); it.hasNext(); ) {
+                final Operation op = it.next();
+                if (op.isMove == isMove) {
+                    ops.add(op);
+                    it.remove();
+                }
+            }
+        }
+        return ops.isEmpty() ? null : start(ops, delete, progress);
+    }
+
+    public boolean hasInterrupted(final boolean isMove) {
+        synchronized (_pending) {
+            for (final Operation op : _interrupted) {
+                if (op.isMove == isMove) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private Job start(final List<Operation> ops, final GsCallback.b1<File> delete, final GsCallback.a1<Progress> progress) {
+        final Job job = new Job();
+        _executor.execute(() -> run(ops, job, delete, progress));
+        return job;
+    }
+
+    private void run(final List<Operation> operations, final Job job, final GsCallback.b1<File> delete, final GsCallback.a1<Progress> progress) {
+        // Plan everything first, so progress has totals. Moves which are likely a rename are not
+        // walked, they count as a single file until the rename fails
+        final List<List<Step>> plans = new ArrayList<>();
+        final long[] bytesTotal = {0};
+        final int[] filesTotal = {0};
+        for (final Operation op : operations) {
+            final List<Step> plan = new ArrayList<>();
+            if (!(op.isMove && !op.overwrite && !op.dest.exists() && op.src.exists())) {
+                plan(op.src, op.dest, plan);
+            }
+            addTotals(plan, bytesTotal, filesTotal);
+            plans.add(plan);
+        }
+
+        final long[] bytesDone = {0};
+        final int[] filesDone = {0}, failed = {0};
+        final long[] lastReport = {0};
+        final GsCallback.a1<Boolean> report = (force) -> {
+            final long now = System.currentTimeMillis();
+            if (force || now - lastReport[0] >= PROGRESS_INTERVAL_MS) {
+                lastReport[0] = now;
+                final Progress p = new Progress(bytesDone[0], bytesTotal[0], filesDone[0], filesTotal[0], failed[0], false, false);
+                _mainHandler.post(() -> progress.callback(p));
+            }
+        };
+        report.callback(true);
+
+        for (int i = 0; i < operations.size() && !job.isCancelled(); i++) {
+            Operation op = operations.get(i);
+            final List<Step> plan = plans.get(i);
+
+            if (op.overwrite) {
+                if (op.dest.exists() && !op.dest.equals(op.src) && !deleteRecursive(op.dest, delete)) {
+                    failed[0]++;
+                    complete(op);
+                    continue;
+                }
+                // Don't delete again when resuming, dest may already hold copied files
+                op = replace(op, new Operation(op.src, op.dest, op.isMove, false));
+                operations.set(i, op);
+            }
+
+            boolean success;
+            if (op.isMove && !op.src.exists() && op.dest.exists()) {
+                // Moved before an interruption
+                success = true;
+                filesDone[0] += plan.isEmpty() ? 1 : 0;
+            } else if (op.isMove && !op.dest.exists() && renameTo(op.src, op.dest)) {
+                success = true;
+                filesDone[0] += plan.isEmpty() ? 1 : 0;
+                for (final Step step : plan) {
+                    bytesDone[0] += step.length;
+                    filesDone[0] += step.isDirectory ? 0 : 1;
+                }
+            } else {
+                if (plan.isEmpty() && op.src.exists()) {
+                    // Planned for a rename, which did not work. Replace its single file by the real totals
+                    filesTotal[0]--;
+                    plan(op.src, op.dest, plan);
+                    addTotals(plan, bytesTotal, filesTotal);
+                    report.callback(true);
+                }
+                success = !plan.isEmpty();
+                for (final Step step : plan) {
+                    if (job.isCancelled()) {
+                        break;
+                    }
+                    success &= execute(step, job, bytesDone, report);
+                    filesDone[0] += step.isDirectory ? 0 : 1;
+                    report.callback(false);
+                }
+                success &= !job.isCancelled();
+                if (success && op.isMove) {
+                    success = deleteRecursive(op.src, delete);
+                }
+            }
+
+            failed[0] += success || job.isCancelled() ? 0 : 1;
+            if (!job.isCancelled()) {
+                complete(op);
+            }
+            report.callback(false);
+        }
+
+        if (job.isCancelled()) {
+            // Cancelled operations are not resumed
+            synchronized (_pending) {
+                _pending.removeAll(operations);
+                writeJournal();
+            }
+        }
+
+        final Progress p = new Progress(bytesDone[0], bytesTotal[0], filesDone[0], filesTotal[0], failed[0], true, job.isCancelled());
+        _mainHandler.post(() -> progress.callback(p));
+    }
+
+    // An empty plan, i.e. a rename or nothing to copy, counts as a single file
+    private static void addTotals(final List<Step> plan, final long[] bytesTotal, final int[] filesTotal) {
+        filesTotal[0] += plan.isEmpty() ? 1 : 0;
+        for (final Step step : plan) {
+            bytesTotal[0] += step.length;
+            filesTotal[0] += step.isDirectory ? 0 : 1;
+        }
+    }
+
+    // Folders before their content
+    private static void plan(final File src, final File dest, final List<Step> plan) {
+        if (src.isDirectory()) {
+            plan.add(new Step(src, dest, true, 0));
+            final List<GsFileUtils.DirEntry> entries = GsFileUtils.listDirEntries(src);
+            for (final GsFileUtils.DirEntry entry : entries != null ? entries : Collections.<GsFileUtils.DirEntry>emptyList()) {
+                if (entry.isDirectory()) {
+                    plan(entry.file, new File(dest, entry.getName()), plan);
+                } else {
+                    plan.add(new Step(entry.file, new File(dest, entry.getName()), false, entry.length()));
+                }
+            }
+        } else if (src.exists()) {
+            plan.add(new Step(src, dest, false, src.length()));
+        }
+    }
+
+    private static boolean execute(final Step step, final Job job, final long[] bytesDone, final GsCallback.a1<Boolean> report) {
+        if (step.isDirectory) {
+            return step.dest.isDirectory() || step.dest.mkdirs();
+        } else if (step.dest.exists()) {
+            // Completed before an interruption
+            bytesDone[0] += step.length;
+            return step.dest.length() == step.src.length();
+        }
+
+        // A part file is only continued if the source was not changed since
+        final File part = new File(step.dest.getAbsolutePath() + PART_SUFFIX);
+        final boolean resume = part.isFile() && part.lastModified() >= step.src.lastModified();
+        final long base = bytesDone[0];
+        final boolean copied = GsFileUtils.copyFile(step.src, part, resume, (copiedBytes) -> {
+            bytesDone[0] = base + copiedBytes;
+            report.callback(false);
+            return !job.isCancelled();
+        });
+        bytesDone[0] = base + step.length;
+
+        if (copied && part.renameTo(step.dest)) {
+            step.dest.setLastModified(step.src.lastModified());
+            return true;
+        }
+        if (job.isCancelled()) {
+            part.delete();
+        }
+        return false;
+    }
+
+    private static boolean renameTo(final File src, final File dest) {
+        try {
+            return src.renameTo(dest);
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    // Content first, so a folder is empty when it is deleted
+    private static boolean deleteRecursive(final File file, final GsCallback.b1<File> delete) {
+        boolean success = true;
+        if (file.isDirectory() && !GsFileUtils.isSymbolicLink(file)) {
+            final File[] children = file.listFiles();
+            for (final File child : children != null ? children : new File[0]) {
+                success &= deleteRecursive(child, delete);
+            }
+        }
+        return delete.callback(file) && success;
+    }
+
+    private Operation replace(final Operation op, final Operation with) {
+        synchronized (_pending) {
+            final int index = _pending.indexOf(op);
+            if (index >= 0) {
+                _pending.set(index, with);
+                writeJournal();
+            }
+        }
+        return with;
+    }
+
+    private void complete(final Operation op) {
+        synchronized (_pending) {
+            if (_pending.remove(op)) {
+                writeJournal();
+            }
+        }
+    }
+
+    // Called with _pending locked. Small, so it is written in place of each change
+    private void writeJournal() {
+        if (_pending.isEmpty()) {
+            _journal.delete();
+            return;
+        }
+
+        final File temp = new File(_journal.getAbsolutePath() + ".tmp");
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(_pending.size());
+            for (final Operation op : _pending) {
+                out.writeUTF(op.src.getAbsolutePath());
+                out.writeUTF(op.dest.getAbsolutePath());
+                out.writeBoolean(op.isMove);
+                out.writeBoolean(op.overwrite);
+            }
+        } catch (IOException e) {
+            Log.e(GsFileOperationQueue.class.getName(), "Could not write journal " + _journal, e);
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(_journal)) {
+            temp.delete();
+        }
+    }
+
+    private List<Operation> readJournal() {
+        final List<Operation> ops = new ArrayList<>();
+        if (!_journal.exists()) {
+            return ops;
+        }
+
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_journal)))) {
+            if (in.readInt() == MAGIC && in.readByte() == VERSION) {
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    ops.add(new Operation(new File(in.readUTF()), new File(in.readUTF()), in.readBoolean(), in.readBoolean()));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or truncated, the operations can not be continued safely
+            Log.w(GsFileOperationQueue.class.getName(), "Discarding journal " + _journal, e);
+            ops.clear();
+            _journal.delete();
+        }
+        return ops;
+    }
+}
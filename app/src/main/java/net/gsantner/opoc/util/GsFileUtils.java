@@ -23,6 +23,7 @@ import androidx.annotation.RequiresApi;
 
 import net.gsantner.opoc.format.GsTextUtils;
 import net.gsantner.opoc.frontend.filebrowser.GsFileBrowserListAdapter;
+import net.gsantner.opoc.wrapper.GsCallback;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
@@ -39,10 +40,13 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URLConnection;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.SimpleFileVisitor;
@@ -62,8 +66,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Stack;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
@@ -76,7 +80,7 @@ public class GsFileUtils {
 
     // Used on methods like copyFile(src, dst)
     private final static int BUFFER_SIZE = 4096;
-    private final static Map<String, String> MIME_TYPE_CACHE = new ConcurrentHashMap<>();
+    private final static long COPY_CHUNK_SIZE = 8 * 1024 * 1024; // Progress and cancellation granularity of copyFile
 
     /**
      * Info of various types about a file
@@ -273,32 +277,40 @@ public class GsFileUtils {
     }
 
     public static boolean copyFile(final File src, final File dst) {
+        return copyFile(src, dst, false, null);
+    }
+
+    /**
+     * Copy with {@link FileChannel#transferTo}, so the bytes don't have to pass through the Java heap
+     *
+     * @param resume   Continue an existing dst which is shorter than src, instead of starting over
+     * @param progress Receives the number of bytes copied so far after each chunk, return false to cancel. May be null
+     * @return true if src was copied completely
+     */
+    public static boolean copyFile(final File src, final File dst, final boolean resume, @Nullable final GsCallback.b1<Long> progress) {
         // Just touch file if src is empty
-        if (src.length() == 0) {
+        final long length = src.length();
+        if (length == 0) {
             return touch(dst);
         }
 
-        InputStream is = null;
-        FileOutputStream os = null;
-        try {
-            try {
-                is = new FileInputStream(src);
-                os = new FileOutputStream(dst);
-                byte[] buf = new byte[BUFFER_SIZE];
-                int len;
-                while ((len = is.read(buf)) > 0) {
-                    os.write(buf, 0, len);
+        final long existing = resume && dst.isFile() ? dst.length() : 0;
+        final boolean append = existing > 0 && existing <= length;
+        try (final FileChannel in = new FileInputStream(src).getChannel();
+             final FileChannel out = new FileOutputStream(dst, append).getChannel()) {
+            long position = append ? existing : 0;
+            while (position < length) {
+                final long count = in.transferTo(position, Math.min(COPY_CHUNK_SIZE, length - position), out);
+                if (count <= 0) {
+                    // Source got shorter in between
+                    break;
                 }
-                return true;
-            } finally {
-                if (is != null) {
-                    is.close();
-                }
-                if (os != null) {
-                    os.flush();
-                    os.close();
+                position += count;
+                if (progress != null && !progress.callback(position)) {
+                    return false;
                 }
             }
+            return position >= length;
         } catch (IOException ex) {
             return false;
         }
@@ -457,7 +469,6 @@ public class GsFileUtils {
         return sb.toString();
     }
 
-    @SuppressWarnings("StatementWithEmptyBody")
     private static String gatherMimeType(final File file) {
         if (file == null) {
             return "*/*";
@@ -502,26 +513,9 @@ public class GsFileUtils {
         } catch (Exception ignored) {
         }
 
-        // Try extracting by running shell file -b on the file - for textfiles this very often results in "ASCII text"
-        try {
-            final String cmd = "file -b " + file.getAbsolutePath().replace(" ", "\\ ").replace(";", "").replace("&", "").replace("$", "");
-            final Process p = Runtime.getRuntime().exec(cmd);
-            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            t = reader.readLine().trim().toLowerCase(Locale.ROOT);
-            try {
-                p.destroy();
-                reader.close();
-            } catch (Exception ignored) {
-            }
-            if (GsTextUtils.isNullOrEmpty(t) || t.contains("not found")) {
-            } else if (t.contains("ascii text") || t.contains("empty")) {
-                return "text/plain";
-            } else if (t.contains("text") || t.contains("script")) {
-                return "text/x-" + t.replaceAll("(\\s|-)*script(\\s|-)*", "").replace(" ", "-");
-            }
-        } catch (Exception ignored) {
-        }
-        return "*/*";
+        // Read the first bytes of the file
+        t = GsMimeSniffer.sniff(file);
+        return t != null ? t : "*/*";
     }
 
     /**
@@ -530,11 +524,20 @@ public class GsFileUtils {
      * Hence use custom map for some file extensions
      */
     public static String getMimeType(final File file) {
-        final String fp = file.getAbsolutePath();
-        String mime = MIME_TYPE_CACHE.get(fp);
+        return file != null ? getMimeType(file, file.length(), file.lastModified()) : gatherMimeType(null);
+    }
+
+    /**
+     * Like {@link #getMimeType(File)}, with size and mtime already known, e.g. from a listing.
+     * Results are cached while size and mtime of the file are unchanged.
+     */
+    public static String getMimeType(final File file, final long size, final long modified) {
+        String mime = GsMimeTypeCache.get().get(file, size, modified);
         if (mime == null) {
             mime = gatherMimeType(file);
-            MIME_TYPE_CACHE.put(fp, mime);
+            if (modified != 0) {
+                GsMimeTypeCache.get().put(file, size, modified, mime);
+            }
         }
         return mime;
     }
@@ -779,31 +782,32 @@ public class GsFileUtils {
     public static final String SORT_BY_NAME = "NAME", SORT_BY_FILESIZE = "FILESIZE", SORT_BY_MTIME = "MTIME", SORT_BY_MIMETYPE = "MIMETYPE";
 
     /**
-     * Get a key which can be use to sort File objects
-     * This is highly performant as each file is processed exactly once.
-     * Inspired by python's sort
-     *
-     * @param sortBy String key of what to sort
-     * @param file   The file object to get the
-     * @return A key which can be used for comparisons / sorting
+     * Sort key for names which orders embedded numbers by their value, i.e. "file2" before "file10".
+     * Every run of digits is replaced by a marker, its length without leading zeros and the digits.
      */
-    private static String makeSortKey(final String sortBy, final File file) {
-        final String name = file.getName().toLowerCase();
-        switch (sortBy) {
-            case SORT_BY_MTIME: {
-                return file.lastModified() + name;
+    public static String makeNaturalSortKey(final String name) {
+        final String lower = name.toLowerCase();
+        final int n = lower.length();
+        final StringBuilder sb = new StringBuilder(n + 8);
+        for (int i = 0; i < n; ) {
+            final char c = lower.charAt(i);
+            if (c < '0' || c > '9') {
+                sb.append(c);
+                i++;
+                continue;
             }
-            case SORT_BY_FILESIZE: {
-                return String.format("%015d", file.length()) + name;
-            }
-            case SORT_BY_MIMETYPE: {
-                return getMimeType(file).toLowerCase() + name;
+
+            final int start = i;
+            while (i < n && lower.charAt(i) >= '0' && lower.charAt(i) <= '9') {
+                i++;
             }
-            case SORT_BY_NAME:
-            default: {
-                return name;
+            int digits = start;
+            while (digits < i - 1 && lower.charAt(digits) == '0') {
+                digits++;
             }
+            sb.append('0').append((char) Math.min(i - digits, Character.MAX_VALUE)).append(lower, digits, i);
         }
+        return sb.toString();
     }
 
     public static class SortOrder {
@@ -841,26 +845,80 @@ public class GsFileUtils {
     }
 
     public static void sortFiles(final Collection<File> filesToSort, final SortOrder order) {
-        if (filesToSort != null && !filesToSort.isEmpty()) {
-            try {
-                final boolean copy = !(filesToSort instanceof List);
-                final List<File> sortable = copy ? new ArrayList<>(filesToSort) : (List<File>) filesToSort;
+        sortFiles(filesToSort, order, null);
+    }
 
-                GsCollectionUtils.keySort(sortable, (f) -> makeSortKey(order.sortByType, f));
-                if (order.reverse) {
-                    Collections.reverse(sortable);
+    /**
+     * Sort files. All keys are computed once per file into primitive arrays, so comparisons
+     * neither allocate nor touch the file system.
+     *
+     * @param attributes Already known attributes of the files, so they are not read again. May be null or return null
+     */
+    @SuppressWarnings("unchecked")
+    public static void sortFiles(final Collection<File> filesToSort, final SortOrder order, @Nullable final GsCallback.r1<DirEntry, File> attributes) {
+        if (filesToSort == null || filesToSort.isEmpty()) {
+            return;
+        }
+
+        try {
+            final File[] files = filesToSort.toArray(new File[0]);
+            final int n = files.length;
+            final boolean byMtime = SORT_BY_MTIME.equals(order.sortByType);
+            final boolean bySize = SORT_BY_FILESIZE.equals(order.sortByType);
+            final boolean byType = SORT_BY_MIMETYPE.equals(order.sortByType);
+            final boolean folderFirst = order.folderFirst;
+
+            final String[] names = new String[n];
+            final long[] primary = new long[n];
+            final boolean[] isDirectory = new boolean[n];
+            final String[] types = byType ? new String[n] : null;
+            for (int i = 0; i < n; i++) {
+                names[i] = makeNaturalSortKey(files[i].getName());
+                if (byMtime || bySize || byType || folderFirst) {
+                    DirEntry entry = attributes != null ? attributes.callback(files[i]) : null;
+                    entry = entry != null ? entry : DirEntry.of(files[i]);
+                    isDirectory[i] = entry.isDirectory();
+                    primary[i] = byMtime ? entry.lastModified() : (bySize ? entry.length() : 0);
+                    if (types != null) {
+                        types[i] = getMimeType(files[i], entry.length(), entry.lastModified()).toLowerCase();
+                    }
+                }
+            }
+
+            // Types are compared by their ordinal among the distinct types
+            if (types != null) {
+                final String[] distinct = new TreeSet<>(Arrays.asList(types)).toArray(new String[0]);
+                for (int i = 0; i < n; i++) {
+                    primary[i] = Arrays.binarySearch(distinct, types[i]);
                 }
-                if (order.folderFirst) {
-                    GsCollectionUtils.keySort(sortable, (f) -> !f.isDirectory());
+            }
+
+            final Integer[] indices = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                indices[i] = i;
+            }
+            final int sign = order.reverse ? -1 : 1;
+            Arrays.sort(indices, (a, b) -> {
+                if (folderFirst && isDirectory[a] != isDirectory[b]) {
+                    return isDirectory[a] ? -1 : 1;
                 }
+                final int c = Long.compare(primary[a], primary[b]);
+                return sign * (c != 0 ? c : names[a].compareTo(names[b]));
+            });
 
-                if (copy) {
-                    filesToSort.clear();
-                    filesToSort.addAll(sortable);
+            if (filesToSort instanceof List) {
+                final List<File> list = (List<File>) filesToSort;
+                for (int i = 0; i < n; i++) {
+                    list.set(i, files[indices[i]]);
+                }
+            } else {
+                filesToSort.clear();
+                for (final Integer index : indices) {
+                    filesToSort.add(files[index]);
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
@@ -989,6 +1047,7 @@ public class GsFileUtils {
 
             final PathMatcher matcher = FileSystems.getDefault().getPathMatcher(glob);
             final List<File> found = new ArrayList<>();
+            // Attributes are read once per entry by the walker, links are not followed
             Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
                 @Override
                 public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) {
@@ -997,6 +1056,12 @@ public class GsFileUtils {
                     }
                     return FileVisitResult.CONTINUE;
                 }
+
+                // Unreadable entries must not abort the whole walk
+                @Override
+                public FileVisitResult visitFileFailed(final Path path, final IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
             });
             return found;
         } catch (IOException e) {
@@ -1005,6 +1070,154 @@ public class GsFileUtils {
         return null;
     }
 
+    /**
+     * Entry of a directory listing with its attributes.
+     * From API 26 on, all attributes are read with a single lstat while listing. Below they are
+     * read lazily through {@link File}, one call each.
+     */
+    public static class DirEntry {
+        public final File file;
+        private final boolean _isDirectory;
+        private Boolean _isFile, _isSymbolicLink;
+        private long _lastModified = -1, _length = -1;
+
+        private DirEntry(final File file, final boolean isDirectory, final Boolean isFile, final Boolean isSymbolicLink, final long lastModified, final long length) {
+            this.file = file;
+            _isDirectory = isDirectory;
+            _isFile = isFile;
+            _isSymbolicLink = isSymbolicLink;
+            _lastModified = lastModified;
+            _length = length;
+        }
+
+        /**
+         * Entry for attributes which are already known
+         */
+        public static DirEntry of(final File file, final boolean isDirectory, final long lastModified, final long length) {
+            return new DirEntry(file, isDirectory, null, null, lastModified, length);
+        }
+
+        public static DirEntry of(final File file) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                try {
+                    return fromPath(file.toPath());
+                } catch (IOException ignored) {
+                }
+            }
+            return new DirEntry(file, file.isDirectory(), null, null, -1, -1);
+        }
+
+        @RequiresApi(api = Build.VERSION_CODES.O)
+        private static DirEntry fromPath(final Path path) throws IOException {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            final boolean isSymbolicLink = attrs.isSymbolicLink();
+            if (isSymbolicLink) {
+                // Follow only links, like File.isDirectory() would
+                try {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException ignored) {
+                    // Broken link
+                }
+            }
+            return new DirEntry(path.toFile(), attrs.isDirectory(), attrs.isRegularFile(), isSymbolicLink, attrs.lastModifiedTime().toMillis(), attrs.size());
+        }
+
+        public String getName() {
+            return file.getName();
+        }
+
+        public boolean isDirectory() {
+            return _isDirectory;
+        }
+
+        public boolean isFile() {
+            if (_isFile == null) {
+                _isFile = file.isFile();
+            }
+            return _isFile;
+        }
+
+        public boolean isSymbolicLink() {
+            if (_isSymbolicLink == null) {
+                _isSymbolicLink = GsFileUtils.isSymbolicLink(file);
+            }
+            return _isSymbolicLink;
+        }
+
+        public long lastModified() {
+            if (_lastModified < 0) {
+                _lastModified = file.lastModified();
+            }
+            return _lastModified;
+        }
+
+        public long length() {
+            if (_length < 0) {
+                _length = file.length();
+            }
+            return _length;
+        }
+    }
+
+    /**
+     * List a directory together with the attributes of each entry, see {@link DirEntry}
+     *
+     * @return entries or null if the directory can not be listed
+     */
+    @Nullable
+    public static List<DirEntry> listDirEntries(final File dir) {
+        return listDirEntries(dir, 0, null);
+    }
+
+    /**
+     * Same as {@link #listDirEntries(File)}, reporting the entries of large directories in chunks while reading.
+     * Directories with less than firstChunk entries are not reported at all.
+     *
+     * @param firstChunk Number of entries after which the first chunk is reported, then whenever their number doubled
+     * @param onChunk    Receives the entries read since the last chunk, on the calling thread. May be null
+     * @return all entries or null if the directory can not be listed
+     */
+    @Nullable
+    public static List<DirEntry> listDirEntries(final File dir, final int firstChunk, @Nullable final GsCallback.a1<List<DirEntry>> onChunk) {
+        final List<DirEntry> entries = new ArrayList<>();
+        int reported = 0, next = onChunk != null && firstChunk > 0 ? firstChunk : Integer.MAX_VALUE;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+                for (final Path path : stream) {
+                    try {
+                        entries.add(DirEntry.fromPath(path));
+                    } catch (IOException ignored) {
+                        // Vanished in between
+                    }
+                    if (entries.size() >= next) {
+                        onChunk.callback(new ArrayList<>(entries.subList(reported, entries.size())));
+                        reported = entries.size();
+                        next = reported * 2;
+                    }
+                }
+                return entries;
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return null;
+        }
+        for (final File file : files) {
+            // Reading isDirectory is what takes time here
+            entries.add(new DirEntry(file, file.isDirectory(), null, null, -1, -1));
+            if (entries.size() >= next) {
+                onChunk.callback(new ArrayList<>(entries.subList(reported, entries.size())));
+                reported = entries.size();
+                next = reported * 2;
+            }
+        }
+        return entries;
+    }
+
     public static String getPath(final File file) {
         try {
             return file.getCanonicalPath();
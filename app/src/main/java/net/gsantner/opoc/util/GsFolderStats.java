@@ -0,0 +1,208 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2025 Gregor Santner <gsantner AT mailbox DOT org>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2025 by Gregor Santner <gsantner AT mailbox DOT org>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recursive size and item count of folders, computed in the background.
+ * <p>
+ * Per folder the sizes of its files and the names of its sub folders are kept, together with the
+ * mtime of the folder. Only folders whose mtime changed are listed again, for the others a single
+ * stat is enough. Files changed in place don't change the mtime of their folder, report these
+ * with {@link #invalidate(File)}. Symbolic links to folders are not followed.
+ * <p>
+ * All methods are thread safe, callbacks are called on the main thread.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class GsFolderStats {
+    private static final int MAX_FOLDERS = 16384;
+    private static final int MAX_DEPTH = 64;
+
+    // One walk at a time, later walks mostly find the folders of earlier ones unchanged
+    private static final ExecutorService _executor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private static final Handler _mainHandler = new Handler(Looper.getMainLooper());
+    private static final GsFolderStats _instance = new GsFolderStats();
+
+    public static GsFolderStats get() {
+        return _instance;
+    }
+
+    /**
+     * Totals of a folder, including all sub folders, excluding the folder itself
+     */
+    public static class Totals {
+        public final long size;
+        public final int files;
+        public final int folders;
+        public final long checked; // Time of the walk
+
+        Totals(final long size, final int files, final int folders, final long checked) {
+            this.size = size;
+            this.files = files;
+            this.folders = folders;
+            this.checked = checked;
+        }
+    }
+
+    // Listing of a single folder
+    private static class Node {
+        final long modified;
+        final long ownSize;
+        final int ownFiles;
+        final List<String> subFolders;
+        Totals totals;
+
+        Node(final long modified, final long ownSize, final int ownFiles, final List<String> subFolders) {
+            this.modified = modified;
+            this.ownSize = ownSize;
+            this.ownFiles = ownFiles;
+            this.subFolders = subFolders;
+        }
+    }
+
+    // Access ordered, eldest is dropped first. Guarded by this
+    private final LinkedHashMap<String, Node> _nodes = new LinkedHashMap<String, Node>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Node> eldest) {
+            return size() > MAX_FOLDERS;
+        }
+    };
+    private final Map<String, List<GsCallback.a1<Totals>>> _pending = new HashMap<>(); // Walks in progress, guarded by itself
+
+    /**
+     * @return Totals of the last walk, may be outdated. Null if the folder was not walked yet
+     */
+    @Nullable
+    public synchronized Totals getCached(final File folder) {
+        final Node node = _nodes.get(folder.getAbsolutePath());
+        return node != null ? node.totals : null;
+    }
+
+    /**
+     * Walk the folder in the background, unless it was walked recently
+     *
+     * @param maxAge   Totals checked less than this many ms ago are considered current, no walk is done
+     * @param callback Called with the new totals after a walk. Not called if no walk was necessary
+     */
+    public void update(final File folder, final long maxAge, final GsCallback.a1<Totals> callback) {
+        final Totals cached = getCached(folder);
+        if (cached != null && System.currentTimeMillis() - cached.checked < maxAge) {
+            return;
+        }
+
+        final String key = folder.getAbsolutePath();
+        synchronized (_pending) {
+            final List<GsCallback.a1<Totals>> callbacks = _pending.get(key);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+            _pending.put(key, new ArrayList<>(Collections.singletonList(callback)));
+        }
+
+        _executor.execute(() -> {
+            final Totals totals = walk(folder, folder.lastModified(), System.currentTimeMillis(), 0);
+            final List<GsCallback.a1<Totals>> callbacks;
+            synchronized (_pending) {
+                callbacks = _pending.remove(key);
+            }
+            _mainHandler.post(() -> {
+                for (final GsCallback.a1<Totals> c : callbacks) {
+                    c.callback(totals);
+                }
+            });
+        });
+    }
+
+    /**
+     * Make the next walk list the folder of this file again, e.g. after it was written in place
+     */
+    public synchronized void invalidate(final File file) {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            _nodes.remove(parent.getAbsolutePath());
+        }
+    }
+
+    public synchronized void clear() {
+        _nodes.clear();
+    }
+
+    private Totals walk(final File folder, final long modified, final long now, final int depth) {
+        final String key = folder.getAbsolutePath();
+        Node node;
+        synchronized (this) {
+            node = _nodes.get(key);
+        }
+
+        // Sub folders get their mtime from the listing, no need to stat them again
+        Map<String, Long> subModified = null;
+        if (node == null || node.modified != modified) {
+            final List<GsFileUtils.DirEntry> entries = GsFileUtils.listDirEntries(folder);
+            final List<String> subFolders = new ArrayList<>();
+            subModified = new HashMap<>();
+            long ownSize = 0;
+            int ownFiles = 0;
+            for (final GsFileUtils.DirEntry entry : entries != null ? entries : Collections.<GsFileUtils.DirEntry>emptyList()) {
+                if (entry.isDirectory()) {
+                    if (!entry.isSymbolicLink()) {
+                        subFolders.add(entry.getName());
+                        subModified.put(entry.getName(), entry.lastModified());
+                    }
+                } else {
+                    ownFiles++;
+                    ownSize += entry.length();
+                }
+            }
+            node = new Node(modified, ownSize, ownFiles, subFolders);
+        }
+
+        long size = node.ownSize;
+        int files = node.ownFiles, folders = 0;
+        if (depth < MAX_DEPTH) {
+            for (final String name : node.subFolders) {
+                final File sub = new File(folder, name);
+                final Long listed = subModified != null ? subModified.get(name) : null;
+                final long subMod = listed != null ? listed : sub.lastModified();
+                if (subMod == 0 && !sub.isDirectory()) {
+                    continue; // Removed since the listing
+                }
+                final Totals totals = walk(sub, subMod, now, depth + 1);
+                size += totals.size;
+                files += totals.files;
+                folders += totals.folders + 1;
+            }
+        }
+
+        node.totals = new Totals(size, files, folders, now);
+        synchronized (this) {
+            _nodes.put(key, node);
+        }
+        return node.totals;
+    }
+}
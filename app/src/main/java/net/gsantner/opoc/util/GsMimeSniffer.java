@@ -0,0 +1,214 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2025 Gregor Santner <gsantner AT mailbox DOT org>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2025 by Gregor Santner <gsantner AT mailbox DOT org>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Detect the MimeType of a file from its first bytes, without external processes.
+ * <p>
+ * Known binary formats are recognized by their magic bytes. Everything else is considered text if
+ * the head has a unicode BOM, or is valid UTF-8 without NUL and with few control chars.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class GsMimeSniffer {
+    public static final int HEAD_SIZE = 4096;
+
+    private static final Object[][] MAGIC = {
+            // Offset, bytes, MimeType
+            {0, new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'}, "image/png"},
+            {0, new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}, "image/jpeg"},
+            {0, "GIF87a".getBytes(StandardCharsets.US_ASCII), "image/gif"},
+            {0, "GIF89a".getBytes(StandardCharsets.US_ASCII), "image/gif"},
+            {0, new byte[]{0, 0, 1, 0}, "image/x-icon"},
+            {0, new byte[]{'I', 'I', 0x2A, 0}, "image/tiff"},
+            {0, new byte[]{'M', 'M', 0, 0x2A}, "image/tiff"},
+            {0, "%PDF-".getBytes(StandardCharsets.US_ASCII), "application/pdf"},
+            {0, new byte[]{'P', 'K', 3, 4}, "application/zip"},
+            {0, new byte[]{'P', 'K', 5, 6}, "application/zip"},
+            {0, new byte[]{0x1F, (byte) 0x8B}, "application/gzip"},
+            {0, new byte[]{'7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C}, "application/x-7z-compressed"},
+            {0, "Rar!".getBytes(StandardCharsets.US_ASCII), "application/vnd.rar"},
+            {0, new byte[]{(byte) 0xFD, '7', 'z', 'X', 'Z', 0}, "application/x-xz"},
+            {0, "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII), "application/vnd.sqlite3"},
+            {0, new byte[]{0x7F, 'E', 'L', 'F'}, "application/x-executable"},
+            {0, new byte[]{'I', 'D', '3', 2}, "audio/mpeg"},
+            {0, new byte[]{'I', 'D', '3', 3}, "audio/mpeg"},
+            {0, new byte[]{'I', 'D', '3', 4}, "audio/mpeg"},
+            {0, "OggS".getBytes(StandardCharsets.US_ASCII), "audio/ogg"},
+            {0, "fLaC".getBytes(StandardCharsets.US_ASCII), "audio/flac"},
+            {0, new byte[]{0x1A, 0x45, (byte) 0xDF, (byte) 0xA3}, "video/x-matroska"},
+            {4, "ftyp".getBytes(StandardCharsets.US_ASCII), "video/mp4"},
+            {0, "wOFF".getBytes(StandardCharsets.US_ASCII), "font/woff"},
+            {0, "wOF2".getBytes(StandardCharsets.US_ASCII), "font/woff2"},
+    };
+
+    /**
+     * Read the head of a file and detect its MimeType
+     *
+     * @return MimeType, or null if the file can not be read or the format is unknown binary
+     */
+    @Nullable
+    public static String sniff(final File file) {
+        try (final InputStream in = new FileInputStream(file)) {
+            final byte[] head = new byte[HEAD_SIZE];
+            int length = 0;
+            for (int n; length < head.length && (n = in.read(head, length, head.length - length)) > 0; ) {
+                length += n;
+            }
+            return sniff(head, length, length < head.length);
+        } catch (IOException | SecurityException ignored) {
+            return null;
+        }
+    }
+
+    /**
+     * @param head     First bytes of the file
+     * @param length   Number of valid bytes in head
+     * @param complete True if head contains the whole file
+     * @return MimeType, or null if the format is unknown binary
+     */
+    @Nullable
+    public static String sniff(final byte[] head, final int length, final boolean complete) {
+        if (length == 0) {
+            return "text/plain";
+        }
+
+        for (final Object[] magic : MAGIC) {
+            if (startsWith(head, length, (Integer) magic[0], (byte[]) magic[1])) {
+                return (String) magic[2];
+            }
+        }
+
+        // Only two magic bytes, the reserved header fields have to be zero too
+        if (startsWith(head, length, 0, BMP) && length >= 10 && head[6] == 0 && head[7] == 0 && head[8] == 0 && head[9] == 0) {
+            return "image/bmp";
+        }
+
+        // RIFF container, type at offset 8
+        if (startsWith(head, length, 0, RIFF)) {
+            if (startsWith(head, length, 8, WEBP)) {
+                return "image/webp";
+            } else if (startsWith(head, length, 8, WAVE)) {
+                return "audio/wav";
+            } else if (startsWith(head, length, 8, AVI)) {
+                return "video/x-msvideo";
+            }
+            return null;
+        }
+
+        // Unicode byte order marks
+        if (startsWith(head, length, 0, BOM_UTF8) || startsWith(head, length, 0, BOM_UTF16_BE) || startsWith(head, length, 0, BOM_UTF16_LE)) {
+            return "text/plain";
+        }
+
+        return isText(head, length, complete) ? textType(head, length) : null;
+    }
+
+    private static final byte[] BMP = "BM".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RIFF = "RIFF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WEBP = "WEBP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WAVE = "WAVE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] AVI = "AVI ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BOM_UTF8 = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final byte[] BOM_UTF16_BE = {(byte) 0xFE, (byte) 0xFF};
+    private static final byte[] BOM_UTF16_LE = {(byte) 0xFF, (byte) 0xFE};
+
+    private static boolean startsWith(final byte[] head, final int length, final int offset, final byte[] magic) {
+        if (offset + magic.length > length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (head[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Valid UTF-8 without NUL, and at most a few percent control chars other than whitespace.
+     * A sequence cut off at the end of an incomplete head is fine.
+     */
+    public static boolean isText(final byte[] head, final int length, final boolean complete) {
+        int control = 0;
+        for (int i = 0; i < length; ) {
+            final int b = head[i] & 0xFF;
+            if (b < 0x80) {
+                if (b == 0) {
+                    return false;
+                } else if (b < 0x20 && b != '\n' && b != '\r' && b != '\t' && b != '\f' && b != 0x1B) {
+                    control++;
+                } else if (b == 0x7F) {
+                    control++;
+                }
+                i++;
+                continue;
+            }
+
+            final int extra = b >= 0xF0 && b <= 0xF4 ? 3 : b >= 0xE0 ? 2 : b >= 0xC2 && b <= 0xDF ? 1 : -1;
+            if (extra < 0 || b > 0xF4) {
+                return false;
+            }
+            for (int k = 1; k <= extra; k++) {
+                if (i + k >= length) {
+                    return !complete;
+                }
+                if ((head[i + k] & 0xC0) != 0x80) {
+                    return false;
+                }
+            }
+            i += extra + 1;
+        }
+        return control * 100 <= length * 2;
+    }
+
+    // Some common text formats which are recognizable by their start
+    private static String textType(final byte[] head, final int length) {
+        final String start = new String(head, 0, Math.min(length, 256), StandardCharsets.UTF_8).trim();
+        final String lower = start.toLowerCase(Locale.ROOT);
+        if (start.startsWith("#!")) {
+            final int end = indexOfLineEnd(start);
+            final String[] parts = start.substring(2, end).trim().split("\\s+");
+            String interpreter = parts[0].substring(parts[0].lastIndexOf('/') + 1);
+            if ("env".equals(interpreter) && parts.length > 1) {
+                interpreter = parts[1];
+            }
+            interpreter = interpreter.replaceAll("[\\d.]+$", "");
+            if (interpreter.matches("(ba|z|k|da|fi)?sh")) {
+                return "text/x-shellscript";
+            }
+            return interpreter.matches("[a-zA-Z][\\w+-]*") ? "text/x-" + interpreter.toLowerCase(Locale.ROOT) : "text/plain";
+        } else if (lower.startsWith("<?xml")) {
+            return lower.contains("<svg") ? "image/svg+xml" : "text/xml";
+        } else if (lower.startsWith("<!doctype html") || lower.startsWith("<html")) {
+            return "text/html";
+        } else if (lower.startsWith("<svg")) {
+            return "image/svg+xml";
+        }
+        return "text/plain";
+    }
+
+    private static int indexOfLineEnd(final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n' || text.charAt(i) == '\r') {
+                return i;
+            }
+        }
+        return text.length();
+    }
+}
@@ -0,0 +1,202 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2025 Gregor Santner <gsantner AT mailbox DOT org>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2025 by Gregor Santner <gsantner AT mailbox DOT org>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of MimeTypes of files, detected by name or from the content, see {@link GsMimeSniffer}.
+ * <p>
+ * An entry is only valid while size and mtime of the file are unchanged. The least recently used
+ * entries are dropped first. With {@link #setPersistFile(File)} the cache is loaded in the
+ * background and written back by {@link #save()}, and after every {@link #SAVE_INTERVAL} new entries.
+ * All methods are thread safe.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class GsMimeTypeCache {
+    private static final int MAGIC = 0x47534D54; // GSMT
+    private static final int VERSION = 1;
+    private static final int MAX_ENTRIES = 4096;
+    private static final int SAVE_INTERVAL = 256;
+
+    private static final ExecutorService _executor = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private static final GsMimeTypeCache _instance = new GsMimeTypeCache();
+
+    public static GsMimeTypeCache get() {
+        return _instance;
+    }
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final String mime;
+
+        Entry(final long size, final long modified, final String mime) {
+            this.size = size;
+            this.modified = modified;
+            this.mime = mime;
+        }
+    }
+
+    // Access ordered, eldest is dropped first
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private File _persistFile = null;
+    private int _unsaved = 0;
+
+    /**
+     * Load previously saved entries in the background, and save to this file from now on
+     */
+    public void setPersistFile(@Nullable final File file) {
+        synchronized (this) {
+            _persistFile = file;
+        }
+        if (file != null) {
+            _executor.execute(() -> load(file));
+        }
+    }
+
+    /**
+     * @return Cached MimeType, or null if there is none for this version of the file
+     */
+    @Nullable
+    public String get(final File file, final long size, final long modified) {
+        final String key = file.getAbsolutePath();
+        synchronized (this) {
+            final Entry entry = _entries.get(key);
+            if (entry == null) {
+                return null;
+            } else if (entry.size == size && entry.modified == modified) {
+                return entry.mime;
+            }
+            _entries.remove(key);
+            return null;
+        }
+    }
+
+    public void put(final File file, final long size, final long modified, final String mime) {
+        final boolean save;
+        synchronized (this) {
+            _entries.put(file.getAbsolutePath(), new Entry(size, modified, mime));
+            save = ++_unsaved >= SAVE_INTERVAL && _persistFile != null;
+        }
+        if (save) {
+            save();
+        }
+    }
+
+    public synchronized void clear() {
+        _entries.clear();
+        _unsaved = 1;
+    }
+
+    /**
+     * Write changed entries to the persist file in the background
+     */
+    public void save() {
+        final File file;
+        final List<Map.Entry<String, Entry>> snapshot;
+        synchronized (this) {
+            if (_persistFile == null || _unsaved == 0) {
+                return;
+            }
+            file = _persistFile;
+            snapshot = new ArrayList<>(_entries.entrySet());
+            _unsaved = 0;
+        }
+        _executor.execute(() -> write(file, snapshot));
+    }
+
+    private void load(final File file) {
+        if (!file.exists()) {
+            return;
+        }
+
+        final List<String> keys = new ArrayList<>();
+        final List<Entry> entries = new ArrayList<>();
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                return;
+            }
+            final int count = Math.min(in.readInt(), MAX_ENTRIES);
+            for (int i = 0; i < count; i++) {
+                keys.add(in.readUTF());
+                entries.add(new Entry(in.readLong(), in.readLong(), in.readUTF()));
+            }
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or truncated, start over
+            Log.w(GsMimeTypeCache.class.getName(), "Discarding MimeType cache " + file, e);
+            file.delete();
+            return;
+        }
+
+        synchronized (this) {
+            // Entries made since start are newer, keep them
+            final Map<String, Entry> recent = new LinkedHashMap<>(_entries);
+            _entries.clear();
+            for (int i = 0; i < keys.size(); i++) {
+                _entries.put(keys.get(i), entries.get(i));
+            }
+            _entries.putAll(recent);
+        }
+    }
+
+    // Least recently used first, so the order survives loading
+    private static void write(final File file, final List<Map.Entry<String, Entry>> entries) {
+        final File parent = file.getParentFile();
+        final File temp = new File(file.getAbsolutePath() + ".tmp");
+        if (parent == null || (!parent.exists() && !parent.mkdirs())) {
+            return;
+        }
+
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(entries.size());
+            for (final Map.Entry<String, Entry> e : entries) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().modified);
+                out.writeUTF(e.getValue().mime);
+            }
+        } catch (IOException e) {
+            Log.e(GsMimeTypeCache.class.getName(), "Could not write MimeType cache " + file, e);
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2025 Gregor Santner <gsantner AT mailbox DOT org>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2025 by Gregor Santner <gsantner AT mailbox DOT org>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import net.gsantner.opoc.wrapper.GsCallback;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downscaled images of image files, so they don't have to be decoded from the original every time.
+ * <p>
+ * Thumbnails are kept in an in-memory LRU sized from the available heap, and written to the cache
+ * dir. Both are keyed by path, size and mtime of the file and the requested size, so a changed file
+ * gets a new thumbnail. Images are decoded with {@link BitmapFactory.Options#inSampleSize} on a
+ * background pool, so memory use depends on the thumbnail size only, not on the size of the image.
+ * The disk cache is trimmed to {@link #MAX_DISK_BYTES}.
+ * <p>
+ * All methods are thread safe. {@link #load(File, int)} touches the disk, don't call it on the main thread.
+ */
+@SuppressWarnings({"WeakerAccess", "unused"})
+public class GsThumbnailCache {
+    public static final String[] IMAGE_EXTENSIONS = {"png", "jpg", "jpeg", "gif", "webp", "bmp"};
+
+    private static final String DISK_FOLDER = "thumbnails";
+    private static final long MAX_DISK_BYTES = 32 * 1024 * 1024;
+    private static final int TRIM_INTERVAL = 64; // Disk cache size is checked after this many writes
+
+    private static final ExecutorService _executor = new ThreadPoolExecutor(0, 2, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private static final Handler _mainHandler = new Handler(Looper.getMainLooper());
+    private static GsThumbnailCache _instance;
+
+    public static synchronized GsThumbnailCache get(final Context context) {
+        if (_instance == null) {
+            _instance = new GsThumbnailCache(new File(context.getApplicationContext().getCacheDir(), DISK_FOLDER));
+        }
+        return _instance;
+    }
+
+    /**
+     * Only checks the name, so this is cheap enough to be called while binding views
+     */
+    public static boolean isImage(final File file) {
+        return file != null && GsFileUtils.hasExtension(file.getName(), IMAGE_EXTENSIONS);
+    }
+
+    private final File _diskFolder;
+    private final LruCache<String, Bitmap> _memory;
+    private final Map<String, List<GsCallback.a1<Bitmap>>> _pending = new HashMap<>(); // Requests in progress, guarded by itself
+    private final Set<String> _failed = Collections.synchronizedSet(new HashSet<>()); // Not decodable, not tried again
+    private int _writes = 0;
+
+    private GsThumbnailCache(final File diskFolder) {
+        _diskFolder = diskFolder;
+
+        // An eighth of the heap, in bytes
+        final int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+        _memory = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(final String key, final Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+    }
+
+    private static String makeKey(final File file, final long size, final long modified, final int maxDimen) {
+        final String path = file.getAbsolutePath();
+        return Long.toHexString(GsFileUtils.crc32(path)) + "-" + Integer.toHexString(Arrays.hashCode(new Object[]{path, size, modified, maxDimen}));
+    }
+
+    /**
+     * Thumbnail from memory only
+     *
+     * @param size     Length of the file, as listed
+     * @param modified Last modified time of the file, as listed
+     * @param maxDimen Max width and height of the thumbnail in px
+     * @return Thumbnail, or null if it is not in memory
+     */
+    @Nullable
+    public Bitmap getCached(final File file, final long size, final long modified, final int maxDimen) {
+        return _memory.get(makeKey(file, size, modified, maxDimen));
+    }
+
+    /**
+     * Thumbnail from memory, disk or the original image, in this order
+     *
+     * @param maxDimen Max width and height of the thumbnail in px
+     * @return Thumbnail, or null if the file is not a decodable image
+     */
+    @Nullable
+    public Bitmap load(final File file, final int maxDimen) {
+        return load(file, file.length(), file.lastModified(), maxDimen);
+    }
+
+    /**
+     * Load the thumbnail in the background
+     *
+     * @param callback Called on the main thread, with null if the file is not a decodable image
+     */
+    public void load(final File file, final long size, final long modified, final int maxDimen, final GsCallback.a1<Bitmap> callback) {
+        final String key = makeKey(file, size, modified, maxDimen);
+        final Bitmap cached = _memory.get(key);
+        if (cached != null || _failed.contains(key)) {
+            callback.callback(cached);
+            return;
+        }
+
+        synchronized (_pending) {
+            final List<GsCallback.a1<Bitmap>> callbacks = _pending.get(key);
+            if (callbacks != null) {
+                // Already loading, e.g. a row rebound while scrolling
+                callbacks.add(callback);
+                return;
+            }
+            _pending.put(key, new ArrayList<>(Collections.singletonList(callback)));
+        }
+
+        _executor.execute(() -> {
+            final Bitmap bitmap = load(file, size, modified, maxDimen);
+            final List<GsCallback.a1<Bitmap>> callbacks;
+            synchronized (_pending) {
+                callbacks = _pending.remove(key);
+            }
+            _mainHandler.post(() -> {
+                for (final GsCallback.a1<Bitmap> c : callbacks) {
+                    c.callback(bitmap);
+                }
+            });
+        });
+    }
+
+    /**
+     * Drop all thumbnails from memory, they are loaded from disk again when needed
+     */
+    public void clearMemory() {
+        _memory.evictAll();
+        _failed.clear();
+    }
+
+    @Nullable
+    private Bitmap load(final File file, final long size, final long modified, final int maxDimen) {
+        final String key = makeKey(file, size, modified, maxDimen);
+        Bitmap bitmap = _memory.get(key);
+        if (bitmap != null || _failed.contains(key)) {
+            return bitmap;
+        }
+
+        final File diskFile = new File(_diskFolder, key + ".thumb");
+        if (diskFile.exists()) {
+            bitmap = BitmapFactory.decodeFile(diskFile.getAbsolutePath());
+            if (bitmap != null) {
+                diskFile.setLastModified(System.currentTimeMillis()); // Trimmed last
+            }
+        }
+
+        if (bitmap == null) {
+            try {
+                bitmap = decode(file, maxDimen);
+            } catch (OutOfMemoryError e) {
+                // Not the fault of the image, it is tried again later
+                Log.w(GsThumbnailCache.class.getName(), "Out of memory decoding " + file);
+                return null;
+            }
+            if (bitmap == null) {
+                _failed.add(key);
+                return null;
+            }
+            writeToDisk(bitmap, diskFile);
+        }
+
+        _memory.put(key, bitmap);
+        return bitmap;
+    }
+
+    // Decode subsampled, then scale down so the longer side is at most maxDimen. Null if not decodable, OutOfMemoryError is passed on
+    @Nullable
+    private static Bitmap decode(final File file, final int maxDimen) {
+        try {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            final Bitmap bitmap = GsContextUtils.instance.loadImageFromFilesystem(file, maxDimen);
+            if (bitmap == null) {
+                return null;
+            }
+
+            final float scale = 1f * maxDimen / Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (scale >= 1f) {
+                return bitmap;
+            }
+            final int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+            final int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+            final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+            if (scaled != bitmap) {
+                bitmap.recycle();
+            }
+            return scaled;
+        } catch (RuntimeException e) {
+            Log.w(GsThumbnailCache.class.getName(), "Could not decode " + file, e);
+            return null;
+        }
+    }
+
+    private void writeToDisk(final Bitmap bitmap, final File diskFile) {
+        final File temp = new File(diskFile.getAbsolutePath() + ".tmp");
+        if (!_diskFolder.exists() && !_diskFolder.mkdirs()) {
+            return;
+        }
+
+        try (final OutputStream out = new FileOutputStream(temp)) {
+            bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 85, out);
+        } catch (IOException e) {
+            Log.e(GsThumbnailCache.class.getName(), "Could not write thumbnail " + diskFile, e);
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(diskFile)) {
+            temp.delete();
+        }
+
+        final boolean trim;
+        synchronized (this) {
+            trim = ++_writes % TRIM_INTERVAL == 1;
+        }
+        if (trim) {
+            trimDisk();
+        }
+    }
+
+    // Delete least recently used thumbnails until the cache fits, thumbnails of old file versions go first
+    private void trimDisk() {
+        final File[] files = _diskFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final long[] modified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        long total = 0;
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+            total += files[i].length();
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(modified[a], modified[b]));
+
+        for (int i = 0; i < order.length && total > MAX_DISK_BYTES; i++) {
+            final File file = files[order[i]];
+            final long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*#######################################################
+ *
+ * SPDX-FileCopyrightText: 2025 Gregor Santner <gsantner AT mailbox DOT org>
+ * SPDX-License-Identifier: Unlicense OR CC0-1.0
+ *
+ * Written 2025 by Gregor Santner <gsantner AT mailbox DOT org>
+ * To the extent possible under law, the author(s) have dedicated all copyright and related and neighboring rights to this software to the public domain worldwide. This software is distributed without any warranty.
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+#########################################################*/
+package net.gsantner.opoc.wrapper;
+
+import android.os.FileObserver;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches a file or folder and forwards events to a callback.
+ * Events are delivered on the observer thread, not on the main thread.
+ * <p>
+ * All FileObservers of a process share one inotify instance, which has one watch per path. A second
+ * FileObserver of the same path would take over the events and mask of the first, and stopping
+ * either removes the watch of both. So there is one {@link FileObserver} per path, watching
+ * {@link #SUPPORTED} events, which is started by the first and stopped by the last GsFileObserver
+ * of that path. Each GsFileObserver only gets the events of its own mask.
+ * <p>
+ * When the watched file is deleted or moved the watch ends for all its observers,
+ * see {@link #isWatching()}.
+ */
+@SuppressWarnings({"unused", "deprecation"})
+public class GsFileObserver {
+    public static final int CREATE = FileObserver.CREATE;
+    public static final int DELETE = FileObserver.DELETE;
+    public static final int MOVED_FROM = FileObserver.MOVED_FROM;
+    public static final int MOVED_TO = FileObserver.MOVED_TO;
+    public static final int CLOSE_WRITE = FileObserver.CLOSE_WRITE;
+    public static final int ATTRIB = FileObserver.ATTRIB;
+    public static final int DELETE_SELF = FileObserver.DELETE_SELF;
+    public static final int MOVE_SELF = FileObserver.MOVE_SELF;
+    public static final int ALL_EVENTS = FileObserver.ALL_EVENTS;
+
+    // Events which indicate that the content or the listing of a folder changed
+    public static final int CHANGES = CLOSE_WRITE | MOVED_TO | MOVED_FROM | CREATE | DELETE | DELETE_SELF | MOVE_SELF;
+
+    // Events which can be observed, the shared watch always observes all of them
+    public static final int SUPPORTED = CHANGES | ATTRIB;
+
+    // Shared watches by path, guarded by itself
+    private static final Map<String, SharedWatch> _watches = new HashMap<>();
+
+    private static class SharedWatch extends FileObserver {
+        final String path;
+        final List<GsFileObserver> observers = new CopyOnWriteArrayList<>();
+
+        SharedWatch(final String path) {
+            super(path, SUPPORTED);
+            this.path = path;
+        }
+
+        @Override
+        public void onEvent(final int event, @Nullable final String name) {
+            for (final GsFileObserver observer : observers) {
+                observer.dispatch(event, name);
+            }
+            if ((event & (DELETE_SELF | MOVE_SELF)) != 0) {
+                // The kernel dropped the watch or it now points elsewhere
+                end(this);
+            }
+        }
+    }
+
+    private static void end(final SharedWatch watch) {
+        synchronized (_watches) {
+            if (_watches.get(watch.path) == watch) {
+                _watches.remove(watch.path);
+                watch.stopWatching();
+            }
+            for (final GsFileObserver observer : watch.observers) {
+                synchronized (observer) {
+                    observer._watch = null;
+                }
+            }
+        }
+    }
+
+    private final File _file;
+    private final int _mask;
+    private final GsCallback.a2<Integer, String> _callback;
+    private SharedWatch _watch = null; // Guarded by this
+
+    /**
+     * @param file     File or folder to watch
+     * @param mask     Events to observe, i.e. {@link #CHANGES}, at most {@link #SUPPORTED}
+     * @param callback Receives the event and the path relative to the watched folder (may be null)
+     */
+    public GsFileObserver(final File file, final int mask, final GsCallback.a2<Integer, String> callback) {
+        _file = file;
+        _mask = mask & SUPPORTED;
+        _callback = callback;
+    }
+
+    public File getFile() {
+        return _file;
+    }
+
+    private void dispatch(final int event, @Nullable final String path) {
+        if (_callback != null && (event & _mask) != 0 && isWatching()) {
+            _callback.callback(event, path);
+        }
+    }
+
+    public void startWatching() {
+        final String path = _file.getAbsolutePath();
+        synchronized (_watches) {
+            synchronized (this) {
+                if (_watch != null) {
+                    return;
+                }
+                SharedWatch watch = _watches.get(path);
+                if (watch == null) {
+                    watch = new SharedWatch(path);
+                    _watches.put(path, watch);
+                    watch.startWatching();
+                }
+                watch.observers.add(this);
+                _watch = watch;
+            }
+        }
+    }
+
+    public void stopWatching() {
+        synchronized (_watches) {
+            synchronized (this) {
+                if (_watch == null) {
+                    return;
+                }
+                _watch.observers.remove(this);
+                if (_watch.observers.isEmpty() && _watches.get(_watch.path) == _watch) {
+                    _watches.remove(_watch.path);
+                    _watch.stopWatching();
+                }
+                _watch = null;
+            }
+        }
+    }
+
+    /**
+     * @return false if not started, stopped or the watched file was deleted or moved
+     */
+    public synchronized boolean isWatching() {
+        return _watch != null;
+    }
+}
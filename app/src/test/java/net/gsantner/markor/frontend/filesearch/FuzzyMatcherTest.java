@@ -0,0 +1,34 @@
+package net.gsantner.markor.frontend.filesearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FuzzyMatcherTest {
+
+    private static int score(final String query, final String path) {
+        final char[] key = FuzzyMatcher.makeKey(path);
+        return FuzzyMatcher.score(FuzzyMatcher.makeKey(query), key, FuzzyMatcher.nameStart(key));
+    }
+
+    @Test
+    public void subsequenceRequired() {
+        assertNotEquals(FuzzyMatcher.NO_MATCH, score("rdm", "notes/ReadMe.md"));
+        assertEquals(FuzzyMatcher.NO_MATCH, score("mdr", "notes/ReadMe.md"));
+        assertEquals(FuzzyMatcher.NO_MATCH, score("readme.txt", "readme.md"));
+        assertEquals(0, score("", "anything"));
+    }
+
+    @Test
+    public void nameBeatsFolder() {
+        assertTrue(score("todo", "todo/archive/list.md") < score("todo", "archive/list/todo.txt"));
+    }
+
+    @Test
+    public void boundariesAndRunsBeatScattered() {
+        assertTrue(score("ml", "my_list.md") > score("ml", "small.md"));
+        assertTrue(score("list", "shopping-list.md") > score("list", "lighthouse-stories.md"));
+    }
+}
@@ -0,0 +1,60 @@
+package net.gsantner.markor.frontend.filesearch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LiteralMatcherTest {
+
+    private static List<String> findLines(final String text, final String query, final boolean caseSensitive) throws IOException {
+        final List<String> result = new ArrayList<>();
+        new LiteralMatcher(query, caseSensitive).findLines(new StringReader(text), (buf, lineStart, lineEnd, matchStart, lineNumber) -> {
+            result.add(lineNumber + ":" + new String(buf, lineStart, lineEnd - lineStart) + "@" + (matchStart - lineStart));
+            return true;
+        });
+        return result;
+    }
+
+    @Test
+    public void indexOf_caseFolded() {
+        final char[] text = "Hello World".toCharArray();
+        assertEquals(6, new LiteralMatcher("world", false).indexOf(text, 0, text.length));
+        assertEquals(-1, new LiteralMatcher("world", true).indexOf(text, 0, text.length));
+        assertEquals(-1, new LiteralMatcher("world", false).indexOf(text, 0, text.length - 1));
+    }
+
+    @Test
+    public void findLines_lineNumbersAndOffsets() throws IOException {
+        final String text = "first\r\nnothing\nfoo FOO\n\nlast foo";
+        final List<String> lines = findLines(text, "foo", false);
+        assertEquals(2, lines.size());
+        assertEquals("2:foo FOO@0", lines.get(0));
+        assertEquals("4:last foo@5", lines.get(1));
+    }
+
+    @Test
+    public void findLines_lineLongerThanBuffer() throws IOException {
+        final StringBuilder sb = new StringBuilder("a\n");
+        for (int i = 0; i < 100000; i++) {
+            sb.append('x');
+        }
+        sb.append("needle\nb");
+        final List<String> lines = findLines(sb.toString(), "NEEDLE", false);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith("1:xxx"));
+        assertTrue(lines.get(0).endsWith("@100000"));
+    }
+
+    @Test
+    public void isSupported() {
+        assertFalse(LiteralMatcher.isSupported(""));
+        assertFalse(LiteralMatcher.isSupported("a\nb"));
+    }
+}
@@ -0,0 +1,51 @@
+package net.gsantner.opoc.format;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+public class GsRegexBudgetTest {
+
+    @Test
+    public void isCostly_nestedUnboundedQuantifiers() {
+        assertTrue(GsRegexBudget.isCostly("(a+)+b"));
+        assertTrue(GsRegexBudget.isCostly("(a*b*)*c"));
+        assertTrue(GsRegexBudget.isCostly("((a+)b)+"));
+        assertTrue(GsRegexBudget.isCostly("(\\w+\\s?){2,}x"));
+
+        assertFalse(GsRegexBudget.isCostly("(ab)+"));
+        assertFalse(GsRegexBudget.isCostly("a+b+"));
+        assertFalse(GsRegexBudget.isCostly("(a{2,5})+"));
+        assertFalse(GsRegexBudget.isCostly("\\(a+\\)+"));
+        assertFalse(GsRegexBudget.isCostly("[(a+)]+"));
+        assertFalse(GsRegexBudget.isCostly("\\Q(a+)+\\E"));
+    }
+
+    @Test
+    public void replaceAll_sameAsMatcher() {
+        final GsRegexBudget budget = new GsRegexBudget(10000, null);
+        for (final String regex : Arrays.asList("o", "o*", "(\\w)(\\w)", "^", "x")) {
+            final String text = "foo boo\nzoo";
+            final String expected = Pattern.compile(regex).matcher(text).replaceAll("[$0]");
+            assertEquals(expected, budget.replaceAll(Pattern.compile(regex).matcher(budget.guard(text)), "[$0]"));
+        }
+    }
+
+    @Test(expected = GsRegexBudget.TimeoutException.class)
+    public void guard_stopsLongMatch() {
+        final char[] chars = new char[1000000];
+        Arrays.fill(chars, 'x');
+        final GsRegexBudget budget = new GsRegexBudget(0, null);
+        Pattern.compile("x*z").matcher(budget.guard(new String(chars))).find();
+    }
+
+    @Test(expected = GsRegexBudget.TimeoutException.class)
+    public void count_stopsWhenCancelled() {
+        new GsRegexBudget(10000, () -> true).count(Pattern.compile("x").matcher("xxx"));
+    }
+}
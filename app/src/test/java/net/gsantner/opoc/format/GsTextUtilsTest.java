@@ -8,9 +8,13 @@
 package net.gsantner.opoc.format;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 import org.junit.Test;
 
+import java.util.List;
+
 public class GsTextUtilsTest {
     //                      012345 67890 1234567
     String lineWithNL = "Hello \njava\n World";
@@ -46,4 +50,44 @@ public class GsTextUtilsTest {
         assertArrayEquals("whole text returned", new int[]{0, 16}, result);
     }
 
-}
\ No newline at end of file
+    private static String applyDiff(final String a, final String b, final List<int[]> hunks) {
+        final StringBuilder sb = new StringBuilder(a);
+        for (int i = hunks.size() - 1; i >= 0; i--) {
+            final int[] h = hunks.get(i);
+            sb.replace(h[0], h[1], b.substring(h[2], h[3]));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void diffLines_singleLineChanged() {
+        final String a = "one\ntwo\nthree\nfour\n";
+        final String b = "one\ntwo\nTHREE\nfour\n";
+        final List<int[]> hunks = GsTextUtils.diffLines(a, b, 100);
+        assertEquals(1, hunks.size());
+        assertArrayEquals(new int[]{8, 14, 8, 14}, hunks.get(0));
+        assertEquals(b, applyDiff(a, b, hunks));
+    }
+
+    @Test
+    public void diffLines_roundTrip() {
+        final String[][] cases = {
+                {"", ""},
+                {"", "a\nb"},
+                {"a\nb", ""},
+                {"a\nb\nc", "a\nc"},
+                {"a\nc", "a\nb\nc"},
+                {"a\nb\nc\n", "a\nb\nc"},
+                {"x\na\ny\nb\nz", "a\nq\nb\nr\n"},
+                {"same\n", "same\n"},
+        };
+        for (final String[] c : cases) {
+            assertEquals(c[1], applyDiff(c[0], c[1], GsTextUtils.diffLines(c[0], c[1], 100)));
+        }
+    }
+
+    @Test
+    public void diffLines_tooManyEdits() {
+        assertNull(GsTextUtils.diffLines("a\nb\nc\n", "x\ny\nz\n", 2));
+    }
+}
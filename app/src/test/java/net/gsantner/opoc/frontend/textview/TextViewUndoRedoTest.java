@@ -0,0 +1,393 @@
+package net.gsantner.opoc.frontend.textview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.text.Editable;
+import android.text.InputFilter;
+import android.text.TextWatcher;
+import android.text.style.UnderlineSpan;
+import android.widget.TextView;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+public class TextViewUndoRedoTest {
+
+    private static final String WORD = "word ";
+    private static final String EDITED = "WORD ";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Editable with an index of spans by start, like the interval tree of SpannableStringBuilder.
+     * Counts the spans inspected by getSpans and records the queried ranges.
+     */
+    private static class FakeEditable implements Editable {
+        final StringBuilder text = new StringBuilder();
+        final TreeMap<Integer, List<Object>> spansByStart = new TreeMap<>();
+        final Map<Object, int[]> spanRanges = new HashMap<>();
+        final List<int[]> queries = new ArrayList<>();
+        int maxSpanLength = 0;
+        long visitedSpans = 0;
+
+        @Override
+        public Editable replace(final int st, final int en, final CharSequence source, final int start, final int end) {
+            final int delta = (end - start) - (en - st);
+            text.replace(st, en, source.subSequence(start, end).toString());
+            if (delta != 0) {
+                final TreeMap<Integer, List<Object>> shifted = new TreeMap<>();
+                for (final Map.Entry<Integer, List<Object>> entry : spansByStart.entrySet()) {
+                    final int key = entry.getKey() >= en ? entry.getKey() + delta : entry.getKey();
+                    for (final Object span : entry.getValue()) {
+                        final int[] range = spanRanges.get(span);
+                        range[0] = key;
+                        range[1] = range[1] >= en ? range[1] + delta : Math.min(range[1], text.length());
+                        shifted.computeIfAbsent(key, k -> new ArrayList<>()).add(span);
+                    }
+                }
+                spansByStart.clear();
+                spansByStart.putAll(shifted);
+            }
+            return this;
+        }
+
+        @Override
+        public Editable replace(final int st, final int en, final CharSequence source) {
+            return replace(st, en, source, 0, source.length());
+        }
+
+        @Override
+        public Editable insert(final int where, final CharSequence source, final int start, final int end) {
+            return replace(where, where, source, start, end);
+        }
+
+        @Override
+        public Editable insert(final int where, final CharSequence source) {
+            return replace(where, where, source);
+        }
+
+        @Override
+        public Editable delete(final int st, final int en) {
+            return replace(st, en, "");
+        }
+
+        @Override
+        public Editable append(final CharSequence source) {
+            return replace(length(), length(), source);
+        }
+
+        @Override
+        public Editable append(final CharSequence source, final int start, final int end) {
+            return replace(length(), length(), source, start, end);
+        }
+
+        @Override
+        public Editable append(final char c) {
+            return append(String.valueOf(c));
+        }
+
+        @Override
+        public void clear() {
+            replace(0, length(), "");
+        }
+
+        @Override
+        public void clearSpans() {
+            spansByStart.clear();
+            spanRanges.clear();
+        }
+
+        @Override
+        public void setFilters(final InputFilter[] filters) {
+        }
+
+        @Override
+        public InputFilter[] getFilters() {
+            return new InputFilter[0];
+        }
+
+        @Override
+        public void setSpan(final Object what, final int start, final int end, final int flags) {
+            removeSpan(what);
+            spanRanges.put(what, new int[]{start, end});
+            spansByStart.computeIfAbsent(start, k -> new ArrayList<>()).add(what);
+            maxSpanLength = Math.max(maxSpanLength, end - start);
+        }
+
+        @Override
+        public void removeSpan(final Object what) {
+            final int[] range = spanRanges.remove(what);
+            if (range != null) {
+                final List<Object> list = spansByStart.get(range[0]);
+                list.remove(what);
+                if (list.isEmpty()) {
+                    spansByStart.remove(range[0]);
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T[] getSpans(final int start, final int end, final Class<T> type) {
+            queries.add(new int[]{start, end});
+            final List<T> found = new ArrayList<>();
+            for (final List<Object> list : spansByStart.subMap(start - maxSpanLength, true, end, true).values()) {
+                for (final Object span : list) {
+                    visitedSpans++;
+                    final int[] range = spanRanges.get(span);
+                    if (type.isInstance(span) && range[0] < end && range[1] > start) {
+                        found.add((T) span);
+                    }
+                }
+            }
+            return found.toArray((T[]) Array.newInstance(type, found.size()));
+        }
+
+        @Override
+        public int getSpanStart(final Object tag) {
+            return spanRanges.containsKey(tag) ? spanRanges.get(tag)[0] : -1;
+        }
+
+        @Override
+        public int getSpanEnd(final Object tag) {
+            return spanRanges.containsKey(tag) ? spanRanges.get(tag)[1] : -1;
+        }
+
+        @Override
+        public int getSpanFlags(final Object tag) {
+            return 0;
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int nextSpanTransition(final int start, final int limit, final Class type) {
+            return limit;
+        }
+
+        @Override
+        public void getChars(final int start, final int end, final char[] dest, final int destoff) {
+            text.getChars(start, end, dest, destoff);
+        }
+
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+
+    private static class FakeTextView extends TextView {
+        final FakeEditable editable;
+        int batchEdits = 0;
+
+        FakeTextView(final FakeEditable editable) {
+            super(null);
+            this.editable = editable;
+        }
+
+        @Override
+        public Editable getText() {
+            return editable;
+        }
+
+        @Override
+        public Editable getEditableText() {
+            return editable;
+        }
+
+        @Override
+        public void beginBatchEdit() {
+            batchEdits++;
+        }
+
+        @Override
+        public void endBatchEdit() {
+        }
+
+        @Override
+        public void addTextChangedListener(final TextWatcher watcher) {
+        }
+
+        @Override
+        public void removeTextChangedListener(final TextWatcher watcher) {
+        }
+    }
+
+    // Text of words with a suggestion span each
+    private static FakeEditable wordsWithSpans(final int words) {
+        return wordsWithSpans(words, UnderlineSpan::new);
+    }
+
+    private static FakeEditable wordsWithSpans(final int words, final Supplier<Object> spanFactory) {
+        final FakeEditable editable = new FakeEditable();
+        final StringBuilder sb = new StringBuilder(words * WORD.length());
+        for (int i = 0; i < words; i++) {
+            sb.append(WORD);
+        }
+        editable.append(sb);
+        for (int i = 0; i < words; i++) {
+            editable.setSpan(spanFactory.get(), i * WORD.length(), i * WORD.length() + WORD.length() - 1, 0);
+        }
+        return editable;
+    }
+
+    private static void writeString(final DataOutputStream out, final String str) throws IOException {
+        final byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    // History in which the given words were changed from EDITED to WORD, without selection changes
+    private TextViewUndoRedo undoRedoWithEdits(final FakeTextView textView, final int... editedWords) throws IOException {
+        final File journal = folder.newFile();
+        try (final DataOutputStream out = new DataOutputStream(new FileOutputStream(journal))) {
+            out.writeInt(0x4D4B5552);
+            out.writeByte(1);
+            out.writeLong(TextViewUndoRedo.fingerprint(textView.getText()));
+            out.writeInt(editedWords.length);
+            out.writeInt(editedWords.length);
+            for (final int word : editedWords) {
+                out.writeInt(word * WORD.length());
+                out.writeInt(-1);
+                out.writeInt(-1);
+                writeString(out, EDITED);
+                writeString(out, WORD);
+            }
+        }
+
+        final TextViewUndoRedo undoRedo = new TextViewUndoRedo();
+        undoRedo.setTextView(textView);
+        assertTrue(undoRedo.restorePersistentState(journal));
+        return undoRedo;
+    }
+
+    private static boolean isInEditedWord(final int[] range, final int... editedWords) {
+        for (final int word : editedWords) {
+            final int start = word * WORD.length();
+            if (range[0] >= start && range[1] <= start + WORD.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void undoRedo_batchedAndCleanupLimitedToEditedRange() throws IOException {
+        final int[] edited = {100, 500, 900};
+        final FakeEditable editable = wordsWithSpans(1000);
+        final String original = editable.toString();
+        final FakeTextView textView = new FakeTextView(editable);
+        final TextViewUndoRedo undoRedo = undoRedoWithEdits(textView, edited);
+
+        undoRedo.undo(edited.length);
+        assertEquals(1, textView.batchEdits);
+        assertFalse(undoRedo.getCanUndo());
+        for (final int word : edited) {
+            assertEquals(EDITED, editable.subSequence(word * WORD.length(), (word + 1) * WORD.length()).toString());
+            assertEquals(0, editable.getSpans(word * WORD.length(), (word + 1) * WORD.length(), UnderlineSpan.class).length);
+        }
+        assertEquals(1000 - edited.length, editable.spanRanges.size());
+
+        editable.queries.clear();
+        undoRedo.redo(edited.length);
+        assertEquals(2, textView.batchEdits);
+        assertFalse(undoRedo.getCanRedo());
+        assertEquals(original, editable.toString());
+        assertEquals(edited.length, editable.queries.size());
+        for (final int[] query : editable.queries) {
+            assertTrue(isInEditedWord(query, edited));
+        }
+    }
+
+    @Test
+    public void removeSuggestionSpans_clampsRange() {
+        final FakeEditable editable = wordsWithSpans(10);
+        TextViewUndoRedo.removeSuggestionSpans(editable, -5, 7);
+        assertEquals(8, editable.spanRanges.size());
+        TextViewUndoRedo.removeSuggestionSpans(editable, 45, 1000);
+        assertEquals(7, editable.spanRanges.size());
+        assertEquals(50, editable.queries.get(1)[1]);
+    }
+
+    // Cleanup only looks at spans near the edit, no matter how many the document has
+    @Test
+    public void undoRedo_cleanupCostIndependentOfSpanCount() throws IOException {
+        long visitedBefore = -1;
+        for (final int words : new int[]{1000, 10000, 100000}) {
+            final FakeEditable editable = wordsWithSpans(words);
+            final TextViewUndoRedo undoRedo = undoRedoWithEdits(new FakeTextView(editable), 10, 20, 30, 40);
+            editable.visitedSpans = 0;
+            undoRedo.undo(4);
+            undoRedo.redo(4);
+            if (visitedBefore >= 0) {
+                assertEquals(visitedBefore, editable.visitedSpans);
+            }
+            visitedBefore = editable.visitedSpans;
+        }
+    }
+
+    // Nanoseconds for the best of several rounds of removeSuggestionSpans and a batched undo/redo,
+    // in a document with a (highlighting) span on each word
+    private long timeUndoRedo(final int words) throws IOException {
+        final int[] edited = new int[20];
+        for (int i = 0; i < edited.length; i++) {
+            edited[i] = (i * words) / edited.length;
+        }
+        final FakeEditable editable = wordsWithSpans(words, Object::new);
+        final TextViewUndoRedo undoRedo = undoRedoWithEdits(new FakeTextView(editable), edited);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 50; round++) {
+            for (final int word : edited) {
+                editable.setSpan(new UnderlineSpan(), word * WORD.length(), (word + 1) * WORD.length(), 0);
+            }
+            final long start = System.nanoTime();
+            undoRedo.undo(edited.length);
+            undoRedo.redo(edited.length);
+            for (final int word : edited) {
+                TextViewUndoRedo.removeSuggestionSpans(editable, word * WORD.length(), (word + 1) * WORD.length());
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    // Cleanup of the whole document would take ~100x as long with 100x the spans
+    @Test
+    public void undoRedo_timeIndependentOfSpanCount() throws IOException {
+        timeUndoRedo(1000); // Warm up
+        final long small = timeUndoRedo(1000);
+        final long large = timeUndoRedo(100000);
+        assertTrue("1k spans: " + small + "ns, 100k spans: " + large + "ns", large < 10 * small + 5000000);
+    }
+}
@@ -0,0 +1,133 @@
+package net.gsantner.opoc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+public class GsFileUtilsSortTest {
+
+    private static List<String> naturalSorted(final String... names) {
+        final List<String> list = new ArrayList<>(Arrays.asList(names));
+        Collections.sort(list, (a, b) -> GsFileUtils.makeNaturalSortKey(a).compareTo(GsFileUtils.makeNaturalSortKey(b)));
+        return list;
+    }
+
+    @Test
+    public void numbersByValue() {
+        assertEquals(Arrays.asList("file1.md", "file2.md", "file10.md", "file100.md"), naturalSorted("file10.md", "file100.md", "file2.md", "file1.md"));
+        assertEquals(Arrays.asList("2024-1-5", "2024-01-20", "2024-12-1"), naturalSorted("2024-12-1", "2024-01-20", "2024-1-5"));
+    }
+
+    @Test
+    public void caseInsensitiveAndDigitsBeforeLetters() {
+        assertEquals(Arrays.asList("a", "a1", "ab", "B"), naturalSorted("B", "ab", "a1", "a"));
+        assertEquals(GsFileUtils.makeNaturalSortKey("Note 007"), GsFileUtils.makeNaturalSortKey("note 7"));
+    }
+
+    // Shuffled folder with random attributes below maxAttribute, every 50th entry is a directory
+    private static List<File> makeFolder(final int count, final int maxAttribute, final Random random, final Map<File, GsFileUtils.DirEntry> attributes) {
+        final List<File> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final boolean isDirectory = i % 50 == 0;
+            final File file = new File("/notebook", (isDirectory ? "Folder " : "Note ") + random.nextInt(100000) + "_" + i + (isDirectory ? "" : ".md"));
+            files.add(file);
+            attributes.put(file, GsFileUtils.DirEntry.of(file, isDirectory, 1600000000000L + random.nextInt(maxAttribute), random.nextInt(maxAttribute)));
+        }
+        Collections.shuffle(files, random);
+        return files;
+    }
+
+    @Test
+    public void sortFilesByNameMtimeAndSize() {
+        final Random random = new Random(1);
+        final Map<File, GsFileUtils.DirEntry> attributes = new HashMap<>();
+        // Many equal times and sizes, which are ordered by name
+        final List<File> files = makeFolder(500, 100, random, attributes);
+
+        for (final String sortBy : new String[]{GsFileUtils.SORT_BY_NAME, GsFileUtils.SORT_BY_MTIME, GsFileUtils.SORT_BY_FILESIZE}) {
+            final GsFileUtils.SortOrder order = new GsFileUtils.SortOrder();
+            order.sortByType = sortBy;
+            final List<File> sorted = new ArrayList<>(files);
+            GsFileUtils.sortFiles(sorted, order, attributes::get);
+            assertSorted(sorted, sortBy, attributes);
+        }
+    }
+
+    /**
+     * Times sortFiles for large folders against the formatted string keys used before. Attributes come
+     * from the listing for both, so only the sorting is compared. The string keys used to stat every file.
+     * Sorting by name is left out, natural ordering does more than comparing plain strings.
+     */
+    @Ignore("Benchmark, run manually")
+    @Test
+    public void sortLargeFoldersBenchmark() {
+        for (final int count : new int[]{10000, 100000}) {
+            final Random random = new Random(count);
+            final Map<File, GsFileUtils.DirEntry> attributes = new HashMap<>();
+            final List<File> files = makeFolder(count, Integer.MAX_VALUE, random, attributes);
+
+            for (final String sortBy : new String[]{GsFileUtils.SORT_BY_MTIME, GsFileUtils.SORT_BY_FILESIZE}) {
+                final GsFileUtils.SortOrder order = new GsFileUtils.SortOrder();
+                order.sortByType = sortBy;
+                // Best of a few rounds, the first ones include JIT compilation
+                long beforeMs = Long.MAX_VALUE, afterMs = Long.MAX_VALUE;
+                List<File> after = null;
+                for (int round = 0; round < 3; round++) {
+                    final List<File> before = new ArrayList<>(files);
+                    long start = System.nanoTime();
+                    sortByStringKeys(before, sortBy, attributes);
+                    beforeMs = Math.min(beforeMs, (System.nanoTime() - start) / 1000000);
+
+                    after = new ArrayList<>(files);
+                    start = System.nanoTime();
+                    GsFileUtils.sortFiles(after, order, attributes::get);
+                    afterMs = Math.min(afterMs, (System.nanoTime() - start) / 1000000);
+                }
+
+                assertSorted(after, sortBy, attributes);
+                assertTrue(String.format(Locale.ROOT, "%d files by %s, string keys: %d ms, primitive keys: %d ms", count, sortBy, beforeMs, afterMs), afterMs <= beforeMs);
+            }
+        }
+    }
+
+    // How sortFiles worked before: a formatted string key per file, then a stable sort for folders first
+    private static void sortByStringKeys(final List<File> files, final String sortBy, final Map<File, GsFileUtils.DirEntry> attributes) {
+        GsCollectionUtils.keySort(files, (f) -> {
+            final String name = f.getName().toLowerCase();
+            switch (sortBy) {
+                case GsFileUtils.SORT_BY_MTIME:
+                    return attributes.get(f).lastModified() + name;
+                case GsFileUtils.SORT_BY_FILESIZE:
+                    return String.format("%015d", attributes.get(f).length()) + name;
+                default:
+                    return name;
+            }
+        });
+        GsCollectionUtils.keySort(files, (f) -> !attributes.get(f).isDirectory());
+    }
+
+    private static void assertSorted(final List<File> files, final String sortBy, final Map<File, GsFileUtils.DirEntry> attributes) {
+        for (int i = 1; i < files.size(); i++) {
+            final GsFileUtils.DirEntry a = attributes.get(files.get(i - 1)), b = attributes.get(files.get(i));
+            if (a.isDirectory() != b.isDirectory()) {
+                assertTrue(a.isDirectory());
+                continue;
+            }
+            final long pa = GsFileUtils.SORT_BY_MTIME.equals(sortBy) ? a.lastModified() : (GsFileUtils.SORT_BY_FILESIZE.equals(sortBy) ? a.length() : 0);
+            final long pb = GsFileUtils.SORT_BY_MTIME.equals(sortBy) ? b.lastModified() : (GsFileUtils.SORT_BY_FILESIZE.equals(sortBy) ? b.length() : 0);
+            assertTrue(pa < pb || (pa == pb && GsFileUtils.makeNaturalSortKey(a.getName()).compareTo(GsFileUtils.makeNaturalSortKey(b.getName())) <= 0));
+        }
+    }
+}
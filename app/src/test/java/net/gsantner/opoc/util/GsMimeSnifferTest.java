@@ -0,0 +1,59 @@
+package net.gsantner.opoc.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class GsMimeSnifferTest {
+
+    private static String sniff(final byte[] head) {
+        return GsMimeSniffer.sniff(head, head.length, true);
+    }
+
+    private static String sniff(final String text) {
+        return sniff(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void magicBytes() {
+        assertEquals("image/png", sniff(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n', 0, 0}));
+        assertEquals("application/pdf", sniff("%PDF-1.7\n"));
+        assertEquals("application/zip", sniff(new byte[]{'P', 'K', 3, 4, 20, 0}));
+        assertEquals("image/webp", sniff(new byte[]{'R', 'I', 'F', 'F', 1, 2, 3, 4, 'W', 'E', 'B', 'P', 'V', 'P'}));
+        assertEquals("video/mp4", sniff(new byte[]{0, 0, 0, 0x18, 'f', 't', 'y', 'p', 'm', 'p', '4', '2'}));
+    }
+
+    @Test
+    public void text() {
+        assertEquals("text/plain", sniff(""));
+        assertEquals("text/plain", sniff("Hello\nWörld ✓\n"));
+        assertEquals("text/plain", sniff("BMW and ID3 tags, not a bitmap"));
+        assertEquals("text/x-python", sniff("#!/usr/bin/env python3\nprint(1)\n"));
+        assertEquals("text/x-shellscript", sniff("#!/bin/bash\necho hi\n"));
+        assertEquals("text/xml", sniff("<?xml version=\"1.0\"?><a/>"));
+        assertEquals("text/html", sniff("<!DOCTYPE html><html></html>"));
+    }
+
+    @Test
+    public void binary() {
+        assertNull(sniff(new byte[]{1, 2, 3, 0, 5}));
+        assertNull(sniff(new byte[]{'a', (byte) 0xC3, 'b'}));
+        final byte[] control = new byte[100];
+        Arrays.fill(control, (byte) 0x01);
+        assertNull(sniff(control));
+    }
+
+    @Test
+    public void cutOffSequenceAtEndOfHead() {
+        final byte[] head = "abcä".getBytes(StandardCharsets.UTF_8);
+        final byte[] cut = Arrays.copyOf(head, head.length - 1);
+        assertTrue(GsMimeSniffer.isText(cut, cut.length, false));
+        assertFalse(GsMimeSniffer.isText(cut, cut.length, true));
+    }
+}
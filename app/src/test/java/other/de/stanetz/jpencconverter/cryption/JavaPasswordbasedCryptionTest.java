@@ -2,8 +2,12 @@ package other.de.stanetz.jpencconverter.cryption;
 
 import static org.junit.Assert.assertEquals;
 
+import android.content.ComponentCallbacks2;
+
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 
@@ -52,6 +56,76 @@ public class JavaPasswordbasedCryptionTest {
         assertEquals(text, decrypt);
     }
 
+    @Test
+    public void keyCacheHitForSameVersionSaltAndPassword() throws IOException {
+        JavaPasswordbasedCryption.clearKeyCache();
+        testee = new JavaPasswordbasedCryption(JavaPasswordbasedCryption.Version.V001, RANDOM);
+        final byte[] encrypted = testee.encrypt("text", "Test".toCharArray());
+        final int misses = JavaPasswordbasedCryption.getKeyCacheMisses();
+
+        assertEquals("text", testee.decrypt(encrypted, "Test".toCharArray()));
+        assertEquals(misses + 1, JavaPasswordbasedCryption.getKeyCacheMisses());
+        assertEquals("text", JavaPasswordbasedCryption.getDecryptedText(encrypted, "Test".toCharArray()));
+        JavaPasswordbasedCryption.getDecryptingStream(new ByteArrayInputStream(encrypted), "Test".toCharArray()).close();
+        assertEquals(misses + 1, JavaPasswordbasedCryption.getKeyCacheMisses());
+    }
+
+    @Test
+    public void keyCacheMissForOtherSaltOrPassword() {
+        JavaPasswordbasedCryption.clearKeyCache();
+        testee = new JavaPasswordbasedCryption(JavaPasswordbasedCryption.Version.V001, RANDOM);
+        // Each encryption has its own salt
+        final byte[] first = testee.encrypt("text", "Test".toCharArray());
+        final byte[] second = testee.encrypt("text", "Test".toCharArray());
+        final int misses = JavaPasswordbasedCryption.getKeyCacheMisses();
+
+        testee.decrypt(first, "Test".toCharArray());
+        testee.decrypt(second, "Test".toCharArray());
+        assertEquals(misses + 2, JavaPasswordbasedCryption.getKeyCacheMisses());
+
+        try {
+            testee.decrypt(first, "Other".toCharArray());
+            throw new AssertionError("Decrypted with wrong password");
+        } catch (JavaPasswordbasedCryption.EncryptionFailedException expected) {
+            assertEquals(misses + 3, JavaPasswordbasedCryption.getKeyCacheMisses());
+        }
+    }
+
+    @Test
+    public void keyCacheExpiresAfterTimeout() {
+        JavaPasswordbasedCryption.clearKeyCache();
+        testee = new JavaPasswordbasedCryption(JavaPasswordbasedCryption.Version.V001, RANDOM);
+        final byte[] encrypted = testee.encrypt("text", "Test".toCharArray());
+        final long start = System.currentTimeMillis();
+        testee.decrypt(encrypted, "Test".toCharArray());
+        final int misses = JavaPasswordbasedCryption.getKeyCacheMisses();
+
+        JavaPasswordbasedCryption.expireKeys(start + JavaPasswordbasedCryption.KEY_CACHE_TIMEOUT_MS - 1);
+        testee.decrypt(encrypted, "Test".toCharArray());
+        assertEquals(misses, JavaPasswordbasedCryption.getKeyCacheMisses());
+
+        JavaPasswordbasedCryption.expireKeys(System.currentTimeMillis() + JavaPasswordbasedCryption.KEY_CACHE_TIMEOUT_MS);
+        testee.decrypt(encrypted, "Test".toCharArray());
+        assertEquals(misses + 1, JavaPasswordbasedCryption.getKeyCacheMisses());
+    }
+
+    @Test
+    public void keyCacheClearedWhenUiHidden() {
+        JavaPasswordbasedCryption.clearKeyCache();
+        testee = new JavaPasswordbasedCryption(JavaPasswordbasedCryption.Version.V001, RANDOM);
+        final byte[] encrypted = testee.encrypt("text", "Test".toCharArray());
+        testee.decrypt(encrypted, "Test".toCharArray());
+        final int misses = JavaPasswordbasedCryption.getKeyCacheMisses();
+
+        JavaPasswordbasedCryption.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        testee.decrypt(encrypted, "Test".toCharArray());
+        assertEquals(misses, JavaPasswordbasedCryption.getKeyCacheMisses());
+
+        JavaPasswordbasedCryption.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        testee.decrypt(encrypted, "Test".toCharArray());
+        assertEquals(misses + 1, JavaPasswordbasedCryption.getKeyCacheMisses());
+    }
+
     @Test
     public void getVersion() {
         final byte[] bytes = "V001".getBytes(StandardCharsets.US_ASCII);
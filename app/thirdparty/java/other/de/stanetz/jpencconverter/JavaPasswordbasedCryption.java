@@ -1,22 +1,39 @@
 package other.de.stanetz.jpencconverter;
 
 
+import android.content.ComponentCallbacks2;
 import android.os.Build;
 
 import androidx.annotation.RequiresApi;
+import androidx.annotation.VisibleForTesting;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -48,6 +65,31 @@ public class JavaPasswordbasedCryption {
     private final Version version;
     private final Random random;
 
+    // Keys derived for decryption, by salt and password. PBKDF2 is by far the most expensive part of decryption.
+    // Encryption always uses a fresh salt, so its keys are never cached.
+    private static final int KEY_CACHE_SIZE = 32;
+    @VisibleForTesting
+    public static final long KEY_CACHE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final LinkedHashMap<String, CachedKey> KEY_CACHE = new LinkedHashMap<String, CachedKey>(KEY_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+            return size() > KEY_CACHE_SIZE;
+        }
+    };
+    private static Timer keyCacheTimer; // Removes expired keys, only runs while keys are cached
+    private static byte[] fingerprintSecret;
+    private static int keyCacheMisses; // Guarded by KEY_CACHE
+
+    private static final class CachedKey {
+        private final SecretKey key;
+        private long lastUsed;
+
+        private CachedKey(SecretKey key) {
+            this.key = key;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
     /**
      * Create a new Instance of the given android api version.
      *
@@ -127,7 +169,7 @@ public class JavaPasswordbasedCryption {
         try {
             final byte[] salt = getRandomBytes(version.keySaltLength);
             final byte[] nonce = getRandomBytes(version.nonceLenth);
-            final SecretKey key = createKeyFromPassword(password, salt);
+            final SecretKey key = createKeyFromPassword(password, salt, false);
             final byte[] cryptedBytes = getCipher(key, Cipher.ENCRYPT_MODE, nonce).doFinal(decryptedBytes);
             final byte[] result = new byte[Version.NAME_LENGTH + nonce.length + salt.length + cryptedBytes.length];
             System.arraycopy(version.name().getBytes(StandardCharsets.US_ASCII), 0, result, 0, Version.NAME_LENGTH);
@@ -177,7 +219,7 @@ public class JavaPasswordbasedCryption {
             from = to;
             to = encrypted.length;
             final byte[] encodedBytes = Arrays.copyOfRange(encrypted, from, to);
-            final SecretKey key = createKeyFromPassword(password, salt);
+            final SecretKey key = createKeyFromPassword(password, salt, true);
             return getCipher(key, Cipher.DECRYPT_MODE, nonce).doFinal(encodedBytes);
         } catch (NoSuchPaddingException | NoSuchAlgorithmException |
                  InvalidAlgorithmParameterException | InvalidKeyException |
@@ -186,18 +228,214 @@ public class JavaPasswordbasedCryption {
         }
     }
 
-    private SecretKey createKeyFromPassword(char[] password, byte[] salt) {
+    /**
+     * Create a stream which encrypts everything written to it into the given stream, in the same format as {@link #encryptBytes(byte[], char[])}.
+     * The header is written immediately. Closing the returned stream writes the authentication tag and closes the target.
+     * <p>
+     * Note: Android's AES-GCM implementation (Conscrypt) buffers all input until the stream is closed, so the whole
+     * plain text is held in memory once. This still saves the byte array copies of {@link #encryptBytes(byte[], char[])}.
+     *
+     * @param target   stream to write the encrypted bytes to.
+     * @param password the password to create the key <b>Warning!</b> the array will be filled with 0!
+     * @return stream to write the decrypted bytes to.
+     * @throws EncryptionFailedException when something goes wrong.
+     */
+    public OutputStream encryptingStream(OutputStream target, char[] password) throws IOException, EncryptionFailedException {
+        try {
+            final byte[] salt = getRandomBytes(version.keySaltLength);
+            final byte[] nonce = getRandomBytes(version.nonceLenth);
+            final SecretKey key = createKeyFromPassword(password, salt, false);
+            final Cipher cipher = getCipher(key, Cipher.ENCRYPT_MODE, nonce);
+            target.write(version.name().getBytes(StandardCharsets.US_ASCII), 0, Version.NAME_LENGTH);
+            target.write(nonce);
+            target.write(salt);
+            return new CipherOutputStream(target, cipher);
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException |
+                 InvalidAlgorithmParameterException | InvalidKeyException e) {
+            throw new EncryptionFailedException("Can't encrypt text.", e);
+        }
+    }
+
+    /**
+     * Create a stream which decrypts the given encrypted stream (including the version header).
+     * The header is read immediately. A wrong password or modified content is reported as IOException,
+     * at the latest when the end of the stream is reached.
+     * <p>
+     * Note: this is not a streaming decryption on Android. Its AES-GCM implementation (Conscrypt) only
+     * releases plain text after the authentication tag was verified, so the first read buffers the
+     * whole cipher text and returns data only once it was read completely. Memory use is the size of
+     * the file, like {@link #decryptBytes(byte[], char[])} but without the extra copies.
+     *
+     * @param encrypted stream of encrypted bytes with version.
+     * @param password  the password to create the key. <b>Warning!</b> the array will be filled with 0!
+     * @return stream of the decrypted bytes.
+     * @throws EncryptionFailedException when something goes wrong.
+     */
+    public static InputStream getDecryptingStream(InputStream encrypted, char[] password) throws IOException, EncryptionFailedException {
+        final DataInputStream in = new DataInputStream(encrypted);
+        final byte[] versionBytes = new byte[Version.NAME_LENGTH];
+        in.readFully(versionBytes);
+        final JavaPasswordbasedCryption cryption = new JavaPasswordbasedCryption(getVersion(versionBytes), null);
+        final byte[] nonce = new byte[cryption.version.nonceLenth];
+        in.readFully(nonce);
+        final byte[] salt = new byte[cryption.version.keySaltLength];
+        in.readFully(salt);
+        try {
+            final SecretKey key = cryption.createKeyFromPassword(password, salt, true);
+            return new CipherInputStream(encrypted, cryption.getCipher(key, Cipher.DECRYPT_MODE, nonce));
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException |
+                 InvalidAlgorithmParameterException | InvalidKeyException e) {
+            throw new EncryptionFailedException("Can't decrypt text.", e);
+        }
+    }
+
+    /**
+     * @param cache true to take the key from and put it into the key cache, only for decryption
+     */
+    private SecretKey createKeyFromPassword(char[] password, byte[] salt, boolean cache) {
+        final String cacheKey = cache ? version.name() + ":" + toHex(salt) + ":" + fingerprint(password) : null;
+        if (cache) {
+            synchronized (KEY_CACHE) {
+                removeExpiredKeys(System.currentTimeMillis());
+                final CachedKey cached = KEY_CACHE.get(cacheKey);
+                if (cached != null) {
+                    Arrays.fill(password, Character.MIN_VALUE);
+                    cached.lastUsed = System.currentTimeMillis();
+                    return cached.key;
+                }
+                keyCacheMisses++;
+            }
+        }
+
         try {
             SecretKeyFactory secretKeyFactory = SecretKeyFactory.getInstance(version.keyFactory);
             KeySpec passwordBasedEncryptionKeySpec = new PBEKeySpec(password, salt, version.keyIterationCount, version.keyLength);
             Arrays.fill(password, Character.MIN_VALUE);
             SecretKey secretKeyFromPBKDF2 = secretKeyFactory.generateSecret(passwordBasedEncryptionKeySpec);
-            return new SecretKeySpec(secretKeyFromPBKDF2.getEncoded(), version.keyAlgorithm);
+            final SecretKey key = new SecretKeySpec(secretKeyFromPBKDF2.getEncoded(), version.keyAlgorithm);
+            if (cache) {
+                synchronized (KEY_CACHE) {
+                    KEY_CACHE.put(cacheKey, new CachedKey(key));
+                    startKeyCacheTimer();
+                }
+            }
+            return key;
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             throw new EncryptionFailedException("Error creating key from password: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Forget all derived keys. Should be called when the app goes to background.
+     */
+    public static void clearKeyCache() {
+        synchronized (KEY_CACHE) {
+            KEY_CACHE.clear();
+            stopKeyCacheTimer();
+        }
+    }
+
+    /**
+     * Forget all derived keys if no UI is visible anymore, see {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            clearKeyCache();
+        }
+    }
+
+    /**
+     * Remove the keys which were not used within {@link #KEY_CACHE_TIMEOUT_MS} before now.
+     */
+    @VisibleForTesting
+    public static void expireKeys(long now) {
+        synchronized (KEY_CACHE) {
+            removeExpiredKeys(now);
+        }
+    }
+
+    /**
+     * @return number of keys derived for decryption because they were not cached
+     */
+    @VisibleForTesting
+    public static int getKeyCacheMisses() {
+        synchronized (KEY_CACHE) {
+            return keyCacheMisses;
+        }
+    }
+
+    // Callers hold the lock of KEY_CACHE
+    private static void removeExpiredKeys(long now) {
+        for (final Iterator<CachedKey> it = KEY_CACHE.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().lastUsed >= KEY_CACHE_TIMEOUT_MS) {
+                it.remove();
+            }
+        }
+    }
+
+    // Callers hold the lock of KEY_CACHE
+    private static void startKeyCacheTimer() {
+        if (keyCacheTimer != null) {
+            return;
+        }
+        keyCacheTimer = new Timer("KeyCacheTimer", true);
+        keyCacheTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (KEY_CACHE) {
+                    removeExpiredKeys(System.currentTimeMillis());
+                    if (KEY_CACHE.isEmpty()) {
+                        stopKeyCacheTimer();
+                    }
+                }
+            }
+        }, KEY_CACHE_TIMEOUT_MS / 5, KEY_CACHE_TIMEOUT_MS / 5);
+    }
+
+    // Callers hold the lock of KEY_CACHE
+    private static void stopKeyCacheTimer() {
+        if (keyCacheTimer != null) {
+            keyCacheTimer.cancel();
+            keyCacheTimer = null;
+        }
+    }
+
+    /**
+     * Identifies a password within this process without keeping it. The HMAC secret is random per process,
+     * so fingerprints can't be compared across processes or devices.
+     */
+    private static String fingerprint(char[] password) {
+        final ByteBuffer buffer = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        try {
+            synchronized (KEY_CACHE) {
+                if (fingerprintSecret == null) {
+                    fingerprintSecret = new byte[32];
+                    new SecureRandom().nextBytes(fingerprintSecret);
+                }
+            }
+            final Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(fingerprintSecret, "HmacSHA256"));
+            return toHex(mac.doFinal(bytes));
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new EncryptionFailedException("Error creating password fingerprint: " + e.getMessage(), e);
+        } finally {
+            Arrays.fill(bytes, (byte) 0);
+            if (buffer.hasArray()) {
+                Arrays.fill(buffer.array(), (byte) 0);
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
     private Cipher getCipher(SecretKey key, int encryptMode, byte[] nonce) throws
             NoSuchPaddingException, NoSuchAlgorithmException, InvalidAlgorithmParameterException, InvalidKeyException {
         if (version == Version.V001 || version == Version.U001) {
@@ -11,19 +11,29 @@ package other.writeily.model;
 
 import android.app.Activity;
 import android.content.Context;
+import android.widget.Toast;
 
+import androidx.annotation.Nullable;
 import androidx.documentfile.provider.DocumentFile;
 
+import com.google.android.material.snackbar.Snackbar;
+
+import net.gsantner.markor.R;
 import net.gsantner.markor.frontend.MarkorDialogFactory;
 import net.gsantner.markor.util.MarkorContextUtils;
+import net.gsantner.opoc.util.GsFileOperationQueue;
 import net.gsantner.opoc.util.GsFileUtils;
+import net.gsantner.opoc.wrapper.GsCallback;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Stack;
 
 public class WrMarkorSingleton {
@@ -81,8 +91,7 @@ public class WrMarkorSingleton {
                 }
                 return false;
             } else {
-                GsFileUtils.copyFile(file, dest);
-                return true;
+                return GsFileUtils.copyFile(file, dest);
             }
         }
         return false;
@@ -95,13 +104,7 @@ public class WrMarkorSingleton {
             }
         }
 
-        final MarkorContextUtils cu = new MarkorContextUtils(context);
-        if (context != null && cu.isUnderStorageAccessFolder(context, file, file.isDirectory())) {
-            final DocumentFile dof = cu.getDocumentFile(context, file, file.isDirectory());
-            return dof == null ? false : (dof.delete() || !dof.exists());
-        } else {
-            return file.delete();
-        }
+        return deleteSingleFile(file, context);
     }
 
     public void deleteSelectedItems(final Collection<File> files, final Context context) {
@@ -114,7 +117,12 @@ public class WrMarkorSingleton {
         KEEP_BOTH, OVERWRITE, SKIP, ASK
     }
 
-    public void moveOrCopySelected(final List<File> files, final File destDir, final Activity activity, final boolean isMove) {
+    /**
+     * Copy or move files into destDir in the background. Conflicts are asked for before anything is done
+     *
+     * @param onDone Called when the files were copied or moved, may be null
+     */
+    public void moveOrCopySelected(final List<File> files, final File destDir, final Activity activity, final boolean isMove, @Nullable final GsCallback.a0 onDone) {
         if (destDir.isDirectory()) {
             boolean allSane = true;
             for (final File file : files) {
@@ -122,54 +130,124 @@ public class WrMarkorSingleton {
                 allSane &= isMove ? saneMove(file, dest) : saneCopy(file, dest);
             }
             if (allSane) {
-                final Stack<File> _files = new Stack<>();
-                _files.addAll(files);
-                _moveOrCopySelected(_files, destDir, activity, isMove, ConflictResolution.ASK, false);
-                return;
+                final Stack<File> conflicts = new Stack<>();
+                for (final File file : files) {
+                    final File dest = new File(destDir, file.getName());
+                    if (dest.exists() && (isMove || !file.equals(dest))) {
+                        conflicts.add(file);
+                    }
+                }
+                resolveConflicts(conflicts, destDir, activity, new HashMap<>(), ConflictResolution.ASK, resolutions -> {
+                    final List<GsFileOperationQueue.Operation> operations = new ArrayList<>();
+                    for (final File file : files) {
+                        final ConflictResolution res = resolutions.containsKey(file) ? resolutions.get(file) : ConflictResolution.KEEP_BOTH;
+                        final File dest = new File(destDir, file.getName());
+                        if (!dest.exists()) {
+                            operations.add(new GsFileOperationQueue.Operation(file, dest, isMove, false));
+                        } else if (res == ConflictResolution.KEEP_BOTH) {
+                            // Also duplicates the file with new name if copying to same directory
+                            operations.add(new GsFileOperationQueue.Operation(file, GsFileUtils.findNonConflictingDest(destDir, file.getName()), isMove, false));
+                        } else if (res == ConflictResolution.OVERWRITE) {
+                            operations.add(new GsFileOperationQueue.Operation(file, dest, isMove, true));
+                        }
+                    }
+                    if (!operations.isEmpty()) {
+                        final GsFileOperationQueue.Job[] job = {null};
+                        final GsCallback.a1<GsFileOperationQueue.Progress> progress = makeProgressSnackbar(activity, isMove, () -> job[0].cancel(), onDone);
+                        job[0] = GsFileOperationQueue.get(activity).submit(operations, file -> deleteSingleFile(file, activity), progress);
+                    }
+                });
             }
         }
     }
 
-    private void _moveOrCopySelected(final Stack<File> files, final File destDir, final Activity activity, final boolean isMove, ConflictResolution resolution, boolean preserveResolution) {
-        while (!files.empty()) {
-            final File file = files.pop();
-            final File dest = new File(destDir, file.getName());
-            if (dest.exists()) {
-                // Special case - duplicate the file with new name if copying to same directory
-                if (resolution == ConflictResolution.KEEP_BOTH || (!isMove && file.equals(dest))) {
-                    moveOrCopy(activity, file, GsFileUtils.findNonConflictingDest(destDir, file.getName()), isMove);
-                } else if (resolution == ConflictResolution.OVERWRITE) {
-                    if (deleteFile(dest, activity)) {
-                        moveOrCopy(activity, file, dest, isMove);
-                    }
-                } else if (resolution == ConflictResolution.ASK) {
-                    // Put the file back in
-                    files.push(file);
-                    MarkorDialogFactory.showCopyMoveConflictDialog(activity, file.getName(), destDir.getName(), files.size() > 1, (option) -> {
-                        ConflictResolution res = ConflictResolution.ASK;
-                        if (option == 0 || option == 3) {
-                            res = ConflictResolution.KEEP_BOTH;
-                        } else if (option == 1 || option == 4) {
-                            res = ConflictResolution.OVERWRITE;
-                        } else if (option == 2 || option == 5) {
-                            res = ConflictResolution.SKIP;
-                        }
-                        _moveOrCopySelected(files, destDir, activity, isMove, res, option > 2);
-                    });
-                    return; // Process will be continued by callback
+    /**
+     * Continue copy and move operations which were interrupted by the app being stopped
+     *
+     * @param onDone Called when the files were copied or moved, may be null
+     */
+    public void resumeInterruptedOperations(final Activity activity, @Nullable final GsCallback.a0 onDone) {
+        final GsFileOperationQueue queue = GsFileOperationQueue.get(activity);
+        for (final boolean isMove : new boolean[]{true, false}) {
+            if (queue.hasInterrupted(isMove)) {
+                final GsFileOperationQueue.Job[] job = {null};
+                final GsCallback.a1<GsFileOperationQueue.Progress> progress = makeProgressSnackbar(activity, isMove, () -> job[0].cancel(), onDone);
+                job[0] = queue.resumeInterrupted(isMove, file -> deleteSingleFile(file, activity), progress);
+            }
+        }
+    }
+
+    // Ask for every conflict, before any file is touched. Options ending with "all" apply to the rest
+    private void resolveConflicts(final Stack<File> conflicts, final File destDir, final Activity activity, final Map<File, ConflictResolution> resolutions,
+                                  final ConflictResolution forAll, final GsCallback.a1<Map<File, ConflictResolution>> callback) {
+        while (!conflicts.empty() && forAll != ConflictResolution.ASK) {
+            resolutions.put(conflicts.pop(), forAll);
+        }
+        if (conflicts.empty()) {
+            callback.callback(resolutions);
+            return;
+        }
+
+        final File file = conflicts.peek();
+        // Order of options here should be synchronized with MarkorDialogFactory.showCopyMoveConflictDialog
+        MarkorDialogFactory.showCopyMoveConflictDialog(activity, file.getName(), destDir.getName(), conflicts.size() > 1, (option) -> {
+            ConflictResolution res = ConflictResolution.ASK;
+            if (option == 0 || option == 3) {
+                res = ConflictResolution.KEEP_BOTH;
+            } else if (option == 1 || option == 4) {
+                res = ConflictResolution.OVERWRITE;
+            } else if (option == 2 || option == 5) {
+                res = ConflictResolution.SKIP;
+            }
+            if (res != ConflictResolution.ASK) {
+                resolutions.put(conflicts.pop(), res);
+            }
+            resolveConflicts(conflicts, destDir, activity, resolutions, option > 2 ? res : ConflictResolution.ASK, callback);
+        });
+    }
+
+    // Progress in a snackbar which allows to cancel, like the file search
+    private GsCallback.a1<GsFileOperationQueue.Progress> makeProgressSnackbar(final Activity activity, final boolean isMove, final GsCallback.a0 cancel, @Nullable final GsCallback.a0 onDone) {
+        final Context appContext = activity.getApplicationContext();
+        final String title = activity.getString(isMove ? R.string.move : R.string.copy);
+        final Snackbar[] snackbar = {null};
+        return progress -> {
+            if (progress.finished) {
+                if (snackbar[0] != null) {
+                    snackbar[0].dismiss();
+                }
+                if (progress.failed > 0) {
+                    Toast.makeText(appContext, "❌ " + title + " (" + progress.failed + ")", Toast.LENGTH_LONG).show();
                 }
-                resolution = preserveResolution ? resolution : ConflictResolution.ASK;
+                if (onDone != null) {
+                    onDone.callback();
+                }
+                return;
+            }
+
+            final String text = String.format(Locale.getDefault(), "%s: %d / %d (%d%%)", title, progress.filesDone, progress.filesTotal, progress.percent());
+            if (snackbar[0] != null) {
+                snackbar[0].setText(text);
             } else {
-                moveOrCopy(activity, file, dest, isMove);
+                try {
+                    snackbar[0] = Snackbar.make(activity.findViewById(android.R.id.content), text, Snackbar.LENGTH_INDEFINITE)
+                            .setAction(android.R.string.cancel, v -> cancel.callback());
+                    snackbar[0].show();
+                } catch (Exception ignored) {
+                    // Activity is gone, the operation continues without progress
+                }
             }
-        }
+        };
     }
 
-    private void moveOrCopy(final Context context, final File src, final File dest, final boolean isMove) {
-        if (isMove) {
-            moveFile(src, dest, context);
+    // Single file or empty folder, storage access framework aware
+    private boolean deleteSingleFile(final File file, final Context context) {
+        final MarkorContextUtils cu = new MarkorContextUtils(context);
+        if (context != null && cu.isUnderStorageAccessFolder(context, file, file.isDirectory())) {
+            final DocumentFile dof = cu.getDocumentFile(context, file, file.isDirectory());
+            return dof == null ? false : (dof.delete() || !dof.exists());
         } else {
-            copyFile(src, dest);
+            return file.delete();
         }
     }
 